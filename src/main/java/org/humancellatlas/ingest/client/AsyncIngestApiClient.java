@@ -0,0 +1,350 @@
+package org.humancellatlas.ingest.client;
+
+import org.humancellatlas.ingest.client.model.SubmissionEnvelope;
+import org.humancellatlas.ingest.client.util.CoreCallGuard;
+import org.humancellatlas.ingest.client.util.EnvelopeFields;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.hateoas.MediaTypes;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.UnknownHttpStatusCodeException;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The operations of {@link IngestApiClient} that the state tracker calls most, on the JDK's non-blocking HTTP client.
+ * Each returns a future instead of holding the calling thread for the round trip to core, so a few threads can keep
+ * many requests in flight.
+ * <p>
+ * The envelope reference, envelope state, state update link and missing envelope caches are shared with the
+ * {@link IngestApiClient}, and so are its circuit breakers and bulkheads: a call turned away fails its future with a
+ * {@link org.humancellatlas.ingest.exception.CoreUnavailableException}, and an envelope known to be missing fails it
+ * with a 404 without asking core. Error responses fail the future with the same {@code HttpClientErrorException} and
+ * {@code HttpServerErrorException} types the blocking client throws. Each request times out after
+ * CORE_READ_TIMEOUT_MILLIS, and each operation is held to the same CORE_LOOKUP_DEADLINE_MILLIS or
+ * CORE_UPDATE_DEADLINE_MILLIS as its blocking counterpart.
+ */
+@Component
+@DependsOn("configuration")
+public class AsyncIngestApiClient {
+    private final ConfigurationService config;
+    private final IngestApiClient ingestApiClient;
+    private final HttpClient httpClient;
+
+    private final Map<String, CompletableFuture<SubmissionEnvelopeReference>> envelopeReferenceLoads = new ConcurrentHashMap<>();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    public AsyncIngestApiClient(@Autowired ConfigurationService config, @Autowired IngestApiClient ingestApiClient) {
+        this.config = config;
+        this.ingestApiClient = ingestApiClient;
+        this.httpClient = HttpClient.newBuilder()
+                                    .version(HttpClient.Version.HTTP_1_1)
+                                    .connectTimeout(Duration.ofMillis(config.getCoreConnectTimeoutMillis()))
+                                    .followRedirects(HttpClient.Redirect.NORMAL)
+                                    .build();
+    }
+
+    public CompletableFuture<SubmissionEnvelope> retrieveSubmissionEnvelope(SubmissionEnvelopeReference envelopeReference) {
+        return lookup(envelopeReference.getId(), () -> getEnvelope(envelopeUri(envelopeReference)))
+                .thenApply(envelopeFields -> {
+                    ingestApiClient.cacheStateUpdateLinks(envelopeReference.getId(), envelopeFields.getLinks());
+                    return new SubmissionEnvelope(envelopeFields.getSubmissionState());
+                });
+    }
+
+    /**
+     * Gets the state of an envelope from the short-lived cache, retrieving it from the core API on a miss
+     */
+    public CompletableFuture<SubmissionState> retrieveEnvelopeState(SubmissionEnvelopeReference envelopeReference) {
+        SubmissionState cachedState = ingestApiClient.cachedEnvelopeState(envelopeReference);
+        if (cachedState != null) {
+            return CompletableFuture.completedFuture(cachedState);
+        }
+
+        return retrieveSubmissionEnvelope(envelopeReference).thenApply(envelope -> {
+            SubmissionState envelopeState = SubmissionState.fromString(envelope.getSubmissionState());
+            ingestApiClient.cacheEnvelopeState(envelopeReference, envelopeState);
+            return envelopeState;
+        });
+    }
+
+    /**
+     * Transitions an envelope in core, with the same use of cached state update links as
+     * {@link IngestApiClient#updateEnvelopeState}
+     */
+    public CompletableFuture<SubmissionEnvelope> updateEnvelopeState(SubmissionEnvelopeReference envelopeReference, SubmissionState submissionState) {
+        try {
+            ingestApiClient.checkNotKnownMissing(envelopeReference.getId());
+        } catch (HttpClientErrorException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return ingestApiClient.getCoreCallGuard().callAsync(CoreCallGuard.Operation.STATE_UPDATE,
+                () -> doUpdateEnvelopeState(envelopeReference, submissionState)
+                        .orTimeout(config.getCoreUpdateDeadlineMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    private CompletableFuture<SubmissionEnvelope> doUpdateEnvelopeState(SubmissionEnvelopeReference envelopeReference, SubmissionState submissionState) {
+        String stateUpdateRel = config.getStateUpdateRels().get(submissionState);
+        String cachedLink = ingestApiClient.cachedStateUpdateLink(envelopeReference.getId(), stateUpdateRel);
+
+        CompletableFuture<SubmissionEnvelope> update;
+        if (cachedLink != null) {
+            update = putStateUpdate(envelopeReference, cachedLink)
+                    .handle((envelope, failure) -> {
+                        if (failure == null) {
+                            return CompletableFuture.completedFuture(envelope);
+                        }
+                        Throwable cause = unwrap(failure);
+                        if (cause instanceof HttpClientErrorException.NotFound || cause instanceof HttpClientErrorException.Conflict) {
+                            log.info(String.format("Cached %s link of envelope with ID %s was refused with status %s, looking it up again",
+                                    stateUpdateRel, envelopeReference.getId(), ((HttpClientErrorException) cause).getRawStatusCode()));
+                            return putStateUpdateFromEnvelope(envelopeReference, stateUpdateRel);
+                        }
+                        return CompletableFuture.<SubmissionEnvelope>failedFuture(cause);
+                    })
+                    .thenCompose(Function.identity());
+        } else {
+            update = putStateUpdateFromEnvelope(envelopeReference, stateUpdateRel);
+        }
+
+        return update.whenComplete((envelope, failure) -> {
+            if (failure != null && unwrap(failure) instanceof HttpClientErrorException.NotFound) {
+                // the envelope is gone
+                ingestApiClient.invalidateStateUpdateLinks(envelopeReference.getId());
+            }
+        });
+    }
+
+    /**
+     * Looks the envelope up in the envelope reference cache shared with {@link IngestApiClient}, retrieving it from
+     * the core API on a miss. Concurrent misses for the same envelope share a single retrieval.
+     */
+    public CompletableFuture<SubmissionEnvelopeReference> envelopeReferencesFromEnvelopeId(String envelopeId) {
+        SubmissionEnvelopeReference cached = ingestApiClient.getEnvelopeReferenceCache().getIfPresent(envelopeId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<SubmissionEnvelopeReference> load = new CompletableFuture<>();
+        CompletableFuture<SubmissionEnvelopeReference> inProgress = envelopeReferenceLoads.putIfAbsent(envelopeId, load);
+        if (inProgress != null) {
+            return inProgress;
+        }
+
+        URI envelopeUri = URI.create(config.getIngestApiUri().toString() + "/submissionEnvelopes/" + envelopeId);
+        lookup(envelopeId, () -> getEnvelope(envelopeUri))
+                .thenApply(envelopeFields -> envelopeReferenceFromEnvelopeFields(envelopeUri, envelopeFields))
+                .whenComplete((envelopeReference, failure) -> {
+                    // cache before letting go of the load, so later callers find one or the other
+                    if (failure == null) {
+                        ingestApiClient.getEnvelopeReferenceCache().put(envelopeId, envelopeReference);
+                    }
+                    envelopeReferenceLoads.remove(envelopeId, load);
+                    if (failure != null) {
+                        load.completeExceptionally(unwrap(failure));
+                    } else {
+                        load.complete(envelopeReference);
+                    }
+                });
+        return load;
+    }
+
+    /**
+     * Finds an envelope with the findByUuid search link shared with {@link IngestApiClient}, discovering the link if
+     * it isn't known yet or if the search answers 404 and may have moved
+     */
+    public CompletableFuture<SubmissionEnvelopeReference> referenceForSubmissionEnvelope(UUID envelopeUuid) {
+        return lookup(envelopeUuid.toString(), () -> doReferenceForSubmissionEnvelope(envelopeUuid));
+    }
+
+    private CompletableFuture<SubmissionEnvelopeReference> doReferenceForSubmissionEnvelope(UUID envelopeUuid) {
+        URI cachedLink = ingestApiClient.cachedFindSubmissionByUuidLink();
+        if (cachedLink == null) {
+            return discoverFindSubmissionByUuidLink().thenCompose(link -> findSubmissionByUuid(link, envelopeUuid));
+        }
+
+        return findSubmissionByUuid(cachedLink, envelopeUuid)
+                .handle((envelopeReference, failure) -> {
+                    if (failure == null) {
+                        return CompletableFuture.completedFuture(envelopeReference);
+                    }
+                    Throwable cause = unwrap(failure);
+                    if (!(cause instanceof HttpClientErrorException.NotFound)) {
+                        return CompletableFuture.<SubmissionEnvelopeReference>failedFuture(cause);
+                    }
+                    ingestApiClient.cacheFindSubmissionByUuidLink(null);
+                    return discoverFindSubmissionByUuidLink().thenCompose(link -> link.equals(cachedLink)
+                            ? CompletableFuture.<SubmissionEnvelopeReference>failedFuture(cause)
+                            : findSubmissionByUuid(link, envelopeUuid));
+                })
+                .thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<URI> discoverFindSubmissionByUuidLink() {
+        return getEnvelope(config.getIngestApiUri())
+                .thenCompose(root -> getEnvelope(linkFrom(root, "submissionEnvelopes")))
+                .thenCompose(submissionEnvelopes -> getEnvelope(linkFrom(submissionEnvelopes, "search")))
+                .thenApply(search -> {
+                    URI findSubmissionByUuid = linkFrom(search, "findByUuid");
+                    ingestApiClient.cacheFindSubmissionByUuidLink(findSubmissionByUuid);
+                    return findSubmissionByUuid;
+                });
+    }
+
+    private CompletableFuture<SubmissionEnvelopeReference> findSubmissionByUuid(URI findSubmissionByUuid, UUID envelopeUuid) {
+        return getEnvelope(UriComponentsBuilder.fromUri(findSubmissionByUuid)
+                                               .queryParam("uuid", envelopeUuid.toString())
+                                               .build().toUri())
+                .thenApply(envelopeFields -> envelopeReferenceFromEnvelopeFields(URI.create(envelopeFields.getSelfHref()), envelopeFields));
+    }
+
+    private CompletableFuture<SubmissionEnvelope> putStateUpdateFromEnvelope(SubmissionEnvelopeReference envelopeReference, String stateUpdateRel) {
+        return getEnvelope(envelopeUri(envelopeReference)).thenCompose(envelopeFields -> {
+            ingestApiClient.cacheStateUpdateLinks(envelopeReference.getId(), envelopeFields.getLinks());
+            String stateUpdateLink = envelopeFields.getLinks().get(stateUpdateRel);
+            if (stateUpdateLink == null) {
+                throw new IllegalStateException(String.format("Envelope with ID %s has no link with rel %s",
+                        envelopeReference.getId(), stateUpdateRel));
+            }
+            return putStateUpdate(envelopeReference, stateUpdateLink);
+        });
+    }
+
+    private CompletableFuture<SubmissionEnvelope> putStateUpdate(SubmissionEnvelopeReference envelopeReference, String stateUpdateUri) {
+        HttpRequest request = halRequest(URI.create(stateUpdateUri))
+                .header(HttpHeaders.CONTENT_TYPE, MediaTypes.HAL_JSON_VALUE)
+                .PUT(HttpRequest.BodyPublishers.ofString("{}"))
+                .build();
+        return sendForEnvelope(request)
+                .thenApply(envelopeFields -> {
+                    ingestApiClient.cacheStateUpdateLinks(envelopeReference.getId(), envelopeFields.getLinks());
+                    return new SubmissionEnvelope(envelopeFields.getSubmissionState());
+                })
+                .whenComplete((envelope, failure) -> {
+                    Throwable cause = failure != null ? unwrap(failure) : null;
+                    if (cause instanceof HttpClientErrorException.NotFound || cause instanceof HttpClientErrorException.Conflict) {
+                        ingestApiClient.invalidateStateUpdateLinks(envelopeReference.getId());
+                    }
+                });
+    }
+
+    private SubmissionEnvelopeReference envelopeReferenceFromEnvelopeFields(URI envelopeUri, EnvelopeFields envelopeFields) {
+        String envelopeId = ingestApiClient.extractIdFromSubmissionEnvelopeURI(envelopeUri);
+        ingestApiClient.cacheStateUpdateLinks(envelopeId, envelopeFields.getLinks());
+        return new SubmissionEnvelopeReference(envelopeId, envelopeFields.getUuid(),
+                SubmissionState.fromString(envelopeFields.getSubmissionState()),
+                ingestApiClient.extractCallbackUriFromSubmissionEnvelopeUri(envelopeUri));
+    }
+
+    /**
+     * Runs a lookup through the lookup circuit breaker and bulkhead, held to CORE_LOOKUP_DEADLINE_MILLIS. An envelope
+     * known to be missing gets a 404 straight away, and one core answers 404 for is remembered as missing.
+     */
+    private <T> CompletableFuture<T> lookup(String envelopeIdOrUuid, Supplier<CompletableFuture<T>> call) {
+        try {
+            ingestApiClient.checkNotKnownMissing(envelopeIdOrUuid);
+        } catch (HttpClientErrorException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return ingestApiClient.getCoreCallGuard()
+                              .callAsync(CoreCallGuard.Operation.LOOKUP,
+                                      () -> call.get().orTimeout(config.getCoreLookupDeadlineMillis(), TimeUnit.MILLISECONDS))
+                              .whenComplete((result, failure) -> {
+                                  if (failure != null && unwrap(failure) instanceof HttpClientErrorException.NotFound) {
+                                      ingestApiClient.markMissing(envelopeIdOrUuid);
+                                  }
+                              });
+    }
+
+    private CompletableFuture<EnvelopeFields> getEnvelope(URI uri) {
+        return sendForEnvelope(halRequest(uri).GET().build());
+    }
+
+    /**
+     * Reads the envelope fields off the response with the same streaming reader as the blocking client. The root and
+     * search documents the findByUuid link is discovered from are read the same way, for their links.
+     */
+    private CompletableFuture<EnvelopeFields> sendForEnvelope(HttpRequest request) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                         .thenApply(response -> {
+                             checkStatus(response);
+                             try {
+                                 return EnvelopeFields.read(response.body());
+                             } catch (IOException e) {
+                                 throw new UncheckedIOException(String.format("Unreadable response from %s", request.uri()), e);
+                             }
+                         });
+    }
+
+    private HttpRequest.Builder halRequest(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                          .timeout(Duration.ofMillis(config.getCoreReadTimeoutMillis()))
+                          .header(HttpHeaders.ACCEPT, MediaTypes.HAL_JSON_VALUE);
+    }
+
+    private URI envelopeUri(SubmissionEnvelopeReference envelopeReference) {
+        return URI.create(config.getIngestApiUri().toString() + envelopeReference.getCallbackLocation());
+    }
+
+    private static URI linkFrom(EnvelopeFields resourceFields, String rel) {
+        String href = resourceFields.getLinks().get(rel);
+        if (href == null) {
+            throw new IllegalStateException(String.format("No link with rel %s", rel));
+        }
+        // drop any URI template variables, the query parameters are added by the caller
+        return URI.create(href.replaceFirst("\\{.*}$", ""));
+    }
+
+    /**
+     * Fails an error response with the exception {@code RestTemplate} would throw for it
+     */
+    private static void checkStatus(HttpResponse<byte[]> response) {
+        int statusCode = response.statusCode();
+        if (statusCode < 400) {
+            return;
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        response.headers().map().forEach(headers::addAll);
+        HttpStatus status = HttpStatus.resolve(statusCode);
+        if (status == null) {
+            throw new UnknownHttpStatusCodeException(statusCode, "", headers, response.body(), StandardCharsets.UTF_8);
+        }
+        if (status.is4xxClientError()) {
+            throw HttpClientErrorException.create(status, status.getReasonPhrase(), headers, response.body(), StandardCharsets.UTF_8);
+        }
+        throw HttpServerErrorException.create(status, status.getReasonPhrase(), headers, response.body(), StandardCharsets.UTF_8);
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+}
@@ -1,12 +1,18 @@
 package org.humancellatlas.ingest.client;
 
-import com.fasterxml.jackson.core.JsonPointer;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.Getter;
 import org.humancellatlas.ingest.client.model.MetadataDocument;
 import org.humancellatlas.ingest.client.model.SubmissionEnvelope;
+import org.humancellatlas.ingest.client.util.CoreCallGuard;
+import org.humancellatlas.ingest.client.util.Deadlines;
+import org.humancellatlas.ingest.client.util.EnvelopeFields;
 import org.humancellatlas.ingest.client.util.EnvelopeReferenceCache;
+import org.humancellatlas.ingest.client.util.ObjectMappers;
+import org.humancellatlas.ingest.client.util.PooledRequestFactory;
 import org.humancellatlas.ingest.config.ConfigurationService;
 import org.humancellatlas.ingest.messaging.model.MetadataDocumentMessage;
 import org.humancellatlas.ingest.messaging.model.SubmissionEnvelopeMessage;
@@ -23,9 +29,11 @@ import org.springframework.hateoas.client.Traverson;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
@@ -33,7 +41,9 @@ import org.springframework.web.util.UriComponentsBuilder;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -49,10 +59,22 @@ public class IngestApiClient implements InitializingBean {
 
     @Getter
     private RestTemplate restTemplate;
+    private RestTemplate halRestTemplate;
 
     private String submissionEnvelopesPath;
     private Map<String, String> metadataTypesLinkMap = new HashMap<>();
+    @Getter
     private EnvelopeReferenceCache envelopeReferenceCache;
+    private Cache<String, SubmissionState> envelopeStateCache;
+    private Cache<String, Map<String, String>> envelopeStateUpdateLinkCache;
+    // IDs and UUIDs of envelopes core has answered 404 for
+    private Cache<String, Boolean> missingEnvelopeCache;
+    @Getter
+    private CoreCallGuard coreCallGuard;
+    // the submissionEnvelopes/search/findByUuid link, discovered on first use
+    private volatile URI findSubmissionByUuidLink;
+
+    private static final String STATE_UPDATE_REL_PREFIX = "commit";
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -65,44 +87,166 @@ public class IngestApiClient implements InitializingBean {
     }
 
     public void init() {
-        this.restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory());
+        PooledRequestFactory requestFactory = new PooledRequestFactory(config);
+        this.restTemplate = new RestTemplate(requestFactory);
+        // traversals need the HAL converters, but go over the same connection pool
+        this.halRestTemplate = new RestTemplate(Traverson.getDefaultMessageConverters(MediaTypes.HAL_JSON));
+        this.halRestTemplate.setRequestFactory(requestFactory);
         this.submissionEnvelopesPath = "/submissionEnvelopes";
         this.metadataTypesLinkMap.put("sample", config.getIngestApiUri() + "/samples");
-        this.envelopeReferenceCache = new EnvelopeReferenceCache(100);
+        this.envelopeReferenceCache = new EnvelopeReferenceCache(config.getEnvelopeCacheSize(),
+                Duration.ofSeconds(config.getEnvelopeCacheTtlSeconds()));
+        this.envelopeReferenceCache.bindTo(Metrics.globalRegistry, "envelopeReferences");
+        this.envelopeStateCache = Caffeine.newBuilder()
+                                          .maximumSize(config.getEnvelopeCacheSize())
+                                          .expireAfterWrite(Duration.ofSeconds(config.getEnvelopeStateCacheTtlSeconds()))
+                                          .recordStats()
+                                          .build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, this.envelopeStateCache, "envelopeStates");
+        this.envelopeStateUpdateLinkCache = Caffeine.newBuilder()
+                                                    .maximumSize(config.getEnvelopeCacheSize())
+                                                    .expireAfterWrite(Duration.ofSeconds(config.getEnvelopeCacheTtlSeconds()))
+                                                    .recordStats()
+                                                    .build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, this.envelopeStateUpdateLinkCache, "envelopeStateUpdateLinks");
+        this.missingEnvelopeCache = Caffeine.newBuilder()
+                                            .maximumSize(config.getMissingEnvelopeCacheSize())
+                                            .expireAfterWrite(Duration.ofSeconds(config.getMissingEnvelopeCacheTtlSeconds()))
+                                            .recordStats()
+                                            .build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, this.missingEnvelopeCache, "missingEnvelopes");
+        this.coreCallGuard = new CoreCallGuard(config);
     }
 
+    /**
+     * Transitions an envelope in core. The link for the transition is taken from the envelope's cached state update
+     * links when it has been seen before, so a state push is usually a single PUT. A cached link that core answers
+     * with 404 or 409 is dropped and the link is looked up again from the envelope.
+     * <p>
+     * The whole transition, lookup included, is held to CORE_UPDATE_DEADLINE_MILLIS, and goes through the state update
+     * circuit breaker and bulkhead. An envelope known to be missing gets a 404 without asking core.
+     */
     public SubmissionEnvelope updateEnvelopeState(SubmissionEnvelopeReference envelopeReference, SubmissionState submissionState) {
-        String envelopeURIString = config.getIngestApiUri().toString() + envelopeReference.getCallbackLocation();
-        URI envelopeURI = uriFor(envelopeURIString);
+        checkNotKnownMissing(envelopeReference.getId());
+        return coreCallGuard.call(CoreCallGuard.Operation.STATE_UPDATE,
+                () -> Deadlines.within(Duration.ofMillis(config.getCoreUpdateDeadlineMillis()),
+                        () -> doUpdateEnvelopeState(envelopeReference, submissionState)));
+    }
+
+    private SubmissionEnvelope doUpdateEnvelopeState(SubmissionEnvelopeReference envelopeReference, SubmissionState submissionState) {
+        String stateUpdateRel = config.getStateUpdateRels().get(submissionState);
 
         try {
-            // get the link for the state update API
-            String stateUpdateUri = halTraverserOn(envelopeURI).follow(config.getStateUpdateRels().get(submissionState))
-                    .asLink()
-                    .getHref();
-            return this.restTemplate.exchange(stateUpdateUri,
-                    HttpMethod.PUT,
-                    halRequestEntityFor(Collections.emptyMap()),
-                    SubmissionEnvelope.class)
-                    .getBody();
+            Map<String, String> cachedLinks = envelopeStateUpdateLinkCache.getIfPresent(envelopeReference.getId());
+            if (cachedLinks != null && cachedLinks.containsKey(stateUpdateRel)) {
+                try {
+                    return putStateUpdate(envelopeReference, cachedLinks.get(stateUpdateRel));
+                } catch (HttpClientErrorException.NotFound | HttpClientErrorException.Conflict e) {
+                    log.info(String.format("Cached %s link of envelope with ID %s was refused with status %s, looking it up again",
+                            stateUpdateRel, envelopeReference.getId(), e.getRawStatusCode()));
+                }
+            }
+
+            return putStateUpdate(envelopeReference, stateUpdateLinkFromEnvelope(envelopeReference, stateUpdateRel));
         } catch (HttpClientErrorException e) {
+            if (e.getRawStatusCode() == HttpStatus.NOT_FOUND.value()) {
+                // the envelope is gone
+                envelopeStateUpdateLinkCache.invalidate(envelopeReference.getId());
+            }
             log.error("Failed to patch the state of a submission envelope with ID %s and callback link %s. Status code %s", envelopeReference.getId(), envelopeReference.getCallbackLocation(), Integer.toString(e.getRawStatusCode()));
             throw e;
         }
     }
 
+    private String stateUpdateLinkFromEnvelope(SubmissionEnvelopeReference envelopeReference, String stateUpdateRel) {
+        URI envelopeURI = uriFor(config.getIngestApiUri().toString() + envelopeReference.getCallbackLocation());
+        EnvelopeFields envelopeFields = envelopeFieldsFrom(envelopeURI, HttpMethod.GET);
+        cacheStateUpdateLinks(envelopeReference.getId(), envelopeFields.getLinks());
+
+        String stateUpdateLink = envelopeFields.getLinks().get(stateUpdateRel);
+        if (stateUpdateLink == null) {
+            throw new IllegalStateException(String.format("Envelope with ID %s has no link with rel %s",
+                    envelopeReference.getId(), stateUpdateRel));
+        }
+        return stateUpdateLink;
+    }
+
+    private SubmissionEnvelope putStateUpdate(SubmissionEnvelopeReference envelopeReference, String stateUpdateUri) {
+        try {
+            EnvelopeFields envelopeFields = envelopeFieldsFrom(uriFor(stateUpdateUri), HttpMethod.PUT);
+            cacheStateUpdateLinks(envelopeReference.getId(), envelopeFields.getLinks());
+            return new SubmissionEnvelope(envelopeFields.getSubmissionState());
+        } catch (HttpClientErrorException.NotFound | HttpClientErrorException.Conflict e) {
+            envelopeStateUpdateLinkCache.invalidate(envelopeReference.getId());
+            throw e;
+        }
+    }
+
+    /**
+     * Keeps the commit* links of an envelope document, adding to any already cached for the envelope since core only
+     * lists the transitions that are open from the envelope's current state
+     */
+    void cacheStateUpdateLinks(String envelopeId, Map<String, String> links) {
+        Map<String, String> stateUpdateLinks = new HashMap<>();
+        links.forEach((rel, href) -> {
+            if (rel.startsWith(STATE_UPDATE_REL_PREFIX)) {
+                stateUpdateLinks.put(rel, href);
+            }
+        });
+
+        if (!stateUpdateLinks.isEmpty()) {
+            envelopeStateUpdateLinkCache.asMap().merge(envelopeId, stateUpdateLinks, (cached, seen) -> {
+                Map<String, String> merged = new HashMap<>(cached);
+                merged.putAll(seen);
+                return merged;
+            });
+        }
+    }
+
+    String cachedStateUpdateLink(String envelopeId, String stateUpdateRel) {
+        Map<String, String> cachedLinks = envelopeStateUpdateLinkCache.getIfPresent(envelopeId);
+        return cachedLinks != null ? cachedLinks.get(stateUpdateRel) : null;
+    }
+
+    void invalidateStateUpdateLinks(String envelopeId) {
+        envelopeStateUpdateLinkCache.invalidate(envelopeId);
+    }
+
     public SubmissionEnvelope retrieveSubmissionEnvelope(SubmissionEnvelopeReference envelopeReference) {
         String envelopeURIString = config.getIngestApiUri().toString() + envelopeReference.getCallbackLocation();
 
         URI envelopeURI = uriFor(envelopeURIString);
-        JsonNode documentJson = getRestTemplate().exchange(envelopeURI,
-                HttpMethod.GET,
-                halRequestEntityFor(Collections.emptyMap()),
-                JsonNode.class)
-                .getBody();
+        EnvelopeFields envelopeFields = unlessKnownMissing(envelopeReference.getId(),
+                () -> lookup(() -> envelopeFieldsFrom(envelopeURI, HttpMethod.GET)));
+        cacheStateUpdateLinks(envelopeReference.getId(), envelopeFields.getLinks());
+
+        return new SubmissionEnvelope(envelopeFields.getSubmissionState());
+    }
+
+    /**
+     * Gets the state of an envelope from a short-lived cache, retrieving it from the core API on a miss
+     */
+    public SubmissionState retrieveEnvelopeState(SubmissionEnvelopeReference envelopeReference) {
+        SubmissionState cachedState = envelopeStateCache.getIfPresent(envelopeReference.getId());
+        if (cachedState != null) {
+            return cachedState;
+        }
+
+        SubmissionState envelopeState = SubmissionState.fromString(retrieveSubmissionEnvelope(envelopeReference).getSubmissionState());
+        envelopeStateCache.put(envelopeReference.getId(), envelopeState);
+        return envelopeState;
+    }
+
+    SubmissionState cachedEnvelopeState(SubmissionEnvelopeReference envelopeReference) {
+        return envelopeStateCache.getIfPresent(envelopeReference.getId());
+    }
 
-        String submissionState = documentJson.at(JsonPointer.valueOf("/submissionState")).asText();
-        return new SubmissionEnvelope(submissionState);
+    public void cacheEnvelopeState(SubmissionEnvelopeReference envelopeReference, SubmissionState submissionState) {
+        envelopeStateCache.put(envelopeReference.getId(), submissionState);
+    }
+
+    public void invalidateEnvelopeState(SubmissionEnvelopeReference envelopeReference) {
+        envelopeStateCache.invalidate(envelopeReference.getId());
     }
 
     public SubmissionEnvelopeReference envelopeReferencesFromEnvelopeId(String envelopeId) {
@@ -116,23 +260,64 @@ public class IngestApiClient implements InitializingBean {
     }
 
     public SubmissionEnvelopeReference referenceForSubmissionEnvelope(UUID envelopeUuid) {
-        URI findSubmissionByUuid = uriFor(halTraverserOn(config.getIngestApiUri()).follow("submissionEnvelopes")
-                .follow("search")
-                .follow("findByUuid").asLink().getHref());
+        return unlessKnownMissing(envelopeUuid.toString(), () -> lookup(() -> doReferenceForSubmissionEnvelope(envelopeUuid)));
+    }
+
+    /**
+     * Finds an envelope with a single GET to the findByUuid search, whose link is discovered once and then reused. A
+     * 404 could mean the search has moved, so the link is discovered again and, if it has changed, the search retried.
+     */
+    private SubmissionEnvelopeReference doReferenceForSubmissionEnvelope(UUID envelopeUuid) {
+        URI findSubmissionByUuid = findSubmissionByUuidLink();
+        EnvelopeFields envelopeFields;
+        try {
+            envelopeFields = findSubmissionByUuid(findSubmissionByUuid, envelopeUuid);
+        } catch (HttpClientErrorException.NotFound e) {
+            findSubmissionByUuidLink = null;
+            URI rediscovered = findSubmissionByUuidLink();
+            if (rediscovered.equals(findSubmissionByUuid)) {
+                throw e;
+            }
+            envelopeFields = findSubmissionByUuid(rediscovered, envelopeUuid);
+        }
+
+        URI envelopeUri = URI.create(envelopeFields.getSelfHref());
+
+        String state = envelopeFields.getSubmissionState();
+        String envelopeId = extractIdFromSubmissionEnvelopeURI(envelopeUri);
+        cacheStateUpdateLinks(envelopeId, envelopeFields.getLinks());
+
+        return new SubmissionEnvelopeReference(envelopeId,
+                envelopeUuid.toString(), SubmissionState.fromString(state),
+                extractCallbackUriFromSubmissionEnvelopeUri(envelopeUri));
+    }
+
+    private EnvelopeFields findSubmissionByUuid(URI findSubmissionByUuid, UUID envelopeUuid) {
         URI submissionByUuid = UriComponentsBuilder.fromUri(findSubmissionByUuid)
                 .queryParam("uuid", envelopeUuid.toString())
                 .build().toUri();
 
-        JsonNode envelopeJson = this.restTemplate.getForEntity(submissionByUuid, JsonNode.class)
-                .getBody();
+        return envelopeFieldsFrom(submissionByUuid, HttpMethod.GET);
+    }
 
-        URI envelopeUri = URI.create(envelopeJson.at(JsonPointer.valueOf("/_links/self/href")).asText());
+    private URI findSubmissionByUuidLink() {
+        URI findSubmissionByUuid = findSubmissionByUuidLink;
+        if (findSubmissionByUuid == null) {
+            // concurrent first calls may each discover it, they all find the same link
+            findSubmissionByUuid = uriFor(halTraverserOn(config.getIngestApiUri()).follow("submissionEnvelopes")
+                    .follow("search")
+                    .follow("findByUuid").asLink().getHref());
+            findSubmissionByUuidLink = findSubmissionByUuid;
+        }
+        return findSubmissionByUuid;
+    }
 
-        String state = envelopeJson.get("submissionState").asText();
+    URI cachedFindSubmissionByUuidLink() {
+        return findSubmissionByUuidLink;
+    }
 
-        return new SubmissionEnvelopeReference(extractIdFromSubmissionEnvelopeURI(envelopeUri),
-                envelopeUuid.toString(), SubmissionState.fromString(state),
-                extractCallbackUriFromSubmissionEnvelopeUri(envelopeUri));
+    void cacheFindSubmissionByUuidLink(URI findSubmissionByUuid) {
+        findSubmissionByUuidLink = findSubmissionByUuid;
     }
 
     public MetadataDocumentReference referenceForMetadataDocument(MetadataDocumentMessage message) {
@@ -142,38 +327,102 @@ public class IngestApiClient implements InitializingBean {
     }
 
     private Traverson halTraverserOn(URI baseUri) {
-        return new Traverson(baseUri, MediaTypes.HAL_JSON);
+        return new Traverson(baseUri, MediaTypes.HAL_JSON).setRestOperations(halRestTemplate);
+    }
+
+    /**
+     * Runs a lookup in core through the lookup circuit breaker and bulkhead, held to CORE_LOOKUP_DEADLINE_MILLIS
+     */
+    private <T> T lookup(Supplier<T> call) {
+        return coreCallGuard.call(CoreCallGuard.Operation.LOOKUP,
+                () -> Deadlines.within(Duration.ofMillis(config.getCoreLookupDeadlineMillis()), call));
     }
 
 
     /**
      * first looks in a cache of envelope IDs to envelope references, retrieves envelope info from the core API
-     * when there's a cache miss
+     * when there's a cache miss. Concurrent misses for the same envelope share a single retrieval.
      *
      * @param envelopeId
      * @return
      */
     private SubmissionEnvelopeReference envelopeReferenceFromEnvelopeId(String envelopeId) {
-        Optional<SubmissionEnvelopeReference> envelopeReferenceOptional = Optional.ofNullable(envelopeReferenceCache.get(envelopeId));
+        return unlessKnownMissing(envelopeId, () -> envelopeReferenceCache.get(envelopeId, id -> lookup(() -> envelopeReferenceFromEnvelopeUri(
+                URI.create(config.getIngestApiUri().toString() + submissionEnvelopesPath + "/" + id)))));
+    }
+
+    /**
+     * Remembers that core has no such envelope, so lookups and state updates for its ID or UUID get a 404 without
+     * asking core until MISSING_ENVELOPE_CACHE_TTL_SECONDS have passed
+     */
+    public void markEnvelopeMissing(SubmissionEnvelopeReference envelopeReference) {
+        markMissing(envelopeReference.getId());
+        markMissing(envelopeReference.getUuid());
+        envelopeReferenceCache.invalidate(envelopeReference.getId());
+        envelopeStateCache.invalidate(envelopeReference.getId());
+        envelopeStateUpdateLinkCache.invalidate(envelopeReference.getId());
+    }
 
+    /**
+     * Forgets that an envelope was missing, e.g. when core announces that it has been created
+     */
+    public void forgetMissingEnvelope(SubmissionEnvelopeReference envelopeReference) {
+        if (envelopeReference.getId() != null) {
+            missingEnvelopeCache.invalidate(envelopeReference.getId());
+        }
+        if (envelopeReference.getUuid() != null) {
+            missingEnvelopeCache.invalidate(envelopeReference.getUuid());
+        }
+    }
+
+    void markMissing(String envelopeIdOrUuid) {
+        if (envelopeIdOrUuid != null) {
+            missingEnvelopeCache.put(envelopeIdOrUuid, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Answers with a 404 for an envelope known to be missing, and remembers the envelope as missing when core answers
+     * the call with a 404
+     */
+    private <T> T unlessKnownMissing(String envelopeIdOrUuid, Supplier<T> call) {
+        checkNotKnownMissing(envelopeIdOrUuid);
+        try {
+            return call.get();
+        } catch (HttpClientErrorException.NotFound e) {
+            markMissing(envelopeIdOrUuid);
+            throw e;
+        }
+    }
 
-        if (envelopeReferenceOptional.isPresent()) {
-            return envelopeReferenceOptional.get();
-        } else {
-            SubmissionEnvelopeReference envelopeReference = envelopeReferenceFromEnvelopeUri(URI.create(config.getIngestApiUri().toString() + submissionEnvelopesPath + "/" + envelopeId));
-            envelopeReferenceCache.put(envelopeId, envelopeReference);
-            return envelopeReference;
+    void checkNotKnownMissing(String envelopeIdOrUuid) {
+        if (envelopeIdOrUuid != null && missingEnvelopeCache.getIfPresent(envelopeIdOrUuid) != null) {
+            throw HttpClientErrorException.create(HttpStatus.NOT_FOUND,
+                    String.format("Envelope %s is known to be missing", envelopeIdOrUuid),
+                    new HttpHeaders(), new byte[0], null);
         }
     }
 
+    /**
+     * An envelope's self link is its own URI, so the envelope is read with a single GET rather than by following it
+     */
     private SubmissionEnvelopeReference envelopeReferenceFromEnvelopeUri(URI envelopeUri) {
-        JsonNode envelopeJson = halTraverserOn(envelopeUri).follow("self")
-                .toObject(JsonNode.class);
-        String envelopeUuid = envelopeJson.at(JsonPointer.valueOf("/uuid/uuid")).asText();
+        EnvelopeFields envelopeFields = envelopeFieldsFrom(envelopeUri, HttpMethod.GET);
         String envelopeId = extractIdFromSubmissionEnvelopeURI(envelopeUri);
         URI envelopeCallbackLocation = extractCallbackUriFromSubmissionEnvelopeUri(envelopeUri);
-        String state = envelopeJson.get("submissionState").asText();
-        return new SubmissionEnvelopeReference(envelopeId, envelopeUuid, SubmissionState.fromString(state), envelopeCallbackLocation);
+        cacheStateUpdateLinks(envelopeId, envelopeFields.getLinks());
+        return new SubmissionEnvelopeReference(envelopeId, envelopeFields.getUuid(),
+                SubmissionState.fromString(envelopeFields.getSubmissionState()), envelopeCallbackLocation);
+    }
+
+    /**
+     * Sends a HAL request and reads the envelope fields straight off the response stream, without binding the whole
+     * envelope document. Error responses are raised by the rest template as usual.
+     */
+    private EnvelopeFields envelopeFieldsFrom(URI uri, HttpMethod method) {
+        RequestCallback halRequest = restTemplate.httpEntityCallback(halRequestEntityFor(Collections.emptyMap()));
+        ResponseExtractor<EnvelopeFields> envelopeFieldsExtractor = response -> EnvelopeFields.read(response.getBody());
+        return restTemplate.execute(uri, method, halRequest, envelopeFieldsExtractor);
     }
 
     private URI uriFor(String uriString) {
@@ -185,12 +434,12 @@ public class IngestApiClient implements InitializingBean {
         }
     }
 
-    private String extractIdFromSubmissionEnvelopeURI(URI envelopeURI) {
+    String extractIdFromSubmissionEnvelopeURI(URI envelopeURI) {
         String envelopeURIPath = envelopeURI.getPath();
         return envelopeURIPath.substring(envelopeURIPath.lastIndexOf('/') + 1);
     }
 
-    private URI extractCallbackUriFromSubmissionEnvelopeUri(URI envelopeUri) {
+    URI extractCallbackUriFromSubmissionEnvelopeUri(URI envelopeUri) {
         return URI.create(envelopeUri.getPath());
     }
 
@@ -199,7 +448,7 @@ public class IngestApiClient implements InitializingBean {
         headers.setAccept(Collections.singletonList(MediaTypes.HAL_JSON));
         headers.setContentType(MediaTypes.HAL_JSON);
         try {
-            return new HttpEntity<>(new ObjectMapper().writeValueAsString(entity), headers);
+            return new HttpEntity<>(ObjectMappers.shared().writeValueAsString(entity), headers);
         } catch (IOException e) {
             throw new RuntimeException("problem getting hal request for entity", e);
         }
@@ -0,0 +1,180 @@
+package org.humancellatlas.ingest.client.util;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.exception.CoreUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A circuit breaker and a bulkhead for each kind of call to core, so a sick core is left alone for a while instead of
+ * holding every worker thread, and state pushes can't take the concurrency that envelope lookups need.
+ * <p>
+ * A breaker opens when, over the last CORE_BREAKER_WINDOW_SIZE calls, the share of failed calls reaches
+ * CORE_BREAKER_FAILURE_RATE_PERCENT or the share of calls slower than CORE_BREAKER_SLOW_CALL_MILLIS reaches
+ * CORE_BREAKER_SLOW_CALL_RATE_PERCENT. After CORE_BREAKER_OPEN_MILLIS it lets CORE_BREAKER_HALF_OPEN_CALLS trial calls
+ * through to decide whether to close again. Client errors such as a 404 are answers from a healthy core, so they don't
+ * count as failures.
+ * <p>
+ * Calls that are turned away fail straight away with a {@link CoreUnavailableException}. That includes calls finding
+ * the bulkhead full: they only wait CORE_BULKHEAD_WAIT_MILLIS for room, none by default, so a busy core sheds load
+ * instead of parking worker threads.
+ */
+public class CoreCallGuard {
+    public enum Operation {
+        LOOKUP, STATE_UPDATE;
+
+        public String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Map<Operation, Guard> guards = new EnumMap<>(Operation.class);
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    public CoreCallGuard(ConfigurationService config) {
+        CircuitBreakerConfig circuitBreakerConfig = CircuitBreakerConfig.custom()
+                .slidingWindowType(CircuitBreakerConfig.SlidingWindowType.COUNT_BASED)
+                .slidingWindowSize(config.getCoreBreakerWindowSize())
+                .minimumNumberOfCalls(config.getCoreBreakerMinimumCalls())
+                .failureRateThreshold(config.getCoreBreakerFailureRatePercent())
+                .slowCallRateThreshold(config.getCoreBreakerSlowCallRatePercent())
+                .slowCallDurationThreshold(Duration.ofMillis(config.getCoreBreakerSlowCallMillis()))
+                .waitDurationInOpenState(Duration.ofMillis(config.getCoreBreakerOpenMillis()))
+                .permittedNumberOfCallsInHalfOpenState(config.getCoreBreakerHalfOpenCalls())
+                .ignoreExceptions(HttpClientErrorException.class, BulkheadFullException.class)
+                .build();
+
+        guards.put(Operation.LOOKUP, new Guard(Operation.LOOKUP, circuitBreakerConfig,
+                config.getCoreLookupMaxConcurrent(), config.getCoreBulkheadWaitMillis()));
+        guards.put(Operation.STATE_UPDATE, new Guard(Operation.STATE_UPDATE, circuitBreakerConfig,
+                config.getCoreUpdateMaxConcurrent(), config.getCoreBulkheadWaitMillis()));
+    }
+
+    public <T> T call(Operation operation, Supplier<T> call) {
+        Guard guard = guards.get(operation);
+        // the breaker is asked first, so an open breaker turns calls away without waiting for room in the bulkhead
+        Supplier<T> guarded = CircuitBreaker.decorateSupplier(guard.circuitBreaker,
+                Bulkhead.decorateSupplier(guard.bulkhead, call));
+        try {
+            return guarded.get();
+        } catch (CallNotPermittedException e) {
+            throw breakerRejection(operation, guard, e);
+        } catch (BulkheadFullException e) {
+            throw bulkheadRejection(operation, guard, e);
+        }
+    }
+
+    /**
+     * Guards a call that answers with a future, holding its bulkhead permit and timing it for the breaker until the
+     * future completes. Calls turned away get a future failed with a {@link CoreUnavailableException}. They never wait
+     * for room in the bulkhead, since waiting would hold the caller's thread.
+     */
+    public <T> CompletableFuture<T> callAsync(Operation operation, Supplier<CompletableFuture<T>> call) {
+        Guard guard = guards.get(operation);
+        if (!guard.circuitBreaker.tryAcquirePermission()) {
+            return CompletableFuture.failedFuture(breakerRejection(operation, guard,
+                    CallNotPermittedException.createCallNotPermittedException(guard.circuitBreaker)));
+        }
+        if (!guard.bulkhead.tryAcquirePermission()) {
+            // the call is never made, so the breaker gets its permission back
+            guard.circuitBreaker.releasePermission();
+            return CompletableFuture.failedFuture(bulkheadRejection(operation, guard,
+                    BulkheadFullException.createBulkheadFullException(guard.bulkhead)));
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.whenComplete((value, failure) -> {
+            long durationNanos = System.nanoTime() - start;
+            guard.bulkhead.onComplete();
+            if (failure == null) {
+                guard.circuitBreaker.onSuccess(durationNanos, TimeUnit.NANOSECONDS);
+            } else {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                guard.circuitBreaker.onError(durationNanos, TimeUnit.NANOSECONDS, cause);
+            }
+        });
+    }
+
+    private CoreUnavailableException breakerRejection(Operation operation, Guard guard, CallNotPermittedException e) {
+        guard.breakerRejections.increment();
+        return new CoreUnavailableException(String.format("The circuit breaker for core %s calls is %s",
+                operation.tag(), guard.circuitBreaker.getState()), e);
+    }
+
+    private CoreUnavailableException bulkheadRejection(Operation operation, Guard guard, BulkheadFullException e) {
+        guard.bulkheadRejections.increment();
+        return new CoreUnavailableException(String.format("Too many core %s calls are already in flight",
+                operation.tag()), e);
+    }
+
+    public CircuitBreaker getCircuitBreaker(Operation operation) {
+        return guards.get(operation).circuitBreaker;
+    }
+
+    public Bulkhead getBulkhead(Operation operation) {
+        return guards.get(operation).bulkhead;
+    }
+
+    private class Guard {
+        private final CircuitBreaker circuitBreaker;
+        private final Bulkhead bulkhead;
+        private final Counter breakerRejections;
+        private final Counter bulkheadRejections;
+
+        Guard(Operation operation, CircuitBreakerConfig circuitBreakerConfig, int maxConcurrentCalls, long maxWaitMillis) {
+            String tag = operation.tag();
+            this.circuitBreaker = CircuitBreaker.of("core-" + tag, circuitBreakerConfig);
+            this.bulkhead = Bulkhead.of("core-" + tag, BulkheadConfig.custom()
+                                                                     .maxConcurrentCalls(maxConcurrentCalls)
+                                                                     .maxWaitDuration(Duration.ofMillis(maxWaitMillis))
+                                                                     .build());
+            circuitBreaker.getEventPublisher().onStateTransition(event ->
+                    log.warn("Circuit breaker for core {} calls went from {} to {}", tag,
+                            event.getStateTransition().getFromState(), event.getStateTransition().getToState()));
+
+            for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+                Gauge.builder("ingestapi.circuitbreaker.state", circuitBreaker, breaker -> breaker.getState() == state ? 1 : 0)
+                     .tag("operation", tag)
+                     .tag("state", state.name().toLowerCase())
+                     .register(Metrics.globalRegistry);
+            }
+            // rates are -1 until the breaker has seen its minimum number of calls
+            Gauge.builder("ingestapi.circuitbreaker.failure.rate", circuitBreaker, breaker -> breaker.getMetrics().getFailureRate())
+                 .tag("operation", tag)
+                 .register(Metrics.globalRegistry);
+            Gauge.builder("ingestapi.circuitbreaker.slow.call.rate", circuitBreaker, breaker -> breaker.getMetrics().getSlowCallRate())
+                 .tag("operation", tag)
+                 .register(Metrics.globalRegistry);
+            Gauge.builder("ingestapi.bulkhead.available", bulkhead, b -> b.getMetrics().getAvailableConcurrentCalls())
+                 .tag("operation", tag)
+                 .register(Metrics.globalRegistry);
+            this.breakerRejections = Metrics.counter("ingestapi.calls.rejected", "operation", tag, "reason", "circuit_open");
+            this.bulkheadRejections = Metrics.counter("ingestapi.calls.rejected", "operation", tag, "reason", "bulkhead_full");
+        }
+    }
+}
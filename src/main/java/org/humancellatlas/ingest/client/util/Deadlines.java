@@ -0,0 +1,48 @@
+package org.humancellatlas.ingest.client.util;
+
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.function.Supplier;
+
+/**
+ * Deadlines for operations against core that take several requests. The deadline applies to the calling thread, and
+ * the {@link PooledRequestFactory} shortens the timeouts of each request made inside the operation to what is left of
+ * it. An operation started inside another keeps the earlier of the two deadlines.
+ */
+public final class Deadlines {
+    private static final ThreadLocal<Long> DEADLINE_NANOS = new ThreadLocal<>();
+
+    private Deadlines() {
+    }
+
+    public static <T> T within(Duration timeout, Supplier<T> operation) {
+        Long enclosingDeadline = DEADLINE_NANOS.get();
+        long deadline = System.nanoTime() + timeout.toNanos();
+        if (enclosingDeadline != null && enclosingDeadline - deadline < 0) {
+            deadline = enclosingDeadline;
+        }
+
+        DEADLINE_NANOS.set(deadline);
+        try {
+            return operation.get();
+        } finally {
+            if (enclosingDeadline != null) {
+                DEADLINE_NANOS.set(enclosingDeadline);
+            } else {
+                DEADLINE_NANOS.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the milliseconds left before the current thread's deadline, if it has one; zero or less once it has
+     * passed
+     */
+    public static OptionalLong remainingMillis() {
+        Long deadline = DEADLINE_NANOS.get();
+        if (deadline == null) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(Duration.ofNanos(deadline - System.nanoTime()).toMillis());
+    }
+}
@@ -0,0 +1,121 @@
+package org.humancellatlas.ingest.client.util;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The few fields of a core envelope document that state tracking uses: {@code submissionState}, {@code uuid.uuid} and
+ * the hrefs of {@code _links}.
+ * <p>
+ * Envelope documents can be large, so they are read with a streaming parser rather than bound to a tree. Everything
+ * else in the document is skipped without being materialised, and parsing stops as soon as all three fields have been
+ * read, leaving the rest of the document unread.
+ */
+public class EnvelopeFields {
+    @Getter
+    private String submissionState;
+    @Getter
+    private String uuid;
+    private final Map<String, String> links = new HashMap<>();
+
+    private EnvelopeFields() {
+    }
+
+    public static EnvelopeFields read(InputStream envelopeJson) throws IOException {
+        try (JsonParser parser = ObjectMappers.shared().getFactory().createParser(envelopeJson)) {
+            return read(parser);
+        }
+    }
+
+    public static EnvelopeFields read(byte[] envelopeJson) throws IOException {
+        try (JsonParser parser = ObjectMappers.shared().getFactory().createParser(envelopeJson)) {
+            return read(parser);
+        }
+    }
+
+    static EnvelopeFields read(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an envelope document");
+        }
+
+        EnvelopeFields fields = new EnvelopeFields();
+        boolean stateRead = false;
+        boolean uuidRead = false;
+        boolean linksRead = false;
+        while (!(stateRead && uuidRead && linksRead) && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (fieldName) {
+                case "submissionState":
+                    fields.submissionState = value.isScalarValue() ? parser.getValueAsString() : null;
+                    stateRead = true;
+                    break;
+                case "uuid":
+                    fields.uuid = value == JsonToken.START_OBJECT ? readField(parser, "uuid") : null;
+                    uuidRead = true;
+                    break;
+                case "_links":
+                    if (value == JsonToken.START_OBJECT) {
+                        readLinks(parser, fields.links);
+                    }
+                    linksRead = true;
+                    break;
+                default:
+                    break;
+            }
+            // a no-op once a value has been read, otherwise steps over the whole value
+            parser.skipChildren();
+        }
+        return fields;
+    }
+
+    /**
+     * @return the href of each link, by rel
+     */
+    public Map<String, String> getLinks() {
+        return Collections.unmodifiableMap(links);
+    }
+
+    public String getSelfHref() {
+        return links.get("self");
+    }
+
+    /**
+     * Reads a scalar field of the object the parser is at, leaving the parser on the end of the object
+     */
+    private static String readField(JsonParser parser, String wantedFieldName) throws IOException {
+        String wanted = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (fieldName.equals(wantedFieldName) && value.isScalarValue()) {
+                wanted = parser.getValueAsString();
+            }
+            parser.skipChildren();
+        }
+        return wanted;
+    }
+
+    private static void readLinks(JsonParser parser, Map<String, String> links) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String rel = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                String href = readField(parser, "href");
+                if (href != null) {
+                    links.put(rel, href);
+                }
+            } else {
+                // a rel with several links, none of which state tracking follows
+                parser.skipChildren();
+            }
+        }
+    }
+}
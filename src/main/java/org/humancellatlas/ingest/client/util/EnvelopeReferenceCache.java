@@ -1,22 +1,110 @@
 package org.humancellatlas.ingest.client.util;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 
-import java.util.LinkedHashMap;
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * Created by rolando on 19/03/2018.
+ * <p>
+ * A bounded, thread-safe cache of envelope IDs to envelope references. Entries expire a fixed time after they were
+ * loaded so the state they carry does not drift too far from core.
+ * <p>
+ * Concurrent misses for the same envelope ID are coalesced: the first caller loads the reference and the others wait
+ * for its result. Loading happens on the caller's thread and outside the cache's own locks, so a slow request to core
+ * does not hold up lookups of other envelopes.
  */
-public class EnvelopeReferenceCache extends LinkedHashMap<String, SubmissionEnvelopeReference> {
-    private int capacity;
+public class EnvelopeReferenceCache {
+    private final Cache<String, SubmissionEnvelopeReference> cache;
+    private final Map<String, CompletableFuture<SubmissionEnvelopeReference>> loads = new ConcurrentHashMap<>();
 
-    public EnvelopeReferenceCache(int capacity) {
-        super(capacity+1, 1.0f, true);
-        this.capacity = capacity;
+    public EnvelopeReferenceCache(long maximumSize, Duration expireAfterWrite) {
+        this.cache = Caffeine.newBuilder()
+                             .maximumSize(maximumSize)
+                             .expireAfterWrite(expireAfterWrite)
+                             .recordStats()
+                             .build();
     }
 
-    protected boolean removeEldestEntry(Map.Entry<String, SubmissionEnvelopeReference> eldestEntry) {
-        return (size() > this.capacity);
+    /**
+     * @param envelopeId the ID of the envelope
+     * @param loader     loads the reference on a miss
+     * @return the cached reference, or the reference loaded by this or a concurrent caller
+     */
+    public SubmissionEnvelopeReference get(String envelopeId, Function<String, SubmissionEnvelopeReference> loader) {
+        SubmissionEnvelopeReference cached = cache.getIfPresent(envelopeId);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<SubmissionEnvelopeReference> load = new CompletableFuture<>();
+        CompletableFuture<SubmissionEnvelopeReference> inProgress = loads.putIfAbsent(envelopeId, load);
+        if (inProgress != null) {
+            return join(inProgress);
+        }
+
+        try {
+            // a concurrent load may have finished between the lookup and claiming the load
+            SubmissionEnvelopeReference envelopeReference = cache.asMap().get(envelopeId);
+            if (envelopeReference == null) {
+                envelopeReference = loader.apply(envelopeId);
+                cache.put(envelopeId, envelopeReference);
+            }
+            load.complete(envelopeReference);
+            return envelopeReference;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(envelopeId, load);
+        }
+    }
+
+    public SubmissionEnvelopeReference getIfPresent(String envelopeId) {
+        return cache.getIfPresent(envelopeId);
+    }
+
+    public void put(String envelopeId, SubmissionEnvelopeReference envelopeReference) {
+        cache.put(envelopeId, envelopeReference);
+    }
+
+    public void invalidate(String envelopeId) {
+        cache.invalidate(envelopeId);
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Publishes the size and hit, miss and eviction counts of this cache
+     */
+    public void bindTo(MeterRegistry registry, String cacheName) {
+        CaffeineCacheMetrics.monitor(registry, cache, cacheName);
+    }
+
+    private static SubmissionEnvelopeReference join(CompletableFuture<SubmissionEnvelopeReference> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
     }
 }
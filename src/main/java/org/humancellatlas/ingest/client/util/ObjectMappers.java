@@ -0,0 +1,20 @@
+package org.humancellatlas.ingest.client.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The {@link ObjectMapper} shared by the core API clients. A configured mapper is thread-safe, and building one per
+ * request throws away the serializers and deserializers it caches.
+ */
+public final class ObjectMappers {
+    private static final ObjectMapper SHARED = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private ObjectMappers() {
+    }
+
+    public static ObjectMapper shared() {
+        return SHARED;
+    }
+}
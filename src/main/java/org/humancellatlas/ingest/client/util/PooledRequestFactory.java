@@ -0,0 +1,124 @@
+package org.humancellatlas.ingest.client.util;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request factory for calls to core over a pool of keep-alive connections.
+ * <p>
+ * The pool holds up to CORE_POOL_MAX_TOTAL connections, and up to CORE_POOL_MAX_PER_ROUTE to any one host. A
+ * connection is kept alive for as long as core asks, or CORE_KEEP_ALIVE_SECONDS if it doesn't say, and is closed
+ * once it has been idle for CORE_POOL_IDLE_EVICT_SECONDS. Requests wait at most CORE_POOL_LEASE_TIMEOUT_MILLIS for a
+ * connection, CORE_CONNECT_TIMEOUT_MILLIS to connect and CORE_READ_TIMEOUT_MILLIS between packets of the response,
+ * and no longer than the operation's {@link Deadlines deadline}.
+ */
+public class PooledRequestFactory extends HttpComponentsClientHttpRequestFactory {
+    private final RequestConfig defaultRequestConfig;
+
+    public PooledRequestFactory(ConfigurationService config) {
+        Timer leaseWaits = Metrics.timer("ingestapi.pool.lease.wait");
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager() {
+            @Override
+            public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+                ConnectionRequest connectionRequest = super.requestConnection(route, state);
+                return new ConnectionRequest() {
+                    @Override
+                    public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+                            throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                        long start = System.nanoTime();
+                        try {
+                            return connectionRequest.get(timeout, timeUnit);
+                        } finally {
+                            leaseWaits.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        }
+                    }
+
+                    @Override
+                    public boolean cancel() {
+                        return connectionRequest.cancel();
+                    }
+                };
+            }
+        };
+        connectionManager.setMaxTotal(config.getCorePoolMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(config.getCorePoolMaxPerRoute());
+        // a connection that has sat idle may have been closed by core, so check it before reuse
+        connectionManager.setValidateAfterInactivity(2000);
+
+        this.defaultRequestConfig = RequestConfig.custom()
+                                                 .setConnectionRequestTimeout((int) config.getCorePoolLeaseTimeoutMillis())
+                                                 .setConnectTimeout((int) config.getCoreConnectTimeoutMillis())
+                                                 .setSocketTimeout((int) config.getCoreReadTimeoutMillis())
+                                                 .build();
+
+        long defaultKeepAliveMillis = TimeUnit.SECONDS.toMillis(config.getCoreKeepAliveSeconds());
+        setHttpClient(HttpClients.custom()
+                                 .setConnectionManager(connectionManager)
+                                 .setDefaultRequestConfig(defaultRequestConfig)
+                                 .setKeepAliveStrategy((response, context) -> {
+                                     long keepAliveMillis = DefaultConnectionKeepAliveStrategy.INSTANCE
+                                             .getKeepAliveDuration(response, context);
+                                     return keepAliveMillis > 0 ? keepAliveMillis : defaultKeepAliveMillis;
+                                 })
+                                 .evictExpiredConnections()
+                                 .evictIdleConnections(config.getCorePoolIdleEvictSeconds(), TimeUnit.SECONDS)
+                                 .build());
+
+        Gauge.builder("ingestapi.pool.connections", connectionManager, cm -> cm.getTotalStats().getLeased())
+             .tag("state", "leased")
+             .register(Metrics.globalRegistry);
+        Gauge.builder("ingestapi.pool.connections", connectionManager, cm -> cm.getTotalStats().getAvailable())
+             .tag("state", "available")
+             .register(Metrics.globalRegistry);
+        Gauge.builder("ingestapi.pool.connections.max", connectionManager, cm -> cm.getTotalStats().getMax())
+             .register(Metrics.globalRegistry);
+        Gauge.builder("ingestapi.pool.pending", connectionManager, cm -> cm.getTotalStats().getPending())
+             .register(Metrics.globalRegistry);
+    }
+
+    @Override
+    protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(Deadlines.remainingMillis().isPresent()
+                ? requestConfigWithin(Deadlines.remainingMillis().getAsLong(), uri)
+                : defaultRequestConfig);
+        return context;
+    }
+
+    private RequestConfig requestConfigWithin(long remainingMillis, URI uri) {
+        if (remainingMillis <= 0) {
+            throw new ResourceAccessException(String.format("Deadline passed before the request to %s", uri));
+        }
+
+        int remaining = (int) Math.min(Integer.MAX_VALUE, remainingMillis);
+        return RequestConfig.copy(defaultRequestConfig)
+                            .setConnectionRequestTimeout(within(defaultRequestConfig.getConnectionRequestTimeout(), remaining))
+                            .setConnectTimeout(within(defaultRequestConfig.getConnectTimeout(), remaining))
+                            .setSocketTimeout(within(defaultRequestConfig.getSocketTimeout(), remaining))
+                            .build();
+    }
+
+    private static int within(int timeoutMillis, int remainingMillis) {
+        // a timeout of zero or less means none
+        return timeoutMillis > 0 ? Math.min(timeoutMillis, remainingMillis) : remainingMillis;
+    }
+}
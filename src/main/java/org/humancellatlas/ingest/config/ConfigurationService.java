@@ -10,6 +10,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.net.URI;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -30,6 +31,92 @@ public class ConfigurationService implements InitializingBean {
     private String redisPortString;
     @Value("${NUM_HANDLER_THREADS:15}")
     private String numHandlerThreadsString;
+    @Value("${PASSIVATION_IDLE_MINUTES:30}")
+    private String passivationIdleMinutesString;
+    @Value("${REDIS_PERSIST_BATCH_SIZE:500}")
+    private String redisPersistBatchSizeString;
+    @Value("${AUTO_LOAD_PARALLELISM:8}")
+    private String autoLoadParallelismString;
+    @Value("${AUTO_LOAD_MODE:eager}")
+    private String autoLoadModeString;
+    @Value("${ENVELOPE_CACHE_SIZE:10000}")
+    private String envelopeCacheSizeString;
+    @Value("${ENVELOPE_CACHE_TTL_SECONDS:300}")
+    private String envelopeCacheTtlSecondsString;
+    @Value("${ENVELOPE_STATE_CACHE_TTL_SECONDS:10}")
+    private String envelopeStateCacheTtlSecondsString;
+    @Value("${MISSING_ENVELOPE_CACHE_SIZE:10000}")
+    private String missingEnvelopeCacheSizeString;
+    @Value("${MISSING_ENVELOPE_CACHE_TTL_SECONDS:600}")
+    private String missingEnvelopeCacheTtlSecondsString;
+    @Value("${WORKER_QUEUE_CAPACITY:1000}")
+    private String workerQueueCapacityString;
+    @Value("${WORKER_QUEUE_OFFER_TIMEOUT_MILLIS:5000}")
+    private String workerQueueOfferTimeoutMillisString;
+    @Value("${METADATA_BATCH_SIZE:1}")
+    private String metadataBatchSizeString;
+    @Value("${METADATA_BATCH_MAX_DELAY_MILLIS:50}")
+    private String metadataBatchMaxDelayMillisString;
+    @Value("${AMQP_MANUAL_ACK:false}")
+    private String amqpManualAckString;
+    @Value("${AMQP_ACK_BATCH_SIZE:50}")
+    private String amqpAckBatchSizeString;
+    @Value("${UPDATER_PARALLELISM:8}")
+    private String updaterParallelismString;
+    @Value("${UPDATER_RATE_LIMIT_PER_SECOND:50}")
+    private String updaterRateLimitPerSecondString;
+    @Value("${UPDATER_MAX_RETRIES:10}")
+    private String updaterMaxRetriesString;
+    @Value("${UPDATER_RETRY_BASE_DELAY_MILLIS:1000}")
+    private String updaterRetryBaseDelayMillisString;
+    @Value("${UPDATER_RETRY_MAX_DELAY_MILLIS:300000}")
+    private String updaterRetryMaxDelayMillisString;
+    @Value("${UPDATER_RETRY_FILE:${java.io.tmpdir}/update-retries.json}")
+    private String updaterRetryFileString;
+    @Value("${UPDATER_FLUSH_MODE:poll}")
+    private String updaterFlushModeString;
+    @Value("${UPDATER_COALESCE_MILLIS:100}")
+    private String updaterCoalesceMillisString;
+    @Value("${CORE_POOL_MAX_TOTAL:50}")
+    private String corePoolMaxTotalString;
+    @Value("${CORE_POOL_MAX_PER_ROUTE:20}")
+    private String corePoolMaxPerRouteString;
+    @Value("${CORE_POOL_LEASE_TIMEOUT_MILLIS:5000}")
+    private String corePoolLeaseTimeoutMillisString;
+    @Value("${CORE_POOL_IDLE_EVICT_SECONDS:30}")
+    private String corePoolIdleEvictSecondsString;
+    @Value("${CORE_KEEP_ALIVE_SECONDS:60}")
+    private String coreKeepAliveSecondsString;
+    @Value("${CORE_CONNECT_TIMEOUT_MILLIS:5000}")
+    private String coreConnectTimeoutMillisString;
+    @Value("${CORE_READ_TIMEOUT_MILLIS:30000}")
+    private String coreReadTimeoutMillisString;
+    @Value("${CORE_LOOKUP_DEADLINE_MILLIS:30000}")
+    private String coreLookupDeadlineMillisString;
+    @Value("${CORE_UPDATE_DEADLINE_MILLIS:60000}")
+    private String coreUpdateDeadlineMillisString;
+    @Value("${CORE_BREAKER_FAILURE_RATE_PERCENT:50}")
+    private String coreBreakerFailureRatePercentString;
+    @Value("${CORE_BREAKER_SLOW_CALL_RATE_PERCENT:80}")
+    private String coreBreakerSlowCallRatePercentString;
+    @Value("${CORE_BREAKER_SLOW_CALL_MILLIS:10000}")
+    private String coreBreakerSlowCallMillisString;
+    @Value("${CORE_BREAKER_WINDOW_SIZE:50}")
+    private String coreBreakerWindowSizeString;
+    @Value("${CORE_BREAKER_MINIMUM_CALLS:20}")
+    private String coreBreakerMinimumCallsString;
+    @Value("${CORE_BREAKER_OPEN_MILLIS:30000}")
+    private String coreBreakerOpenMillisString;
+    @Value("${CORE_BREAKER_HALF_OPEN_CALLS:5}")
+    private String coreBreakerHalfOpenCallsString;
+    @Value("${CORE_LOOKUP_MAX_CONCURRENT:16}")
+    private String coreLookupMaxConcurrentString;
+    @Value("${CORE_UPDATE_MAX_CONCURRENT:8}")
+    private String coreUpdateMaxConcurrentString;
+    @Value("${CORE_BULKHEAD_WAIT_MILLIS:0}")
+    private String coreBulkheadWaitMillisString;
+    @Value("${CORE_UNAVAILABLE_REQUEUE_DELAY_MILLIS:5000}")
+    private String coreUnavailableRequeueDelayMillisString;
 
     @Getter @Setter private URI ingestApiUri;
     @Getter @Setter private int updaterPeriodSeconds;
@@ -37,6 +124,49 @@ public class ConfigurationService implements InitializingBean {
     @Getter @Setter private int redisPort;
     @Getter @Setter private int numHandlerThreads;
     @Getter @Setter private Map<SubmissionState, String> stateUpdateRels;
+    @Getter @Setter private int passivationIdleMinutes = 30;
+    @Getter @Setter private int redisPersistBatchSize = 500;
+    @Getter @Setter private int autoLoadParallelism = 8;
+    @Getter @Setter private String autoLoadMode = "eager";
+    @Getter @Setter private int envelopeCacheSize = 10000;
+    @Getter @Setter private int envelopeCacheTtlSeconds = 300;
+    @Getter @Setter private int envelopeStateCacheTtlSeconds = 10;
+    @Getter @Setter private int missingEnvelopeCacheSize = 10000;
+    @Getter @Setter private int missingEnvelopeCacheTtlSeconds = 600;
+    @Getter @Setter private int workerQueueCapacity = 1000;
+    @Getter @Setter private long workerQueueOfferTimeoutMillis = 5000;
+    @Getter @Setter private int metadataBatchSize = 1;
+    @Getter @Setter private long metadataBatchMaxDelayMillis = 50;
+    @Getter @Setter private boolean amqpManualAck = false;
+    @Getter @Setter private int amqpAckBatchSize = 50;
+    @Getter @Setter private int updaterParallelism = 8;
+    @Getter @Setter private double updaterRateLimitPerSecond = 50;
+    @Getter @Setter private int updaterMaxRetries = 10;
+    @Getter @Setter private long updaterRetryBaseDelayMillis = 1000;
+    @Getter @Setter private long updaterRetryMaxDelayMillis = 300000;
+    @Getter @Setter private String updaterRetryFile = Paths.get(System.getProperty("java.io.tmpdir"), "update-retries.json").toString();
+    @Getter @Setter private String updaterFlushMode = "poll";
+    @Getter @Setter private long updaterCoalesceMillis = 100;
+    @Getter @Setter private int corePoolMaxTotal = 50;
+    @Getter @Setter private int corePoolMaxPerRoute = 20;
+    @Getter @Setter private long corePoolLeaseTimeoutMillis = 5000;
+    @Getter @Setter private int corePoolIdleEvictSeconds = 30;
+    @Getter @Setter private int coreKeepAliveSeconds = 60;
+    @Getter @Setter private long coreConnectTimeoutMillis = 5000;
+    @Getter @Setter private long coreReadTimeoutMillis = 30000;
+    @Getter @Setter private long coreLookupDeadlineMillis = 30000;
+    @Getter @Setter private long coreUpdateDeadlineMillis = 60000;
+    @Getter @Setter private float coreBreakerFailureRatePercent = 50f;
+    @Getter @Setter private float coreBreakerSlowCallRatePercent = 80f;
+    @Getter @Setter private long coreBreakerSlowCallMillis = 10000;
+    @Getter @Setter private int coreBreakerWindowSize = 50;
+    @Getter @Setter private int coreBreakerMinimumCalls = 20;
+    @Getter @Setter private long coreBreakerOpenMillis = 30000;
+    @Getter @Setter private int coreBreakerHalfOpenCalls = 5;
+    @Getter @Setter private int coreLookupMaxConcurrent = 16;
+    @Getter @Setter private int coreUpdateMaxConcurrent = 8;
+    @Getter @Setter private long coreBulkheadWaitMillis = 0;
+    @Getter @Setter private long coreUnavailableRequeueDelayMillis = 5000;
 
     private void init() {
         try {
@@ -45,6 +175,49 @@ public class ConfigurationService implements InitializingBean {
             this.redisHost = redisHostString;
             this.redisPort = Integer.parseInt(redisPortString);
             this.numHandlerThreads = Integer.parseInt(numHandlerThreadsString);
+            this.passivationIdleMinutes = Integer.parseInt(passivationIdleMinutesString);
+            this.redisPersistBatchSize = Integer.parseInt(redisPersistBatchSizeString);
+            this.autoLoadParallelism = Integer.parseInt(autoLoadParallelismString);
+            this.autoLoadMode = autoLoadModeString;
+            this.envelopeCacheSize = Integer.parseInt(envelopeCacheSizeString);
+            this.envelopeCacheTtlSeconds = Integer.parseInt(envelopeCacheTtlSecondsString);
+            this.envelopeStateCacheTtlSeconds = Integer.parseInt(envelopeStateCacheTtlSecondsString);
+            this.missingEnvelopeCacheSize = Integer.parseInt(missingEnvelopeCacheSizeString);
+            this.missingEnvelopeCacheTtlSeconds = Integer.parseInt(missingEnvelopeCacheTtlSecondsString);
+            this.workerQueueCapacity = Integer.parseInt(workerQueueCapacityString);
+            this.workerQueueOfferTimeoutMillis = Long.parseLong(workerQueueOfferTimeoutMillisString);
+            this.metadataBatchSize = Integer.parseInt(metadataBatchSizeString);
+            this.metadataBatchMaxDelayMillis = Long.parseLong(metadataBatchMaxDelayMillisString);
+            this.amqpManualAck = Boolean.parseBoolean(amqpManualAckString);
+            this.amqpAckBatchSize = Integer.parseInt(amqpAckBatchSizeString);
+            this.updaterParallelism = Integer.parseInt(updaterParallelismString);
+            this.updaterRateLimitPerSecond = Double.parseDouble(updaterRateLimitPerSecondString);
+            this.updaterMaxRetries = Integer.parseInt(updaterMaxRetriesString);
+            this.updaterRetryBaseDelayMillis = Long.parseLong(updaterRetryBaseDelayMillisString);
+            this.updaterRetryMaxDelayMillis = Long.parseLong(updaterRetryMaxDelayMillisString);
+            this.updaterRetryFile = updaterRetryFileString;
+            this.updaterFlushMode = updaterFlushModeString;
+            this.updaterCoalesceMillis = Long.parseLong(updaterCoalesceMillisString);
+            this.corePoolMaxTotal = Integer.parseInt(corePoolMaxTotalString);
+            this.corePoolMaxPerRoute = Integer.parseInt(corePoolMaxPerRouteString);
+            this.corePoolLeaseTimeoutMillis = Long.parseLong(corePoolLeaseTimeoutMillisString);
+            this.corePoolIdleEvictSeconds = Integer.parseInt(corePoolIdleEvictSecondsString);
+            this.coreKeepAliveSeconds = Integer.parseInt(coreKeepAliveSecondsString);
+            this.coreConnectTimeoutMillis = Long.parseLong(coreConnectTimeoutMillisString);
+            this.coreReadTimeoutMillis = Long.parseLong(coreReadTimeoutMillisString);
+            this.coreLookupDeadlineMillis = Long.parseLong(coreLookupDeadlineMillisString);
+            this.coreUpdateDeadlineMillis = Long.parseLong(coreUpdateDeadlineMillisString);
+            this.coreBreakerFailureRatePercent = Float.parseFloat(coreBreakerFailureRatePercentString);
+            this.coreBreakerSlowCallRatePercent = Float.parseFloat(coreBreakerSlowCallRatePercentString);
+            this.coreBreakerSlowCallMillis = Long.parseLong(coreBreakerSlowCallMillisString);
+            this.coreBreakerWindowSize = Integer.parseInt(coreBreakerWindowSizeString);
+            this.coreBreakerMinimumCalls = Integer.parseInt(coreBreakerMinimumCallsString);
+            this.coreBreakerOpenMillis = Long.parseLong(coreBreakerOpenMillisString);
+            this.coreBreakerHalfOpenCalls = Integer.parseInt(coreBreakerHalfOpenCallsString);
+            this.coreLookupMaxConcurrent = Integer.parseInt(coreLookupMaxConcurrentString);
+            this.coreUpdateMaxConcurrent = Integer.parseInt(coreUpdateMaxConcurrentString);
+            this.coreBulkheadWaitMillis = Long.parseLong(coreBulkheadWaitMillisString);
+            this.coreUnavailableRequeueDelayMillis = Long.parseLong(coreUnavailableRequeueDelayMillisString);
 
             // map of submissions states to the rels of the links for transitioning to that state
             this.stateUpdateRels = stateUpdateRelsMap();
@@ -0,0 +1,17 @@
+package org.humancellatlas.ingest.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown without calling core when core is being given a rest: the circuit breaker for the kind of call is open, or
+ * too many calls of that kind are already in flight. The work was not at fault, so AMQP deliveries that fail with this
+ * are always requeued and HTTP callers get a 503 and should retry.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class CoreUnavailableException extends RuntimeException {
+
+    public CoreUnavailableException(String message, Throwable e) {
+        super(message, e);
+    }
+}
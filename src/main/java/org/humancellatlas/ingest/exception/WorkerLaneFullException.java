@@ -0,0 +1,20 @@
+package org.humancellatlas.ingest.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown when a message can't be handed to a worker lane because the lane's queue stayed full. AMQP listeners that
+ * throw this reject the message so the broker redelivers it; HTTP callers get a 503 and should retry.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class WorkerLaneFullException extends RuntimeException {
+
+    public WorkerLaneFullException(String message) {
+        super(message);
+    }
+
+    public WorkerLaneFullException(String message, Throwable e) {
+        super(message, e);
+    }
+}
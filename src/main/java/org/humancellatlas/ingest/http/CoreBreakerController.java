@@ -0,0 +1,48 @@
+package org.humancellatlas.ingest.http;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.humancellatlas.ingest.client.IngestApiClient;
+import org.humancellatlas.ingest.client.util.CoreCallGuard;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Shows whether calls to core are being let through, for each kind of call
+ */
+@Controller
+@RequiredArgsConstructor
+public class CoreBreakerController {
+    private final @NonNull IngestApiClient ingestApiClient;
+
+    @RequestMapping(path = "core/breakers", method = RequestMethod.GET)
+    public ResponseEntity<List<CoreBreakerStatus>> coreBreakers() {
+        CoreCallGuard coreCallGuard = ingestApiClient.getCoreCallGuard();
+        List<CoreBreakerStatus> breakers = Arrays.stream(CoreCallGuard.Operation.values())
+                .map(operation -> status(operation, coreCallGuard.getCircuitBreaker(operation), coreCallGuard.getBulkhead(operation)))
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(breakers);
+    }
+
+    private static CoreBreakerStatus status(CoreCallGuard.Operation operation, CircuitBreaker circuitBreaker, Bulkhead bulkhead) {
+        CircuitBreaker.Metrics metrics = circuitBreaker.getMetrics();
+        return new CoreBreakerStatus(operation.tag(),
+                circuitBreaker.getState().name(),
+                metrics.getFailureRate(),
+                metrics.getSlowCallRate(),
+                metrics.getNumberOfBufferedCalls(),
+                metrics.getNumberOfFailedCalls(),
+                metrics.getNumberOfSlowCalls(),
+                metrics.getNumberOfNotPermittedCalls(),
+                bulkhead.getMetrics().getAvailableConcurrentCalls(),
+                bulkhead.getMetrics().getMaxAllowedConcurrentCalls());
+    }
+}
@@ -0,0 +1,23 @@
+package org.humancellatlas.ingest.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The circuit breaker and bulkhead of one kind of call to core. Rates are percentages, and -1 until the breaker has
+ * seen its minimum number of calls.
+ */
+@Getter
+@AllArgsConstructor
+public class CoreBreakerStatus {
+    private final String operation;
+    private final String state;
+    private final float failureRate;
+    private final float slowCallRate;
+    private final int bufferedCalls;
+    private final int failedCalls;
+    private final int slowCalls;
+    private final long notPermittedCalls;
+    private final int availableConcurrentCalls;
+    private final int maxConcurrentCalls;
+}
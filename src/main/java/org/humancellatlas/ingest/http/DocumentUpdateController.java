@@ -1,9 +1,16 @@
 package org.humancellatlas.ingest.http;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
+import org.humancellatlas.ingest.client.util.ObjectMappers;
+import org.humancellatlas.ingest.exception.WorkerLaneFullException;
 import org.humancellatlas.ingest.messaging.model.MetadataDocumentMessage;
 import org.humancellatlas.ingest.messaging.service.MessageHandler;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 
 import org.springframework.stereotype.Controller;
@@ -12,10 +19,33 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
 @Controller
 @RequiredArgsConstructor
 public class DocumentUpdateController {
+    private static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    // updates are handed to the message handler in groups of at most this many per envelope...
+    private static final int BULK_GROUP_SIZE = 500;
+    // ...and every group is handed on once this many updates are held. Groups still being applied only keep the index
+    // and document id of each update, and their results are collected as they complete, so the updates are never all
+    // held at once
+    private static final int BULK_BUFFER_SIZE = 5000;
+    private static final String NOT_APPLIED = "not applied, the worker lane for the envelope is full";
+
     private final @NonNull MessageHandler messageHandler;
+    private final ObjectMapper objectMapper = ObjectMappers.shared();
 
     @RequestMapping(path = "state-updates/metadata-documents", method = RequestMethod.POST)
     public ResponseEntity metadataDocumentStateUpdate(@RequestBody MetadataDocumentMessage message){
@@ -23,10 +53,159 @@ public class DocumentUpdateController {
         return ResponseEntity.noContent().build();
     }
 
+    /**
+     * Applies many metadata document updates, given as a JSON array or as newline-delimited JSON. The body is read
+     * incrementally and the updates are applied in groups per envelope; the results are returned in the order of the
+     * body, each with the index of its update.
+     * <p>
+     * If a worker lane is full the body stops being read and the response is a 503 with the results so far: updates
+     * that weren't applied are marked "not applied", and those after the last result were not read. The
+     * caller can resume by resubmitting both, as updates already applied are not undone.
+     */
+    @RequestMapping(path = "state-updates/metadata-documents/bulk", method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<List<DocumentUpdateResult>> metadataDocumentStateUpdates(InputStream body) throws IOException {
+        List<DocumentUpdateResult> results = new ArrayList<>();
+        Deque<PendingGroup> submitted = new ArrayDeque<>();
+        Map<String, List<IndexedUpdate>> groups = new LinkedHashMap<>();
+        int buffered = 0;
+        int index = 0;
+        boolean laneFull = false;
+
+        // reads root-level values one at a time, unwrapping a root-level array
+        try (MappingIterator<MetadataDocumentMessage> messages = objectMapper.readerFor(MetadataDocumentMessage.class).readValues(body)) {
+            while (!laneFull && messages.hasNextValue()) {
+                MetadataDocumentMessage message = messages.nextValue();
+                int position = index++;
+                if (message.getEnvelopeId() == null || message.getDocumentId() == null) {
+                    results.add(new DocumentUpdateResult(position, message.getDocumentId(), message.getEnvelopeId(), false,
+                            "documentId and envelopeId are required"));
+                    continue;
+                }
+
+                List<IndexedUpdate> group = groups.computeIfAbsent(message.getEnvelopeId(), envelopeId -> new ArrayList<>());
+                group.add(new IndexedUpdate(position, message));
+                buffered++;
+                if (group.size() >= BULK_GROUP_SIZE) {
+                    buffered -= group.size();
+                    laneFull = !submit(message.getEnvelopeId(), groups.remove(message.getEnvelopeId()), submitted, results);
+                }
+                if (!laneFull && buffered >= BULK_BUFFER_SIZE) {
+                    laneFull = !submitAll(groups, submitted, results);
+                    buffered = 0;
+                }
+                collectCompleted(submitted, results);
+            }
+        }
+        if (laneFull) {
+            groups.values().forEach(pending -> notApplied(pending, results));
+        } else {
+            laneFull = !submitAll(groups, submitted, results);
+        }
+
+        submitted.forEach(group -> group.collectResults(results));
+        results.sort(Comparator.comparingInt(DocumentUpdateResult::getIndex));
+        return laneFull
+                ? ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(results)
+                : ResponseEntity.ok(results);
+    }
+
+    /**
+     * Collects the results of the groups that have been applied, oldest first, so they can be let go of
+     */
+    private static void collectCompleted(Deque<PendingGroup> submitted, List<DocumentUpdateResult> results) {
+        while (!submitted.isEmpty() && submitted.peekFirst().accepted.isDone()) {
+            submitted.pollFirst().collectResults(results);
+        }
+    }
+
     @RequestMapping(path = "state-updates/metadata-documents", method = RequestMethod.DELETE)
     public ResponseEntity metadataDocumentDelete(@RequestParam String metadataDocumentId,
                                                  @RequestParam String envelopeId){
         messageHandler.handleMetadataDocumentDelete(metadataDocumentId, envelopeId);
         return ResponseEntity.noContent().build();
     }
+
+    /**
+     * Submits every buffered group, until a worker lane is full; that group and the ones after it are not applied
+     *
+     * @return false if a worker lane was full
+     */
+    private boolean submitAll(Map<String, List<IndexedUpdate>> groups, Deque<PendingGroup> submitted,
+                              List<DocumentUpdateResult> results) {
+        boolean laneFull = false;
+        for (Map.Entry<String, List<IndexedUpdate>> group : groups.entrySet()) {
+            if (laneFull) {
+                notApplied(group.getValue(), results);
+            } else {
+                laneFull = !submit(group.getKey(), group.getValue(), submitted, results);
+            }
+        }
+        groups.clear();
+        return !laneFull;
+    }
+
+    /**
+     * @return false if the envelope's worker lane was full, in which case the updates are recorded as not applied
+     */
+    private boolean submit(String envelopeId, List<IndexedUpdate> updates, Deque<PendingGroup> submitted,
+                           List<DocumentUpdateResult> results) {
+        List<MetadataDocumentMessage> messages = updates.stream()
+                                                        .map(IndexedUpdate::getMessage)
+                                                        .collect(Collectors.toList());
+        try {
+            submitted.add(new PendingGroup(envelopeId, updates.stream().map(IndexedUpdate::forResult).collect(Collectors.toList()),
+                    messageHandler.handleMetadataDocumentUpdates(envelopeId, messages)));
+            return true;
+        } catch (WorkerLaneFullException e) {
+            notApplied(updates, results);
+            return false;
+        }
+    }
+
+    private static void notApplied(List<IndexedUpdate> updates, List<DocumentUpdateResult> results) {
+        updates.forEach(update -> results.add(new DocumentUpdateResult(update.getIndex(),
+                update.getMessage().getDocumentId(), update.getMessage().getEnvelopeId(), false, NOT_APPLIED)));
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class IndexedUpdate {
+        private final int index;
+        private final MetadataDocumentMessage message;
+
+        /**
+         * @return just what is needed to report the result, so the update itself can be let go of once submitted
+         */
+        UpdateRef forResult() {
+            return new UpdateRef(index, message.getDocumentId());
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class UpdateRef {
+        private final int index;
+        private final String documentId;
+    }
+
+    @RequiredArgsConstructor
+    private static class PendingGroup {
+        private final String envelopeId;
+        private final List<UpdateRef> updates;
+        private final CompletableFuture<List<Boolean>> accepted;
+
+        void collectResults(List<DocumentUpdateResult> results) {
+            try {
+                List<Boolean> acceptedUpdates = accepted.join();
+                for (int i = 0; i < updates.size(); i++) {
+                    UpdateRef update = updates.get(i);
+                    results.add(new DocumentUpdateResult(update.index, update.documentId, envelopeId, acceptedUpdates.get(i), null));
+                }
+            } catch (CompletionException e) {
+                String error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+                updates.forEach(update ->
+                        results.add(new DocumentUpdateResult(update.index, update.documentId, envelopeId, false, error)));
+            }
+        }
+    }
 }
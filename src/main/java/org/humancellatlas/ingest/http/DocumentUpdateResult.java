@@ -0,0 +1,17 @@
+package org.humancellatlas.ingest.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The outcome of one metadata document update in a bulk update, with the index of the update in the request body
+ */
+@Getter
+@AllArgsConstructor
+public class DocumentUpdateResult {
+    private final int index;
+    private final String documentId;
+    private final String envelopeId;
+    private final boolean accepted;
+    private final String error;
+}
@@ -0,0 +1,34 @@
+package org.humancellatlas.ingest.http;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.humancellatlas.ingest.state.monitor.SubmissionStateUpdater;
+import org.humancellatlas.ingest.state.monitor.model.SubmissionUpdateRetry;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Lists the envelopes whose state could not be pushed to core and are waiting on a retry, or have run out of retries
+ */
+@Controller
+@RequiredArgsConstructor
+public class StateUpdateRetryController {
+    private final @NonNull SubmissionStateUpdater submissionStateUpdater;
+
+    @RequestMapping(path = "state-updates/retries", method = RequestMethod.GET)
+    public ResponseEntity<List<SubmissionUpdateRetry>> stateUpdateRetries(
+            @RequestParam(required = false, defaultValue = "false") boolean exhausted) {
+        List<SubmissionUpdateRetry> retries = submissionStateUpdater.getRetries().stream()
+                .filter(retry -> !exhausted || retry.isExhausted())
+                .sorted(Comparator.comparingInt(SubmissionUpdateRetry::getAttempts).reversed())
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(retries);
+    }
+}
@@ -1,8 +1,10 @@
 package org.humancellatlas.ingest.messaging;
 
+import com.rabbitmq.client.Channel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NonNull;
+import org.humancellatlas.ingest.messaging.ack.MessageAcknowledgements;
 import org.humancellatlas.ingest.messaging.model.DocumentCompletedMessage;
 import org.humancellatlas.ingest.messaging.model.DocumentProcessingMessage;
 import org.humancellatlas.ingest.messaging.model.SubmissionEnvelopeMessage;
@@ -11,6 +13,8 @@ import org.humancellatlas.ingest.state.SubmissionEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
 
 
@@ -25,36 +29,61 @@ import org.springframework.stereotype.Component;
 @AllArgsConstructor
 public class MessageReceiver {
     private final @NonNull MessageHandler messageHandler;
+    private final @NonNull MessageAcknowledgements acknowledgements;
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     @RabbitListener(queues = Constants.Queues.ENVELOPE_CREATED)
-    public void receiveSubmissionEnvelopeCreatedMessage(SubmissionEnvelopeMessage submissionEnvelopeMessage) {
-        getMessageHandler().handleSubmissionEnvelopeCreated(submissionEnvelopeMessage);
+    public void receiveSubmissionEnvelopeCreatedMessage(SubmissionEnvelopeMessage submissionEnvelopeMessage,
+                                                        Channel channel,
+                                                        @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                                        @Header(AmqpHeaders.REDELIVERED) boolean redelivered) {
+        getMessageHandler().handleSubmissionEnvelopeCreated(submissionEnvelopeMessage,
+                acknowledgements.forDelivery(channel, deliveryTag, redelivered));
     }
 
     @RabbitListener(queues = Constants.Queues.ENVELOPE_UPDATE)
-    public void receiveSubmissionEnvelopeStateUpdateRequest(SubmissionEnvelopeMessage submissionEnvelopeMessage) {
-       getMessageHandler().handleSubmissionEnvelopeStateUpdateRequest(submissionEnvelopeMessage);
+    public void receiveSubmissionEnvelopeStateUpdateRequest(SubmissionEnvelopeMessage submissionEnvelopeMessage,
+                                                            Channel channel,
+                                                            @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                                            @Header(AmqpHeaders.REDELIVERED) boolean redelivered) {
+       getMessageHandler().handleSubmissionEnvelopeStateUpdateRequest(submissionEnvelopeMessage,
+               acknowledgements.forDelivery(channel, deliveryTag, redelivered));
     }
 
     @RabbitListener(queues = Constants.Queues.MANIFEST_SUBMITTED)
-    public void receiveManifestProcessingMessage(DocumentProcessingMessage documentProcessingMessage) {
-      getMessageHandler().handleDocumentProcessingMessageForSubmissionEvent(documentProcessingMessage, SubmissionEvent.PROCESSING_STATE_UPDATE);
+    public void receiveManifestProcessingMessage(DocumentProcessingMessage documentProcessingMessage,
+                                                 Channel channel,
+                                                 @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                                 @Header(AmqpHeaders.REDELIVERED) boolean redelivered) {
+      getMessageHandler().handleDocumentProcessingMessageForSubmissionEvent(documentProcessingMessage, SubmissionEvent.PROCESSING_STATE_UPDATE,
+              acknowledgements.forDelivery(channel, deliveryTag, redelivered));
     }
 
     @RabbitListener(queues = Constants.Queues.MANIFEST_COMPLETED)
-    public void receiveManifestCompletedMessage(DocumentCompletedMessage documentCompletedMessage) {
-        getMessageHandler().handleDocumentCompletedMessageForSubmissionEvent(documentCompletedMessage, SubmissionEvent.PROCESSING_STATE_UPDATE);
+    public void receiveManifestCompletedMessage(DocumentCompletedMessage documentCompletedMessage,
+                                                Channel channel,
+                                                @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                                @Header(AmqpHeaders.REDELIVERED) boolean redelivered) {
+        getMessageHandler().handleDocumentCompletedMessageForSubmissionEvent(documentCompletedMessage, SubmissionEvent.PROCESSING_STATE_UPDATE,
+                acknowledgements.forDelivery(channel, deliveryTag, redelivered));
     }
 
     @RabbitListener(queues = Constants.Queues.EXPERIMENT_SUBMITTED)
-    public void receiveExperimentProcessingMessage(DocumentProcessingMessage documentProcessingMessage) {
-        getMessageHandler().handleDocumentProcessingMessageForSubmissionEvent(documentProcessingMessage, SubmissionEvent.EXPORTING_STATE_UPDATE);
+    public void receiveExperimentProcessingMessage(DocumentProcessingMessage documentProcessingMessage,
+                                                   Channel channel,
+                                                   @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                                   @Header(AmqpHeaders.REDELIVERED) boolean redelivered) {
+        getMessageHandler().handleDocumentProcessingMessageForSubmissionEvent(documentProcessingMessage, SubmissionEvent.EXPORTING_STATE_UPDATE,
+                acknowledgements.forDelivery(channel, deliveryTag, redelivered));
     }
 
     @RabbitListener(queues = Constants.Queues.EXPERIMENT_EXPORTED)
-    public void receiveExperimentCompletedMessage(DocumentCompletedMessage documentCompletedMessage) {
-        getMessageHandler().handleDocumentCompletedMessageForSubmissionEvent(documentCompletedMessage, SubmissionEvent.EXPORTING_STATE_UPDATE);
+    public void receiveExperimentCompletedMessage(DocumentCompletedMessage documentCompletedMessage,
+                                                  Channel channel,
+                                                  @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                                  @Header(AmqpHeaders.REDELIVERED) boolean redelivered) {
+        getMessageHandler().handleDocumentCompletedMessageForSubmissionEvent(documentCompletedMessage, SubmissionEvent.EXPORTING_STATE_UPDATE,
+                acknowledgements.forDelivery(channel, deliveryTag, redelivered));
     }
 }
@@ -0,0 +1,30 @@
+package org.humancellatlas.ingest.messaging.ack;
+
+/**
+ * Settles the message a piece of work came from once the work is done. Work that didn't come from a manually
+ * acknowledged delivery carries {@link #NONE}.
+ */
+public interface Acknowledgement {
+
+    Acknowledgement NONE = new Acknowledgement() {
+        @Override
+        public void ack() {
+        }
+
+        @Override
+        public void nack(Throwable cause) {
+        }
+    };
+
+    /**
+     * The work was applied
+     */
+    void ack();
+
+    /**
+     * The work failed
+     *
+     * @param cause why it failed, which decides whether the message is requeued
+     */
+    void nack(Throwable cause);
+}
@@ -0,0 +1,82 @@
+package org.humancellatlas.ingest.messaging.ack;
+
+import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Coalesces the acknowledgements of the deliveries on one channel.
+ * <p>
+ * Deliveries complete out of order because they are handled on different worker lanes. A delivery tag is only
+ * acknowledged once every delivery before it on the channel has been settled, and then with {@code multiple=true} so
+ * one ack covers all of them. Failed deliveries are rejected straight away, one at a time.
+ */
+class ChannelAcknowledger {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Channel channel;
+    private final int batchSize;
+
+    private final NavigableSet<Long> outstanding = new TreeSet<>();
+    private long highestCompleted;
+    private long highestAcked;
+    private int unacked;
+
+    ChannelAcknowledger(Channel channel, int batchSize) {
+        this.channel = channel;
+        this.batchSize = batchSize;
+    }
+
+    synchronized void received(long deliveryTag) {
+        outstanding.add(deliveryTag);
+    }
+
+    synchronized void completed(long deliveryTag) {
+        outstanding.remove(deliveryTag);
+        highestCompleted = Math.max(highestCompleted, deliveryTag);
+        if (++unacked >= batchSize) {
+            flush();
+        }
+    }
+
+    synchronized void failed(long deliveryTag, boolean requeue) {
+        outstanding.remove(deliveryTag);
+        try {
+            channel.basicNack(deliveryTag, false, requeue);
+        } catch (IOException e) {
+            log.error(String.format("Failed to reject delivery %d", deliveryTag), e);
+        }
+    }
+
+    /**
+     * Acknowledges every completed delivery that no earlier outstanding delivery is still waiting on
+     */
+    synchronized void flush() {
+        long ackUpTo = outstanding.isEmpty()
+                ? highestCompleted
+                : Math.min(highestCompleted, outstanding.first() - 1);
+        if (ackUpTo <= highestAcked || !channel.isOpen()) {
+            return;
+        }
+
+        try {
+            channel.basicAck(ackUpTo, true);
+            highestAcked = ackUpTo;
+            unacked = 0;
+        } catch (IOException e) {
+            log.error(String.format("Failed to acknowledge deliveries up to %d", ackUpTo), e);
+        }
+    }
+
+    synchronized int outstandingCount() {
+        return outstanding.size();
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+}
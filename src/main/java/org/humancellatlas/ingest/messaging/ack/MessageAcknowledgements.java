@@ -0,0 +1,104 @@
+package org.humancellatlas.ingest.messaging.ack;
+
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.exception.CoreUnavailableException;
+import org.humancellatlas.ingest.exception.WorkerLaneFullException;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the {@link Acknowledgement}s for AMQP deliveries when AMQP_MANUAL_ACK is enabled, so a message is only
+ * acknowledged after its work has been applied to the state machine. Acknowledgements are coalesced per channel and
+ * flushed when AMQP_ACK_BATCH_SIZE deliveries have completed, or on a short timer so a quiet queue isn't left unacked.
+ * <p>
+ * A delivery whose handler failed is requeued once. It is dropped if it was already a redelivery, or if the handler
+ * rejected it with an {@link AmqpRejectAndDontRequeueException}. A delivery turned away before its work was done is
+ * not at fault, so it is always requeued, however often it has been redelivered. One turned away by a full worker lane,
+ * with a {@link WorkerLaneFullException}, is requeued straight away, since the offer to the lane has already held the
+ * listener back. One turned away with a {@link CoreUnavailableException} is only requeued after
+ * CORE_UNAVAILABLE_REQUEUE_DELAY_MILLIS. Until then the delivery stays unacknowledged and holds its prefetch slot, so an
+ * unavailable core slows consumption down instead of the same messages bouncing straight back.
+ */
+@Component
+public class MessageAcknowledgements {
+    private static final int ACK_FLUSH_INTERVAL_MILLIS = 200;
+
+    private final boolean manualAck;
+    private final int batchSize;
+    private final long coreUnavailableRequeueDelayMillis;
+    private final ScheduledExecutorService delayedRequeues;
+    private final Map<Channel, ChannelAcknowledger> acknowledgers = new ConcurrentHashMap<>();
+
+    private final Counter acks;
+    private final Counter requeues;
+    private final Counter rejections;
+
+    public MessageAcknowledgements(@Autowired ConfigurationService config) {
+        this.manualAck = config.isAmqpManualAck();
+        this.batchSize = Math.max(1, config.getAmqpAckBatchSize());
+        this.coreUnavailableRequeueDelayMillis = config.getCoreUnavailableRequeueDelayMillis();
+        this.delayedRequeues = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "amqp-delayed-requeue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.acks = Metrics.counter("amqp.acknowledgements", "result", "ack");
+        this.requeues = Metrics.counter("amqp.acknowledgements", "result", "requeue");
+        this.rejections = Metrics.counter("amqp.acknowledgements", "result", "reject");
+        Metrics.gauge("amqp.acknowledgements.outstanding", acknowledgers,
+                channels -> channels.values().stream().mapToInt(ChannelAcknowledger::outstandingCount).sum());
+    }
+
+    public Acknowledgement forDelivery(Channel channel, long deliveryTag, boolean redelivered) {
+        if (!manualAck || channel == null) {
+            return Acknowledgement.NONE;
+        }
+
+        ChannelAcknowledger acknowledger = acknowledgers.computeIfAbsent(channel, c -> new ChannelAcknowledger(c, batchSize));
+        acknowledger.received(deliveryTag);
+        return new Acknowledgement() {
+            @Override
+            public void ack() {
+                acks.increment();
+                acknowledger.completed(deliveryTag);
+            }
+
+            @Override
+            public void nack(Throwable cause) {
+                if (cause instanceof CoreUnavailableException && coreUnavailableRequeueDelayMillis > 0) {
+                    requeues.increment();
+                    delayedRequeues.schedule(() -> {
+                        // the broker redelivers anything left on a channel that closed in the meantime
+                        if (acknowledger.isOpen()) {
+                            acknowledger.failed(deliveryTag, true);
+                        }
+                    }, coreUnavailableRequeueDelayMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                boolean turnedAway = cause instanceof CoreUnavailableException || cause instanceof WorkerLaneFullException;
+                boolean requeue = turnedAway || (!redelivered && !(cause instanceof AmqpRejectAndDontRequeueException));
+                (requeue ? requeues : rejections).increment();
+                acknowledger.failed(deliveryTag, requeue);
+            }
+        };
+    }
+
+    @Scheduled(fixedDelay = ACK_FLUSH_INTERVAL_MILLIS)
+    public void flush() {
+        // deliveries left on a closed channel are redelivered by the broker, so there's nothing left to settle
+        acknowledgers.values().removeIf(acknowledger -> !acknowledger.isOpen());
+        acknowledgers.values().forEach(ChannelAcknowledger::flush);
+    }
+}
@@ -1,15 +1,19 @@
 package org.humancellatlas.ingest.messaging.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import lombok.Getter;
 import lombok.NonNull;
 import org.humancellatlas.ingest.client.IngestApiClient;
 import org.humancellatlas.ingest.client.model.MetadataDocument;
+import org.humancellatlas.ingest.client.util.ObjectMappers;
 import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.messaging.ack.Acknowledgement;
 import org.humancellatlas.ingest.messaging.model.DocumentCompletedMessage;
 import org.humancellatlas.ingest.messaging.model.DocumentProcessingMessage;
 import org.humancellatlas.ingest.messaging.model.MetadataDocumentMessage;
 import org.humancellatlas.ingest.messaging.model.SubmissionEnvelopeMessage;
+import org.humancellatlas.ingest.model.DocumentStateUpdate;
 import org.humancellatlas.ingest.model.MetadataDocumentReference;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 import org.humancellatlas.ingest.state.MetadataDocumentState;
@@ -25,11 +29,13 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
 
 import java.io.IOException;
-import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * Created by rolando on 05/07/2018.
@@ -44,6 +50,8 @@ public class MessageHandler {
 
     private final int numHandlerThreads;
     private final Workers workers;
+    private final MetadataDocumentBatcher metadataDocumentBatcher;
+    private final Counter documentsApplied = Metrics.counter("messagehandler.documents.applied");
 
     public MessageHandler(@Autowired ConfigurationService configurationService,
                           @Autowired IngestApiClient ingestApiClient,
@@ -53,34 +61,115 @@ public class MessageHandler {
         this.submissionStateMonitor = submissionStateMonitor;
 
         this.numHandlerThreads = configurationService.getNumHandlerThreads();
-        this.workers = new Workers(this.numHandlerThreads);
+        this.workers = new Workers(this.numHandlerThreads,
+                configurationService.getWorkerQueueCapacity(),
+                Duration.ofMillis(configurationService.getWorkerQueueOfferTimeoutMillis()));
+        this.metadataDocumentBatcher = configurationService.getMetadataBatchSize() > 1
+                ? new MetadataDocumentBatcher(configurationService.getMetadataBatchSize(),
+                                              configurationService.getMetadataBatchMaxDelayMillis(),
+                                              this::submitMetadataDocumentUpdates)
+                : null;
     }
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    // Work is routed to a worker lane by its envelope's ID, so all the work for one envelope is handled in order, one
+    // at a time, whichever queue it came from. Document processing and completed messages may only carry the envelope
+    // UUID, in which case they are routed by the ID of the envelope the monitor tracks under that UUID. Only for an
+    // envelope the monitor doesn't know yet are they routed by UUID, and may then run alongside work routed by the
+    // envelope's ID.
+
+    // With METADATA_BATCH_SIZE above 1, metadata document updates are grouped by envelope and each group is applied
+    // to the envelope's state machine in one event.
+
     public void handleMetadataDocumentUpdate(MetadataDocumentMessage metadataDocumentMessage) {
-        workers.submit(() -> doHandleMetadataDocumentUpdate(metadataDocumentMessage), metadataDocumentMessage.getDocumentId());
+        if (metadataDocumentBatcher != null) {
+            metadataDocumentBatcher.add(metadataDocumentMessage);
+        } else {
+            workers.submit(() -> doHandleMetadataDocumentUpdate(metadataDocumentMessage), metadataDocumentMessage.getEnvelopeId());
+        }
     }
 
     public void handleMetadataDocumentDelete(String metadataDocumentId, String envelopeId) {
-        workers.submit(() -> doHandleMetadataDocumentDelete(metadataDocumentId, envelopeId), metadataDocumentId);
+        if (metadataDocumentBatcher != null) {
+            // don't let the delete overtake updates still waiting in a batch
+            metadataDocumentBatcher.flush(envelopeId);
+        }
+        workers.submit(() -> doHandleMetadataDocumentDelete(metadataDocumentId, envelopeId), envelopeId);
+    }
+
+    /**
+     * Applies a group of metadata document updates for one envelope on the envelope's worker lane, after any updates
+     * for the envelope that are already waiting
+     *
+     * @return whether each update was accepted, in the order given
+     */
+    public CompletableFuture<List<Boolean>> handleMetadataDocumentUpdates(String envelopeId, List<MetadataDocumentMessage> metadataDocumentMessages) {
+        if (metadataDocumentBatcher != null) {
+            metadataDocumentBatcher.flush(envelopeId);
+        }
+
+        CompletableFuture<List<Boolean>> results = new CompletableFuture<>();
+        workers.submit(() -> {
+            try {
+                results.complete(applyMetadataDocumentUpdates(envelopeId, metadataDocumentMessages));
+            } catch (RuntimeException e) {
+                results.completeExceptionally(e);
+                throw e;
+            }
+        }, envelopeId);
+        return results;
+    }
+
+    private void submitMetadataDocumentUpdates(String envelopeId, List<MetadataDocumentMessage> metadataDocumentMessages) {
+        workers.submit(() -> doHandleMetadataDocumentUpdates(envelopeId, metadataDocumentMessages), envelopeId);
     }
 
     public void handleSubmissionEnvelopeCreated(SubmissionEnvelopeMessage submissionEnvelopeMessage) {
-        workers.submit(() -> doHandleSubmissionEnvelopeCreated(submissionEnvelopeMessage), submissionEnvelopeMessage.getDocumentId());
+        handleSubmissionEnvelopeCreated(submissionEnvelopeMessage, Acknowledgement.NONE);
+    }
+
+    public void handleSubmissionEnvelopeCreated(SubmissionEnvelopeMessage submissionEnvelopeMessage, Acknowledgement acknowledgement) {
+        workers.submit(() -> doHandleSubmissionEnvelopeCreated(submissionEnvelopeMessage), submissionEnvelopeMessage.getDocumentId(), acknowledgement);
     }
 
     public void handleSubmissionEnvelopeStateUpdateRequest(SubmissionEnvelopeMessage submissionEnvelopeMessage) {
-        workers.submit(() -> doHandleSubmissionEnvelopeStateUpdateRequest(submissionEnvelopeMessage), submissionEnvelopeMessage.getDocumentId());
+        handleSubmissionEnvelopeStateUpdateRequest(submissionEnvelopeMessage, Acknowledgement.NONE);
+    }
+
+    public void handleSubmissionEnvelopeStateUpdateRequest(SubmissionEnvelopeMessage submissionEnvelopeMessage, Acknowledgement acknowledgement) {
+        workers.submit(() -> doHandleSubmissionEnvelopeStateUpdateRequest(submissionEnvelopeMessage), submissionEnvelopeMessage.getDocumentId(), acknowledgement);
     }
 
     public void handleDocumentProcessingMessageForSubmissionEvent(DocumentProcessingMessage documentProcessingMessage, SubmissionEvent submissionEvent) {
-        workers.submit(() -> doHandleDocumentProcessingMessage(documentProcessingMessage, submissionEvent), documentProcessingMessage.getDocumentId());
+        handleDocumentProcessingMessageForSubmissionEvent(documentProcessingMessage, submissionEvent, Acknowledgement.NONE);
+    }
 
+    public void handleDocumentProcessingMessageForSubmissionEvent(DocumentProcessingMessage documentProcessingMessage, SubmissionEvent submissionEvent, Acknowledgement acknowledgement) {
+        String routingKey = documentProcessingMessage.getEnvelopeId() != null
+                ? documentProcessingMessage.getEnvelopeId()
+                : routingKeyForEnvelopeUuid(documentProcessingMessage.getEnvelopeUuid());
+        workers.submit(() -> doHandleDocumentProcessingMessage(documentProcessingMessage, submissionEvent), routingKey, acknowledgement);
     }
 
     public void handleDocumentCompletedMessageForSubmissionEvent(DocumentCompletedMessage documentCompletedMessage, SubmissionEvent submissionEvent) {
-        workers.submit(() -> doHandleDocumentCompletedMessage(documentCompletedMessage, submissionEvent), documentCompletedMessage.getDocumentId());
+        handleDocumentCompletedMessageForSubmissionEvent(documentCompletedMessage, submissionEvent, Acknowledgement.NONE);
+    }
+
+    public void handleDocumentCompletedMessageForSubmissionEvent(DocumentCompletedMessage documentCompletedMessage, SubmissionEvent submissionEvent, Acknowledgement acknowledgement) {
+        workers.submit(() -> doHandleDocumentCompletedMessage(documentCompletedMessage, submissionEvent),
+                routingKeyForEnvelopeUuid(documentCompletedMessage.getEnvelopeUuid()), acknowledgement);
+    }
+
+    private String routingKeyForEnvelopeUuid(String envelopeUuid) {
+        try {
+            return submissionStateMonitor.findTrackedReference(UUID.fromString(envelopeUuid))
+                                         .map(SubmissionEnvelopeReference::getId)
+                                         .orElse(envelopeUuid);
+        } catch (IllegalArgumentException e) {
+            // not a UUID, the handler rejects it
+            return envelopeUuid;
+        }
     }
 
     private MetadataDocument getMetadataDocument(String metadataDocumentId, String envelopeId) {
@@ -90,7 +179,7 @@ public class MessageHandler {
         } catch (HttpClientErrorException e) {
             log.error(String.format("Failed to fetch metadata document. Response was: %s Message was: ", e.getResponseBodyAsString()));
             try {
-                log.error(new ObjectMapper().writeValueAsString(metadataDocumentId));
+                log.error(ObjectMappers.shared().writeValueAsString(metadataDocumentId));
             } catch (IOException ioe) {
                 throw new AmqpRejectAndDontRequeueException(e);
             }
@@ -100,9 +189,13 @@ public class MessageHandler {
         return metadataDocument;
     }
 
+    /**
+     * Checks the envelope isn't past EXPORTED. The state of a loaded state machine is used where there is one, which
+     * the tracker itself pushes to core; otherwise the state comes from the ingest client's short-lived state cache.
+     */
     private Boolean canNotify(SubmissionEnvelopeReference envelopeReference) {
-        SubmissionState envelopeState = SubmissionState.fromString(this.getIngestApiClient().retrieveSubmissionEnvelope(envelopeReference)
-                .getSubmissionState());
+        SubmissionState envelopeState = submissionStateMonitor.findLoadedState(envelopeReference)
+                .orElseGet(() -> this.getIngestApiClient().retrieveEnvelopeState(envelopeReference));
 
         return !envelopeState.after(SubmissionState.EXPORTED);
     }
@@ -128,6 +221,50 @@ public class MessageHandler {
             }
 
             submissionStateMonitor.notifyOfMetadataDocumentState(documentReference, envelopeReference, documentState);
+            documentsApplied.increment();
+        }
+    }
+
+    private void doHandleMetadataDocumentUpdates(String envelopeId, List<MetadataDocumentMessage> metadataDocumentMessages) {
+        List<Boolean> results = applyMetadataDocumentUpdates(envelopeId, metadataDocumentMessages);
+        long rejected = results.stream().filter(accepted -> !accepted).count();
+        if (rejected > 0) {
+            log.warn("{} of {} document updates for submission {} were not accepted", rejected, results.size(), envelopeId);
+        }
+    }
+
+    /**
+     * @return whether each update was accepted, in the order given. Nothing is accepted once the envelope is past
+     * EXPORTED.
+     */
+    private List<Boolean> applyMetadataDocumentUpdates(String envelopeId, List<MetadataDocumentMessage> metadataDocumentMessages) {
+        log.info("updating {} documents from submission {}", metadataDocumentMessages.size(), envelopeId);
+        SubmissionEnvelopeReference envelopeReference = getMetadataDocument(metadataDocumentMessages.get(0).getDocumentId(), envelopeId)
+                .getReferencedEnvelope();
+
+        List<DocumentStateUpdate> documentStateUpdates = metadataDocumentMessages.stream()
+                .map(message -> new DocumentStateUpdate(message.getDocumentId(), documentStateOf(message)))
+                .collect(Collectors.toList());
+
+        if(!canNotify(envelopeReference)) {
+            return new ArrayList<>(Collections.nCopies(documentStateUpdates.size(), false));
+        }
+
+        if(!submissionStateMonitor.isMonitoring(envelopeReference)) {
+            submissionStateMonitor.monitorSubmissionEnvelope(envelopeReference);
+        }
+        List<Boolean> results = submissionStateMonitor.notifyOfMetadataDocumentStates(envelopeReference, documentStateUpdates);
+        documentsApplied.increment(documentStateUpdates.size());
+        return results;
+    }
+
+    private MetadataDocumentState documentStateOf(MetadataDocumentMessage metadataDocumentMessage) {
+        try {
+            return MetadataDocumentState.valueOf(metadataDocumentMessage.getValidationState().toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            log.warn("Unrecognised validation state {} for document {}",
+                    metadataDocumentMessage.getValidationState(), metadataDocumentMessage.getDocumentId());
+            return null;
         }
     }
 
@@ -148,6 +285,8 @@ public class MessageHandler {
 
     private void doHandleSubmissionEnvelopeCreated(SubmissionEnvelopeMessage submissionEnvelopeMessage) {
         SubmissionEnvelopeReference seRef = ingestApiClient.referenceForSubmissionEnvelope(submissionEnvelopeMessage);
+        // a lookup that raced the creation may have found it missing
+        ingestApiClient.forgetMissingEnvelope(seRef);
         getSubmissionStateMonitor().monitorSubmissionEnvelope(seRef);
     }
 
@@ -183,28 +322,4 @@ public class MessageHandler {
                                                    MetadataDocumentState.COMPLETE,
                                                    submissionEvent);
     }
-
-    private class Workers {
-        final int numWorkerThreads;
-        final List<ExecutorService> workers;
-
-        Workers(int numWorkerThreads){
-            this.numWorkerThreads = numWorkerThreads;
-            this.workers = IntStream.range(0,numWorkerThreads)
-                                    .mapToObj(x -> Executors.newSingleThreadExecutor())
-                                    .collect(Collectors.toList());
-        }
-
-        void submit(Runnable runnable, String resourceId) {
-            int workerIndex = this.workerIndexForResourceId(resourceId, this.numWorkerThreads);
-            ExecutorService worker = this.workers.get(workerIndex);
-            worker.submit(runnable);
-        }
-
-        int workerIndexForResourceId(String resourceId, int numWorkers) {
-            BigInteger resourceValue = new BigInteger(resourceId, 16); // assuming resource is hex
-            return resourceValue.mod(BigInteger.valueOf(numWorkers)).intValue();
-        }
-    }
-
 }
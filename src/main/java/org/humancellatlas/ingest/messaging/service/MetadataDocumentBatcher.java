@@ -0,0 +1,148 @@
+package org.humancellatlas.ingest.messaging.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import org.humancellatlas.ingest.exception.WorkerLaneFullException;
+import org.humancellatlas.ingest.messaging.model.MetadataDocumentMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Groups metadata document updates by envelope. A group is handed on once it holds the maximum batch size, or once
+ * the first update in it has waited the maximum delay, whichever comes first.
+ * <p>
+ * A group that can't be handed on is put back in front of any newer updates for the envelope and tried again after
+ * the maximum delay, so the updates of callers that have already been answered are never dropped. Groups for an
+ * envelope are handed on one at a time: a newer group waits while an older one is being handed on or put back, so it
+ * can never overtake it.
+ */
+class MetadataDocumentBatcher {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final BiConsumer<String, List<MetadataDocumentMessage>> batchHandler;
+
+    private final Map<String, List<MetadataDocumentMessage>> pendingBatches = new ConcurrentHashMap<>();
+    // envelopes with a group being handed on, dropped once nobody is handing on or waiting to
+    private final Map<String, HandOff> handOffs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metadata-document-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final DistributionSummary batchSizes = Metrics.summary("messagehandler.batch.size");
+
+    /**
+     * @param batchHandler handles a batch of updates for an envelope ID; it may throw {@link WorkerLaneFullException}
+     */
+    MetadataDocumentBatcher(int maxBatchSize, long maxDelayMillis,
+                            BiConsumer<String, List<MetadataDocumentMessage>> batchHandler) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.batchHandler = batchHandler;
+    }
+
+    void add(MetadataDocumentMessage message) {
+        String envelopeId = message.getEnvelopeId();
+        AtomicBoolean started = new AtomicBoolean();
+        AtomicBoolean full = new AtomicBoolean();
+        pendingBatches.compute(envelopeId, (id, batch) -> {
+            if (batch == null) {
+                batch = new ArrayList<>();
+                started.set(true);
+            }
+            batch.add(message);
+            full.set(batch.size() >= maxBatchSize);
+            return batch;
+        });
+
+        if (started.get()) {
+            timer.schedule(() -> flushOnTimer(envelopeId), maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        if (full.get()) {
+            flush(envelopeId);
+        }
+    }
+
+    /**
+     * Hands on whatever is waiting for the envelope, so work submitted after this is ordered after those updates. A
+     * group that can't be handed on is put back, and the caller still gets the failure, so a full lane pushes back on
+     * it.
+     */
+    void flush(String envelopeId) {
+        HandOff handOff = startHandOff(envelopeId);
+        try {
+            List<MetadataDocumentMessage> batch = pendingBatches.remove(envelopeId);
+            if (batch != null) {
+                try {
+                    handle(envelopeId, batch);
+                } catch (RuntimeException e) {
+                    putBack(envelopeId, batch);
+                    throw e;
+                }
+            }
+        } finally {
+            endHandOff(envelopeId, handOff);
+        }
+    }
+
+    private void flushOnTimer(String envelopeId) {
+        // nobody is waiting on the timer, so a batch that can't be handed on is only put back and tried again later
+        try {
+            flush(envelopeId);
+        } catch (WorkerLaneFullException e) {
+            log.warn("Worker lane full, deferring updates for envelope {}", envelopeId);
+        } catch (RuntimeException e) {
+            log.error(String.format("Failed to hand on updates for envelope %s, deferring them", envelopeId), e);
+        }
+    }
+
+    /**
+     * Puts a batch back in front of any newer updates for the envelope and tries it again after the maximum delay
+     */
+    private void putBack(String envelopeId, List<MetadataDocumentMessage> batch) {
+        pendingBatches.merge(envelopeId, batch, (newer, deferred) -> {
+            deferred.addAll(newer);
+            return deferred;
+        });
+        timer.schedule(() -> flushOnTimer(envelopeId), maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void handle(String envelopeId, List<MetadataDocumentMessage> batch) {
+        batchSizes.record(batch.size());
+        batchHandler.accept(envelopeId, batch);
+    }
+
+    private HandOff startHandOff(String envelopeId) {
+        HandOff handOff = handOffs.compute(envelopeId, (id, current) -> {
+            HandOff joined = current != null ? current : new HandOff();
+            joined.users++;
+            return joined;
+        });
+        handOff.lock.lock();
+        return handOff;
+    }
+
+    private void endHandOff(String envelopeId, HandOff handOff) {
+        handOff.lock.unlock();
+        handOffs.computeIfPresent(envelopeId, (id, current) -> --current.users == 0 ? null : current);
+    }
+
+    private static class HandOff {
+        private final ReentrantLock lock = new ReentrantLock();
+        // only changed inside the map's compute, so it needs no locking of its own
+        private int users;
+    }
+}
@@ -0,0 +1,120 @@
+package org.humancellatlas.ingest.messaging.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.humancellatlas.ingest.exception.CoreUnavailableException;
+import org.humancellatlas.ingest.exception.WorkerLaneFullException;
+import org.humancellatlas.ingest.messaging.ack.Acknowledgement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Single-threaded worker lanes. Work submitted with the same routing key always runs on the same lane, so it runs in
+ * submission order and never concurrently, while work for different keys spreads across the lanes.
+ * <p>
+ * Each lane queues a bounded amount of work. Submitting to a full lane blocks the caller until there is room, up to
+ * the offer timeout, and then fails with a {@link WorkerLaneFullException}. The blocked caller is an AMQP listener or
+ * HTTP request thread, so a slow lane holds back consumption from the broker rather than filling the heap.
+ */
+class Workers {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final List<ThreadPoolExecutor> lanes;
+    private final long offerTimeoutNanos;
+
+    private final Counter rejections;
+    private final Timer waits;
+
+    Workers(int numWorkerThreads, int queueCapacity, Duration offerTimeout) {
+        this.offerTimeoutNanos = offerTimeout.toNanos();
+        this.rejections = Metrics.counter("messagehandler.lane.rejections");
+        this.waits = Metrics.timer("messagehandler.lane.wait");
+        this.lanes = IntStream.range(0, numWorkerThreads)
+                              .mapToObj(lane -> newLane(lane, queueCapacity))
+                              .collect(Collectors.toList());
+    }
+
+    void submit(Runnable runnable, String routingKey) {
+        submit(runnable, routingKey, Acknowledgement.NONE);
+    }
+
+    /**
+     * Queues work and settles its acknowledgement once the work has run, or straight away if it can't be queued
+     */
+    void submit(Runnable runnable, String routingKey, Acknowledgement acknowledgement) {
+        int laneIndex = laneIndexFor(routingKey, lanes.size());
+        Runnable work = () -> {
+            try {
+                runnable.run();
+                acknowledgement.ack();
+            } catch (CoreUnavailableException e) {
+                // expected while core is being given a rest, the stack trace adds nothing
+                log.warn(String.format("Core unavailable for work routed by %s: %s", routingKey, e.getMessage()));
+                acknowledgement.nack(e);
+            } catch (RuntimeException e) {
+                log.error(String.format("Failed to handle work routed by %s", routingKey), e);
+                acknowledgement.nack(e);
+            }
+        };
+
+        // the lane's thread is already running and takes work straight off the queue, so offering to the queue
+        // rather than calling execute() is what lets the caller wait for room
+        long start = System.nanoTime();
+        boolean queued;
+        try {
+            queued = lanes.get(laneIndex).getQueue().offer(work, offerTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            WorkerLaneFullException laneFull = new WorkerLaneFullException(
+                    String.format("Interrupted waiting for room on worker lane %d", laneIndex), e);
+            acknowledgement.nack(laneFull);
+            throw laneFull;
+        } finally {
+            waits.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+
+        if (!queued) {
+            rejections.increment();
+            WorkerLaneFullException laneFull = new WorkerLaneFullException(String.format(
+                    "Worker lane %d stayed full for %d ms", laneIndex, TimeUnit.NANOSECONDS.toMillis(offerTimeoutNanos)));
+            acknowledgement.nack(laneFull);
+            throw laneFull;
+        }
+    }
+
+    static int laneIndexFor(String routingKey, int numLanes) {
+        if (routingKey == null) {
+            return 0;
+        }
+        // String caches its hash, so routing allocates nothing; spread the high bits as HashMap does
+        int hash = routingKey.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), numLanes);
+    }
+
+    private ThreadPoolExecutor newLane(int lane, int queueCapacity) {
+        AtomicInteger threads = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, String.format("worker-lane-%d-%d", lane, threads.incrementAndGet())));
+        executor.prestartAllCoreThreads();
+
+        Gauge.builder("messagehandler.lane.queue.depth", executor, e -> e.getQueue().size())
+             .tag("lane", Integer.toString(lane))
+             .register(Metrics.globalRegistry);
+        Gauge.builder("messagehandler.lane.queue.occupancy", executor,
+                e -> (double) e.getQueue().size() / queueCapacity)
+             .tag("lane", Integer.toString(lane))
+             .register(Metrics.globalRegistry);
+        return executor;
+    }
+}
@@ -0,0 +1,19 @@
+package org.humancellatlas.ingest.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import org.humancellatlas.ingest.state.MetadataDocumentState;
+
+/**
+ * The new state of one metadata document, as applied in a batch of document state updates for an envelope
+ */
+@Getter
+@RequiredArgsConstructor
+@EqualsAndHashCode
+@ToString
+public class DocumentStateUpdate {
+    private final String documentId;
+    private final MetadataDocumentState documentState;
+}
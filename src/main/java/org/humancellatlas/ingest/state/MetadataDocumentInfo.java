@@ -10,6 +10,8 @@ public class MetadataDocumentInfo {
     public static final String ENVELOPE_UUID = "ENVELOPE_UUID";
     public static final String DOCUMENT_ID = "DOCUMENT_ID";
     public static final String DOCUMENT_STATE = "DOCUMENT_STATE";
+    /* a list of DocumentStateUpdates applied in one event, in place of DOCUMENT_ID and DOCUMENT_STATE */
+    public static final String DOCUMENT_STATE_UPDATES = "DOCUMENT_STATE_UPDATES";
 
     /* headers related to assays or bundleable documents */
     public static final String EXPECTED_DOCUMENT_COUNT = "EXPECTED_DOCUMENT_COUNT";
@@ -2,21 +2,22 @@ package org.humancellatlas.ingest.state;
 
 import lombok.AllArgsConstructor;
 import org.humancellatlas.ingest.messaging.Constants;
+import org.humancellatlas.ingest.model.DocumentStateUpdate;
+import org.humancellatlas.ingest.state.engine.SubmissionAction;
+import org.humancellatlas.ingest.state.engine.SubmissionGuard;
+import org.humancellatlas.ingest.state.engine.SubmissionTransitionGraph;
 import org.humancellatlas.ingest.state.monitor.util.DocumentTracker;
+import org.humancellatlas.ingest.state.monitor.util.MetadataDocumentTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.statemachine.StateContext;
-import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.ExtendedState;
 import org.springframework.statemachine.config.EnableStateMachineFactory;
 import org.springframework.statemachine.config.EnumStateMachineConfigurerAdapter;
 import org.springframework.statemachine.config.builders.StateMachineStateConfigurer;
 import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
-import org.springframework.statemachine.guard.Guard;
 
-import java.util.Collections;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
 
 import static org.humancellatlas.ingest.state.MetadataDocumentInfo.*;
 import static org.humancellatlas.ingest.state.SubmissionEvent.*;
@@ -55,367 +56,211 @@ public class StateMachineConfiguration extends EnumStateMachineConfigurerAdapter
     }
 
     public void configure(StateMachineTransitionConfigurer<SubmissionState, SubmissionEvent> transitions) throws Exception {
-        transitions
-                .withExternal()
-                .source(PENDING).target(DRAFT)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
+        submissionTransitionGraph().configure(transitions);
+    }
+
+    /**
+     * The submission transition graph, shared by the Spring state machine configuration and the compiled state engine
+     *
+     * @return the transitions, junctions, guards and actions of a submission
+     */
+    public SubmissionTransitionGraph submissionTransitionGraph() {
+        return SubmissionTransitionGraph.builder(PENDING, COMPLETE)
+                .external(PENDING, DRAFT, DOCUMENT_PROCESSED, addOrUpdateContent())
                 /* draft, validating, valid or invalid? */
-                .withExternal()
-                .source(DRAFT).target(VALIDATION_STATE_EVAL_JUNCTION)
-                .action(addOrUpdateContent())
-                .event(DOCUMENT_PROCESSED)
-                .and()
-                .withExternal()
-                .source(METADATA_VALIDATING).target(VALIDATION_STATE_EVAL_JUNCTION)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
-                .withExternal()
-                .source(METADATA_VALID).target(VALIDATION_STATE_EVAL_JUNCTION)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
-                .withExternal()
-                .source(METADATA_INVALID).target(VALIDATION_STATE_EVAL_JUNCTION)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
+                .external(DRAFT, VALIDATION_STATE_EVAL_JUNCTION, DOCUMENT_PROCESSED, addOrUpdateContent())
+                .external(METADATA_VALIDATING, VALIDATION_STATE_EVAL_JUNCTION, DOCUMENT_PROCESSED, addOrUpdateContent())
+                .external(METADATA_VALID, VALIDATION_STATE_EVAL_JUNCTION, DOCUMENT_PROCESSED, addOrUpdateContent())
+                .external(METADATA_INVALID, VALIDATION_STATE_EVAL_JUNCTION, DOCUMENT_PROCESSED, addOrUpdateContent())
 
                 /* Removal of a metadata document */
                 // If in pre-graph validation states, check metadata validity
-                .withExternal()
-                .source(DRAFT).target(VALIDATION_STATE_EVAL_JUNCTION)
-                .event(DOCUMENT_DELETED)
-                .action(removeDocument())
-                .and()
-                .withExternal()
-                .source(METADATA_VALID).target(VALIDATION_STATE_EVAL_JUNCTION)
-                .action(removeDocument())
-                .event(DOCUMENT_DELETED)
-                .and()
-                .withExternal()
-                .source(METADATA_INVALID).target(VALIDATION_STATE_EVAL_JUNCTION)
-                .event(DOCUMENT_DELETED)
-                .action(removeDocument())
-                .and()
-                .withJunction()
-                .source(VALIDATION_STATE_EVAL_JUNCTION)
-                .first(METADATA_INVALID, documentsInvalidGuard())
-                .then(METADATA_VALIDATING, documentsValidatingGuard())
-                .then(METADATA_VALID, allValidGuard())
-                .last(DRAFT)
-                .and()
+                .external(DRAFT, VALIDATION_STATE_EVAL_JUNCTION, DOCUMENT_DELETED, removeDocument())
+                .external(METADATA_VALID, VALIDATION_STATE_EVAL_JUNCTION, DOCUMENT_DELETED, removeDocument())
+                .external(METADATA_INVALID, VALIDATION_STATE_EVAL_JUNCTION, DOCUMENT_DELETED, removeDocument())
+                .junction(VALIDATION_STATE_EVAL_JUNCTION)
+                    .first(METADATA_INVALID, documentsInvalidGuard())
+                    .then(METADATA_VALIDATING, documentsValidatingGuard())
+                    .then(METADATA_VALID, allValidGuard())
+                    .last(DRAFT)
                 // If in post graph validation states, transition to metadata valid
-                .withExternal()
-                .source(GRAPH_VALID).target(METADATA_VALID)
-                .event(DOCUMENT_DELETED)
-                .action(removeDocument())
-                .and()
-                .withExternal()
-                .source(GRAPH_INVALID).target(METADATA_VALID)
-                .event(DOCUMENT_DELETED)
-                .action(removeDocument())
-                .and()
-                .withExternal()
-                .source(EXPORTED).target(METADATA_VALID)
-                .event(DOCUMENT_DELETED)
-                .action(removeDocument())
-                .and()
+                .external(GRAPH_VALID, METADATA_VALID, DOCUMENT_DELETED, removeDocument())
+                .external(GRAPH_INVALID, METADATA_VALID, DOCUMENT_DELETED, removeDocument())
+                .external(EXPORTED, METADATA_VALID, DOCUMENT_DELETED, removeDocument())
 
                 /* graph validating happy path (results in valid or invalid) */
-                .withExternal()
-                .source(METADATA_VALID).target(GRAPH_VALIDATION_REQUESTED)
-                .event(GRAPH_VALIDATION_STARTED)
-                .and()
-                .withExternal()
-                .source(GRAPH_INVALID).target(GRAPH_VALIDATION_REQUESTED)
-                .event(GRAPH_VALIDATION_STARTED)
-                .and()
-                .withExternal()
-                .source(GRAPH_VALIDATION_REQUESTED).target(GRAPH_VALIDATING)
-                .event(GRAPH_VALIDATION_PROCESSING)
-                .and()
-                .withExternal()
-                .source(GRAPH_VALIDATING).target(GRAPH_VALID)
-                .event(GRAPH_VALIDATION_COMPLETE)
-                .and()
-                .withExternal()
-                .source(GRAPH_VALIDATING).target(GRAPH_INVALID)
-                .event(GRAPH_VALIDATION_INVALID)
-                .and()
+                .external(METADATA_VALID, GRAPH_VALIDATION_REQUESTED, GRAPH_VALIDATION_STARTED)
+                .external(GRAPH_INVALID, GRAPH_VALIDATION_REQUESTED, GRAPH_VALIDATION_STARTED)
+                .external(GRAPH_VALIDATION_REQUESTED, GRAPH_VALIDATING, GRAPH_VALIDATION_PROCESSING)
+                .external(GRAPH_VALIDATING, GRAPH_VALID, GRAPH_VALIDATION_COMPLETE)
+                .external(GRAPH_VALIDATING, GRAPH_INVALID, GRAPH_VALIDATION_INVALID)
                 /* graph validated -> submitted */
-                .withExternal()
-                .source(GRAPH_VALID).target(SUBMITTED)
                 // Should add a documentsValidGuard here?
-                .event(SUBMISSION_REQUESTED)
-                .action(resetTracker(Constants.EXPERIMENT_TRACKER))
-                .and()
+                .external(GRAPH_VALID, SUBMITTED, SUBMISSION_REQUESTED, resetTracker(Constants.EXPERIMENT_TRACKER))
 
                 /* graph validation requested -> draft */
-                .withExternal()
-                .source(GRAPH_VALIDATION_REQUESTED).target(DRAFT)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
+                .external(GRAPH_VALIDATION_REQUESTED, DRAFT, DOCUMENT_PROCESSED, addOrUpdateContent())
                 /* graph validated -> draft */
-                .withExternal()
-                .source(GRAPH_VALID).target(DRAFT)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
+                .external(GRAPH_VALID, DRAFT, DOCUMENT_PROCESSED, addOrUpdateContent())
                 /* graph invalid -> draft */
-                .withExternal()
-                .source(GRAPH_INVALID).target(DRAFT)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
+                .external(GRAPH_INVALID, DRAFT, DOCUMENT_PROCESSED, addOrUpdateContent())
                 /* graph validating -> draft */
                 // Should this be allowed? I think we should wait for GRAPH_VALIDATION_COMPLETE
-                .withExternal()
-                .source(GRAPH_VALIDATING).target(DRAFT)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
+                .external(GRAPH_VALIDATING, DRAFT, DOCUMENT_PROCESSED, addOrUpdateContent())
 
                 /* submitted -> draft */
-                .withExternal()
-                .source(SUBMITTED).target(DRAFT)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
+                .external(SUBMITTED, DRAFT, DOCUMENT_PROCESSED, addOrUpdateContent())
 
                 /* submitted -> processing */
-                .withExternal()
-                .source(SUBMITTED).target(PROCESSING_STATE_EVAL_JUNCTION)
-                .event(PROCESSING_STATE_UPDATE)
-                .action(trackDocument(Constants.MANIFEST_TRACKER))
-                .and()
+                .external(SUBMITTED, PROCESSING_STATE_EVAL_JUNCTION, PROCESSING_STATE_UPDATE, trackDocument(Constants.MANIFEST_TRACKER))
 
                 /* processing -> archiving */
-                .withExternal()
-                .source(PROCESSING).target(PROCESSING_STATE_EVAL_JUNCTION)
-                .event(PROCESSING_STATE_UPDATE)
-                .action(trackDocument(Constants.MANIFEST_TRACKER))
-                .and()
-                .withJunction()
-                .source(PROCESSING_STATE_EVAL_JUNCTION)
-                .first(PROCESSING, stillProcessingGuard(Constants.MANIFEST_TRACKER))
-                .last(ARCHIVING)
-                .and()
+                .external(PROCESSING, PROCESSING_STATE_EVAL_JUNCTION, PROCESSING_STATE_UPDATE, trackDocument(Constants.MANIFEST_TRACKER))
+                .junction(PROCESSING_STATE_EVAL_JUNCTION)
+                    .first(PROCESSING, stillProcessingGuard(Constants.MANIFEST_TRACKER))
+                    .last(ARCHIVING)
 
                 /* processing -> submitted */
-                .withExternal()
-                .source(PROCESSING).target(SUBMITTED)
-                .event(PROCESSING_FAILED)
-                .and()
+                .external(PROCESSING, SUBMITTED, PROCESSING_FAILED)
 
                 /* archiving -> archived */
-                .withExternal()
-                .source(ARCHIVING).target(ARCHIVED)
-                .event(ARCHIVING_COMPLETE)
-                .and()
+                .external(ARCHIVING, ARCHIVED, ARCHIVING_COMPLETE)
 
                 /* archived -> exporting */
-                .withExternal()
-                .source(ARCHIVED).target(EXPORTING_STATE_EVAL_JUNCTION)
-                .event(EXPORTING_STATE_UPDATE)
-                .action(trackDocument(Constants.EXPERIMENT_TRACKER))
-                .and()
+                .external(ARCHIVED, EXPORTING_STATE_EVAL_JUNCTION, EXPORTING_STATE_UPDATE, trackDocument(Constants.EXPERIMENT_TRACKER))
 
                 /* submitted -> exporting */
-                .withExternal()
-                .source(SUBMITTED).target(EXPORTING_STATE_EVAL_JUNCTION)
-                .event(EXPORTING_STATE_UPDATE)
-                .action(trackDocument(Constants.EXPERIMENT_TRACKER))
-                .and()
+                .external(SUBMITTED, EXPORTING_STATE_EVAL_JUNCTION, EXPORTING_STATE_UPDATE, trackDocument(Constants.EXPERIMENT_TRACKER))
 
                 /* exporting -> exported */
-                .withExternal()
-                .source(EXPORTING).target(EXPORTING_STATE_EVAL_JUNCTION)
-                .event(EXPORTING_STATE_UPDATE)
-                .action(trackDocument(Constants.EXPERIMENT_TRACKER))
-                .and()
-
-                .withJunction()
-                .source(EXPORTING_STATE_EVAL_JUNCTION)
-                .first(EXPORTING, stillProcessingGuard(Constants.EXPERIMENT_TRACKER))
-                .last(EXPORTED)
-                .and()
+                .external(EXPORTING, EXPORTING_STATE_EVAL_JUNCTION, EXPORTING_STATE_UPDATE, trackDocument(Constants.EXPERIMENT_TRACKER))
+                .junction(EXPORTING_STATE_EVAL_JUNCTION)
+                    .first(EXPORTING, stillProcessingGuard(Constants.EXPERIMENT_TRACKER))
+                    .last(EXPORTED)
 
                 /* exported -> draft */
-                .withExternal()
-                .source(EXPORTED).target(DRAFT)
-                .event(DOCUMENT_PROCESSED)
-                .action(addOrUpdateContent())
-                .and()
+                .external(EXPORTED, DRAFT, DOCUMENT_PROCESSED, addOrUpdateContent())
 
                 /* exported -> cleanup */
-                .withExternal()
-                .source(EXPORTED).target(CLEANUP)
-                .event(CLEANUP_STARTED)
-                .and()
+                .external(EXPORTED, CLEANUP, CLEANUP_STARTED)
 
                 /* cleanup -> complete */
-                .withExternal()
-                .source(CLEANUP).target(COMPLETE)
-                .event(ALL_TASKS_COMPLETE);
+                .external(CLEANUP, COMPLETE, ALL_TASKS_COMPLETE)
+                .build();
     }
 
-    private Action<SubmissionState, SubmissionEvent> resetTracker(String tracker) {
-        return context -> {
+    private SubmissionAction resetTracker(String tracker) {
+        return (extendedState, headers) -> {
             log.info("Resetting tracker: {}", tracker);
-            context.getExtendedState().getVariables().remove(tracker);
+            extendedState.getVariables().remove(tracker);
         };
     }
 
-    private Guard<SubmissionState, SubmissionEvent> documentsInvalidGuard() {
-        return context -> {
-            Map<String, MetadataDocumentState> docMap = Collections.synchronizedMap(getMetadataDocumentTrackerFromContext(context));
-            log.info("Checking documents invalid guard with docMap: {}", docMap);
-            for (Object key : docMap.keySet()) {
-                if (key.getClass() != String.class) {
-                    // extra content somehow?
-                    log.error("An extended state key was fubared");
-                    return false;
-                } else {
-                    String documentId = (String) key;
-                    Object value = docMap.get(documentId);
-                    if (value.getClass() != MetadataDocumentState.class) {
-                        // extra content somehow?
-                        log.error("An extended state value was fubared");
-                        return false;
-                    } else {
-                        MetadataDocumentState documentState = (MetadataDocumentState) value;
-                        log.info(String.format("Testing content from extended state. Document tracker: { %s : %s }",
-                                documentId,
-                                documentState));
-                        if (documentState.equals(MetadataDocumentState.INVALID)) {
-                            return true;
-                        }
-                    }
-                }
+    private SubmissionGuard documentsInvalidGuard() {
+        return (extendedState, headers) -> {
+            MetadataDocumentTracker tracker = getMetadataDocumentTracker(extendedState);
+            if (tracker == null) {
+                return false;
             }
-
-            // check if all documents attached to the current state engine extended context are valid
-            return false;
+            log.debug("Checking documents invalid guard, {} invalid documents", tracker.count(MetadataDocumentState.INVALID));
+            return tracker.hasDocumentsIn(MetadataDocumentState.INVALID);
         };
     }
 
-    private Guard<SubmissionState, SubmissionEvent> documentsValidatingGuard() {
-        return context -> {
-            Map<String, MetadataDocumentState> docMap = Collections.synchronizedMap(getMetadataDocumentTrackerFromContext(context));
-            log.info("Checking documents validating guard with docMap: {}", docMap);
-
-            for (Object key : docMap.keySet()) {
-                if (key.getClass() != String.class) {
-                    // extra content somehow?
-                    log.error("An extended state key was fubared");
-                    return false;
-                } else {
-                    String documentId = (String) key;
-                    Object value = docMap.get(documentId);
-                    if (value.getClass() != MetadataDocumentState.class) {
-                        // extra content somehow?
-                        log.error("An extended state value was fubared");
-                        return false;
-                    } else {
-                        MetadataDocumentState documentState = (MetadataDocumentState) value;
-                        log.info(String.format("Testing content from extended state. Document tracker: { %s : %s }",
-                                documentId,
-                                documentState));
-                        if (documentState.equals(MetadataDocumentState.VALIDATING)) {
-                            return true;
-                        }
-                    }
-                }
+    private SubmissionGuard documentsValidatingGuard() {
+        return (extendedState, headers) -> {
+            MetadataDocumentTracker tracker = getMetadataDocumentTracker(extendedState);
+            if (tracker == null) {
+                return false;
             }
-
-            // check if all documents attached to the current state engine extended context are valid
-            return false;
+            log.debug("Checking documents validating guard, {} validating documents", tracker.count(MetadataDocumentState.VALIDATING));
+            return tracker.hasDocumentsIn(MetadataDocumentState.VALIDATING);
         };
     }
 
-
-    private Guard<SubmissionState, SubmissionEvent> allValidGuard() {
-        return context -> {
-            Map<String, MetadataDocumentState> docMap = Collections.synchronizedMap(getMetadataDocumentTrackerFromContext(context));
-            log.info("Checking all valid guard with docMap: {}", docMap);
-            return docMap.entrySet().size() == 0;
+    private SubmissionGuard allValidGuard() {
+        return (extendedState, headers) -> {
+            // valid documents are not tracked, so every document is valid once the tracker is empty
+            MetadataDocumentTracker tracker = getMetadataDocumentTracker(extendedState);
+            if (tracker == null) {
+                return false;
+            }
+            log.debug("Checking all valid guard, {} documents not yet valid", tracker.size());
+            return tracker.isEmpty();
         };
     }
 
-    private Action<SubmissionState, SubmissionEvent> addOrUpdateContent() {
-        return context -> {
-            // retrieve the id of the document
-            String documentId = context.getMessageHeaders().get(DOCUMENT_ID, String.class);
-            log.info("Adding or updating content for documentId: {}", documentId);
-
-            // retrieve the state of the document
-            MetadataDocumentState documentState =
-                    context.getMessageHeaders().get(DOCUMENT_STATE, MetadataDocumentState.class);
-
-            // add the document and its state to the extended context
-            log.info(String.format("Adding content to extended state. Document tracker: { %s : %s }",
-                    documentId,
-                    documentState));
-            Map<String, MetadataDocumentState> metadataDocumentTracker = getMetadataDocumentTrackerFromContext(context);
+    private SubmissionAction addOrUpdateContent() {
+        return (extendedState, headers) -> {
+            MetadataDocumentTracker metadataDocumentTracker = getMetadataDocumentTracker(extendedState);
 
             if (metadataDocumentTracker == null) {
-                // add the metadata document state map
-                metadataDocumentTracker = new ConcurrentHashMap<>();
-                context.getExtendedState().getVariables().put(Constants.METADATA_DOCUMENT_TRACKER, metadataDocumentTracker);
+                // add the metadata document tracker
+                metadataDocumentTracker = new MetadataDocumentTracker();
+                extendedState.getVariables().put(Constants.METADATA_DOCUMENT_TRACKER, metadataDocumentTracker);
                 log.info("Created new metadata document tracker");
             }
 
-            if (!documentState.equals(MetadataDocumentState.VALID)) {
-                metadataDocumentTracker.put(documentId, documentState);
-                log.info("Updated metadata document tracker with {}", documentId);
-            } else {
-                if (metadataDocumentTracker.containsKey(documentId)) {
-                    metadataDocumentTracker.remove(documentId);
-                    log.info("Removed documentId {} from metadata document tracker", documentId);
+            @SuppressWarnings("unchecked")
+            List<DocumentStateUpdate> documentStateUpdates = headers.get(DOCUMENT_STATE_UPDATES, List.class);
+            if (documentStateUpdates != null) {
+                // a batch of updates is applied in one pass, so the junction after this action is evaluated once
+                log.debug("Adding or updating {} documents in extended state", documentStateUpdates.size());
+                for (DocumentStateUpdate documentStateUpdate : documentStateUpdates) {
+                    trackDocumentState(metadataDocumentTracker, documentStateUpdate.getDocumentId(), documentStateUpdate.getDocumentState());
                 }
+            } else {
+                // retrieve the id and state of the document
+                String documentId = headers.get(DOCUMENT_ID, String.class);
+                MetadataDocumentState documentState = headers.get(DOCUMENT_STATE, MetadataDocumentState.class);
+                log.debug("Adding or updating content in extended state. Document tracker: { {} : {} }", documentId, documentState);
+                trackDocumentState(metadataDocumentTracker, documentId, documentState);
             }
         };
     }
 
-    private Action<SubmissionState, SubmissionEvent> removeDocument() {
-        return context -> {
-            String documentId = context.getMessageHeaders().get(DOCUMENT_ID, String.class);
+    private void trackDocumentState(MetadataDocumentTracker metadataDocumentTracker, String documentId, MetadataDocumentState documentState) {
+        if (!documentState.equals(MetadataDocumentState.VALID)) {
+            metadataDocumentTracker.put(documentId, documentState);
+        } else if (metadataDocumentTracker.remove(documentId) != null) {
+            log.debug("Removed documentId {} from metadata document tracker", documentId);
+        }
+    }
+
+    private SubmissionAction removeDocument() {
+        return (extendedState, headers) -> {
+            String documentId = headers.get(DOCUMENT_ID, String.class);
             log.info("Removing documentId: {}", documentId);
-            Map<String, MetadataDocumentState> metadataDocumentTracker = getMetadataDocumentTrackerFromContext(context);
+            MetadataDocumentTracker metadataDocumentTracker = getMetadataDocumentTracker(extendedState);
 
-            if (metadataDocumentTracker != null && metadataDocumentTracker.containsKey(documentId)) {
-                metadataDocumentTracker.remove(documentId);
+            if (metadataDocumentTracker != null && metadataDocumentTracker.remove(documentId) != null) {
                 log.info("DocumentId {} removed from metadata document tracker", documentId);
             }
         };
     }
 
-    private Guard<SubmissionState, SubmissionEvent> stillProcessingGuard(String tracker) {
-        return context -> {
-            DocumentTracker documentTracker = getDocumentTrackerFromContext(context, tracker);
+    private SubmissionGuard stillProcessingGuard(String tracker) {
+        return (extendedState, headers) -> {
+            DocumentTracker documentTracker = getDocumentTracker(extendedState, tracker);
             log.info("Checking still processing guard for tracker: {}", tracker);
             return !documentTracker.allDocumentsCompleted();
         };
     }
 
-    private Action<SubmissionState, SubmissionEvent> trackDocument(String tracker) {
-        return context -> {
-            String processId = context.getMessageHeaders().get(DOCUMENT_ID, String.class);
-            MetadataDocumentState targetState = context.getMessageHeaders().get(DOCUMENT_STATE, MetadataDocumentState.class);
+    private SubmissionAction trackDocument(String tracker) {
+        return (extendedState, headers) -> {
+            String processId = headers.get(DOCUMENT_ID, String.class);
+            MetadataDocumentState targetState = headers.get(DOCUMENT_STATE, MetadataDocumentState.class);
             log.info("Tracking document with processId: {} and targetState: {}", processId, targetState);
 
-            DocumentTracker documentTracker = (DocumentTracker) context.getExtendedState().getVariables().get(tracker);
+            DocumentTracker documentTracker = (DocumentTracker) extendedState.getVariables().get(tracker);
 
             if (documentTracker == null) {
-                int documentCount = context.getMessageHeaders().get(EXPECTED_DOCUMENT_COUNT, Integer.class);
+                int documentCount = headers.get(EXPECTED_DOCUMENT_COUNT, Integer.class);
                 log.info("Creating new document tracker with document count: {}", documentCount);
 
                 documentTracker = new DocumentTracker(documentCount);
-                context.getExtendedState().getVariables().put(tracker, documentTracker);
+                extendedState.getVariables().put(tracker, documentTracker);
             }
 
             if (targetState.equals(MetadataDocumentState.COMPLETE)
@@ -430,11 +275,18 @@ public class StateMachineConfiguration extends EnumStateMachineConfigurerAdapter
         };
     }
 
-    private Map<String, MetadataDocumentState> getMetadataDocumentTrackerFromContext(StateContext<SubmissionState, SubmissionEvent> context) {
-        return (Map<String, MetadataDocumentState>) context.getExtendedState().getVariables().get(Constants.METADATA_DOCUMENT_TRACKER);
+    private MetadataDocumentTracker getMetadataDocumentTracker(ExtendedState extendedState) {
+        Object tracker = extendedState.getVariables().get(Constants.METADATA_DOCUMENT_TRACKER);
+        if (tracker != null && !(tracker instanceof MetadataDocumentTracker)) {
+            // machines persisted before document state counts were tracked hold a plain map
+            MetadataDocumentTracker migrated = MetadataDocumentTracker.from(tracker);
+            extendedState.getVariables().put(Constants.METADATA_DOCUMENT_TRACKER, migrated);
+            return migrated;
+        }
+        return (MetadataDocumentTracker) tracker;
     }
 
-    private DocumentTracker getDocumentTrackerFromContext(StateContext<SubmissionState, SubmissionEvent> context, String tracker) {
-        return (DocumentTracker) context.getExtendedState().getVariables().get(tracker);
+    private DocumentTracker getDocumentTracker(ExtendedState extendedState, String tracker) {
+        return (DocumentTracker) extendedState.getVariables().get(tracker);
     }
 }
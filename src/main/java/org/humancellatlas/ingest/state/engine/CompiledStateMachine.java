@@ -0,0 +1,294 @@
+package org.humancellatlas.ingest.state.engine;
+
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.humancellatlas.ingest.state.engine.SubmissionTransitionGraph.Transition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.access.StateMachineAccess;
+import org.springframework.statemachine.access.StateMachineAccessor;
+import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.listener.StateMachineListener;
+import org.springframework.statemachine.monitor.StateMachineMonitor;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.StateMachineInterceptor;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A submission state machine backed by a shared {@link TransitionTable}.
+ * <p>
+ * Each instance only holds the current state, the extended state and its listeners; the transition graph, junctions and
+ * guards are shared with every other envelope. Events are processed synchronously on the calling thread, matching the
+ * default synchronous executor of the Spring state machine. The machine is its own single region: the accessor hands out
+ * one {@link StateMachineAccess} whose {@code resetStateMachine} delegates to {@link #resetStateMachine}, so the Spring
+ * persisters can restore it like any other machine.
+ * <p>
+ * Submachines, interceptors and monitors are not supported: registering an interceptor or monitor through the accessor
+ * throws {@link UnsupportedOperationException}, so this engine can't be combined with a
+ * {@code StateMachineRuntimePersister} or state machine monitoring. Nothing in the tracker registers either.
+ */
+public class CompiledStateMachine implements StateMachine<SubmissionState, SubmissionEvent> {
+    private final TransitionTable table;
+    private final String id;
+    private final UUID uuid;
+    private final ExtendedState extendedState;
+    private final List<StateMachineListener<SubmissionState, SubmissionEvent>> listeners;
+    private final StateMachineAccessor<SubmissionState, SubmissionEvent> accessor = new SingleRegionAccessor();
+
+    private volatile SubmissionState currentState;
+    private volatile boolean running;
+    private volatile Exception error;
+
+    private static final Logger log = LoggerFactory.getLogger(CompiledStateMachine.class);
+
+    CompiledStateMachine(TransitionTable table, String id, UUID uuid) {
+        this.table = table;
+        this.id = id;
+        this.uuid = uuid;
+        this.extendedState = new DefaultExtendedState();
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    @Override
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        listeners.forEach(listener -> listener.stateMachineStarted(this));
+        if (currentState == null) {
+            enter(null, table.getInitial());
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        listeners.forEach(listener -> listener.stateMachineStopped(this));
+    }
+
+    @Override
+    public boolean sendEvent(SubmissionEvent event) {
+        return sendEvent(MessageBuilder.withPayload(event).build());
+    }
+
+    @Override
+    public synchronized boolean sendEvent(Message<SubmissionEvent> event) {
+        Transition transition = running && !hasStateMachineError()
+                ? table.transitionFor(currentState, event.getPayload())
+                : null;
+
+        if (transition == null) {
+            listeners.forEach(listener -> listener.eventNotAccepted(event));
+            return false;
+        }
+
+        SubmissionState target;
+        try {
+            if (transition.getAction() != null) {
+                transition.getAction().execute(extendedState, event.getHeaders());
+            }
+            target = table.resolve(transition.getTarget(), extendedState, event.getHeaders());
+        } catch (RuntimeException e) {
+            // same as the Spring executor: the event was accepted but the transition is aborted
+            log.warn(String.format("Aborting transition %s -> %s on event %s for machine %s",
+                    transition.getSource(), transition.getTarget(), transition.getEvent(), id), e);
+            return true;
+        }
+
+        enter(currentState, target);
+        if (table.isEnd(target)) {
+            stop();
+        }
+        return true;
+    }
+
+    @Override
+    public State<SubmissionState, SubmissionEvent> getState() {
+        return table.stateFor(currentState);
+    }
+
+    @Override
+    public Collection<State<SubmissionState, SubmissionEvent>> getStates() {
+        return table.getStates();
+    }
+
+    @Override
+    public Collection<org.springframework.statemachine.transition.Transition<SubmissionState, SubmissionEvent>> getTransitions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isComplete() {
+        return table.isEnd(currentState);
+    }
+
+    @Override
+    public void addStateListener(StateMachineListener<SubmissionState, SubmissionEvent> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeStateListener(StateMachineListener<SubmissionState, SubmissionEvent> listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public State<SubmissionState, SubmissionEvent> getInitialState() {
+        return table.stateFor(table.getInitial());
+    }
+
+    @Override
+    public ExtendedState getExtendedState() {
+        return extendedState;
+    }
+
+    @Override
+    public StateMachineAccessor<SubmissionState, SubmissionEvent> getStateMachineAccessor() {
+        return accessor;
+    }
+
+    @Override
+    public void setStateMachineError(Exception exception) {
+        this.error = exception;
+        if (exception != null) {
+            listeners.forEach(listener -> listener.stateMachineError(this, exception));
+        }
+    }
+
+    @Override
+    public boolean hasStateMachineError() {
+        return error != null;
+    }
+
+    /**
+     * Resets this machine to the state and extended state of a persisted context, without notifying listeners of a
+     * state change. Extended state variables are left untouched if the context has no extended state. As with the
+     * Spring state machine, a null context resets the machine to its initial state and clears its extended state.
+     *
+     * @param context the context to restore
+     */
+    public synchronized void resetStateMachine(StateMachineContext<SubmissionState, SubmissionEvent> context) {
+        if (context == null) {
+            currentState = table.getInitial();
+            extendedState.getVariables().clear();
+            return;
+        }
+        currentState = context.getState();
+        if (context.getExtendedState() != null) {
+            extendedState.getVariables().clear();
+            extendedState.getVariables().putAll(context.getExtendedState().getVariables());
+        }
+    }
+
+    /**
+     * @return a context describing the current state of this machine, suitable for a {@code StateMachinePersist}
+     */
+    public synchronized StateMachineContext<SubmissionState, SubmissionEvent> toContext() {
+        return new DefaultStateMachineContext<>(currentState, null, null, extendedState, null, id);
+    }
+
+    private void enter(SubmissionState from, SubmissionState to) {
+        State<SubmissionState, SubmissionEvent> fromState = table.stateFor(from);
+        State<SubmissionState, SubmissionEvent> toState = table.stateFor(to);
+        currentState = to;
+        listeners.forEach(listener -> {
+            if (fromState != null) {
+                listener.stateExited(fromState);
+            }
+            listener.stateEntered(toState);
+            listener.stateChanged(fromState, toState);
+        });
+    }
+
+    private class SingleRegionAccessor implements StateMachineAccessor<SubmissionState, SubmissionEvent> {
+        private final StateMachineAccess<SubmissionState, SubmissionEvent> access = new Access();
+
+        @Override
+        public void doWithAllRegions(StateMachineFunction<StateMachineAccess<SubmissionState, SubmissionEvent>> function) {
+            function.apply(access);
+        }
+
+        @Override
+        public List<StateMachineAccess<SubmissionState, SubmissionEvent>> withAllRegions() {
+            return Collections.singletonList(access);
+        }
+
+        @Override
+        public void doWithRegion(StateMachineFunction<StateMachineAccess<SubmissionState, SubmissionEvent>> function) {
+            function.apply(access);
+        }
+
+        @Override
+        public StateMachineAccess<SubmissionState, SubmissionEvent> withRegion() {
+            return access;
+        }
+    }
+
+    private class Access implements StateMachineAccess<SubmissionState, SubmissionEvent> {
+        @Override
+        public void resetStateMachine(StateMachineContext<SubmissionState, SubmissionEvent> stateMachineContext) {
+            CompiledStateMachine.this.resetStateMachine(stateMachineContext);
+        }
+
+        @Override
+        public void setRelay(StateMachine<SubmissionState, SubmissionEvent> stateMachine) {
+            // only used to wire submachines together
+        }
+
+        @Override
+        public void setParentMachine(StateMachine<SubmissionState, SubmissionEvent> parentMachine) {
+            // only used to wire submachines together
+        }
+
+        @Override
+        public void setForwardedInitialEvent(Message<SubmissionEvent> message) {
+            // only used to wire submachines together
+        }
+
+        @Override
+        public void setInitialEnabled(boolean enabled) {
+            // the initial state is only entered by start() when no context has been restored
+        }
+
+        @Override
+        public void addStateMachineInterceptor(StateMachineInterceptor<SubmissionState, SubmissionEvent> interceptor) {
+            throw new UnsupportedOperationException("Compiled state machines do not support interceptors");
+        }
+
+        @Override
+        public void addStateMachineMonitor(StateMachineMonitor<SubmissionState, SubmissionEvent> monitor) {
+            throw new UnsupportedOperationException("Compiled state machines do not support monitors");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompiledStateMachine [id=%s, state=%s]", id, currentState);
+    }
+}
@@ -0,0 +1,52 @@
+package org.humancellatlas.ingest.state.engine;
+
+import org.humancellatlas.ingest.state.StateMachineConfiguration;
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * Creates {@link CompiledStateMachine}s instead of full Spring state machines. The transition graph from
+ * {@link StateMachineConfiguration} is compiled once, so creating a machine for a new envelope only allocates its
+ * current state and extended state.
+ * <p>
+ * Enabled with {@code app.state-engine=compiled}; the Spring state machine factory is used otherwise.
+ */
+@Component
+@Primary
+@ConditionalOnProperty(value = "app.state-engine", havingValue = "compiled")
+public class CompiledStateMachineFactory implements StateMachineFactory<SubmissionState, SubmissionEvent> {
+    private final TransitionTable transitionTable;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    public CompiledStateMachineFactory(StateMachineConfiguration stateMachineConfiguration) {
+        this.transitionTable = TransitionTable.compile(stateMachineConfiguration.submissionTransitionGraph());
+        log.info("Using compiled submission state engine");
+    }
+
+    @Override
+    public StateMachine<SubmissionState, SubmissionEvent> getStateMachine() {
+        return new CompiledStateMachine(transitionTable, null, UUID.randomUUID());
+    }
+
+    @Override
+    public StateMachine<SubmissionState, SubmissionEvent> getStateMachine(String machineId) {
+        return new CompiledStateMachine(transitionTable, machineId, UUID.randomUUID());
+    }
+
+    @Override
+    public StateMachine<SubmissionState, SubmissionEvent> getStateMachine(UUID uuid) {
+        return new CompiledStateMachine(transitionTable, null, uuid);
+    }
+}
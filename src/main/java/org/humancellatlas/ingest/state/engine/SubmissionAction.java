@@ -0,0 +1,13 @@
+package org.humancellatlas.ingest.state.engine;
+
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.ExtendedState;
+
+/**
+ * An action executed on a submission state transition. Like {@link SubmissionGuard}, this only sees the extended state
+ * and event headers so it can be run by either the Spring state machine or the compiled engine.
+ */
+@FunctionalInterface
+public interface SubmissionAction {
+    void execute(ExtendedState extendedState, MessageHeaders headers);
+}
@@ -0,0 +1,14 @@
+package org.humancellatlas.ingest.state.engine;
+
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.ExtendedState;
+
+/**
+ * A guard on a submission state transition, evaluated against the extended state of the machine and the headers of the
+ * event being processed. Independent of the Spring StateContext so that the same guard can be evaluated by the compiled
+ * engine.
+ */
+@FunctionalInterface
+public interface SubmissionGuard {
+    boolean evaluate(ExtendedState extendedState, MessageHeaders headers);
+}
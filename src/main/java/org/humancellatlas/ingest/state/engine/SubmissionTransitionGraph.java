@@ -0,0 +1,169 @@
+package org.humancellatlas.ingest.state.engine;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
+import org.springframework.statemachine.config.configurers.ExternalTransitionConfigurer;
+import org.springframework.statemachine.config.configurers.JunctionTransitionConfigurer;
+import org.springframework.statemachine.guard.Guard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declarative description of the submission state transitions, junctions and guards.
+ * <p>
+ * This is the single source of truth for the transition graph: it is applied to the Spring state machine configurer by
+ * {@link #configure(StateMachineTransitionConfigurer)} and compiled into a lookup table by {@link TransitionTable}.
+ */
+@Getter
+public class SubmissionTransitionGraph {
+    private final SubmissionState initial;
+    private final SubmissionState end;
+    private final List<Transition> transitions;
+    private final List<Junction> junctions;
+
+    private SubmissionTransitionGraph(SubmissionState initial,
+                                      SubmissionState end,
+                                      List<Transition> transitions,
+                                      List<Junction> junctions) {
+        this.initial = initial;
+        this.end = end;
+        this.transitions = Collections.unmodifiableList(transitions);
+        this.junctions = Collections.unmodifiableList(junctions);
+    }
+
+    public static Builder builder(SubmissionState initial, SubmissionState end) {
+        return new Builder(initial, end);
+    }
+
+    /**
+     * Registers every transition and junction of this graph with a Spring state machine transition configurer
+     *
+     * @param transitions the configurer to apply the graph to
+     * @throws Exception if the configurer rejects a transition
+     */
+    public void configure(StateMachineTransitionConfigurer<SubmissionState, SubmissionEvent> transitions) throws Exception {
+        for (Transition transition : this.transitions) {
+            ExternalTransitionConfigurer<SubmissionState, SubmissionEvent> external = transitions.withExternal()
+                    .source(transition.getSource())
+                    .target(transition.getTarget())
+                    .event(transition.getEvent());
+            if (transition.getAction() != null) {
+                external.action(springAction(transition.getAction()));
+            }
+        }
+
+        for (Junction junction : this.junctions) {
+            JunctionTransitionConfigurer<SubmissionState, SubmissionEvent> configurer = transitions.withJunction()
+                    .source(junction.getSource());
+            List<Branch> branches = junction.getBranches();
+            for (int i = 0; i < branches.size(); i++) {
+                Branch branch = branches.get(i);
+                if (i == 0) {
+                    configurer.first(branch.getTarget(), springGuard(branch.getGuard()));
+                } else {
+                    configurer.then(branch.getTarget(), springGuard(branch.getGuard()));
+                }
+            }
+            configurer.last(junction.getLast());
+        }
+    }
+
+    private static Action<SubmissionState, SubmissionEvent> springAction(SubmissionAction action) {
+        return context -> action.execute(context.getExtendedState(), context.getMessageHeaders());
+    }
+
+    private static Guard<SubmissionState, SubmissionEvent> springGuard(SubmissionGuard guard) {
+        return context -> guard.evaluate(context.getExtendedState(), context.getMessageHeaders());
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Transition {
+        private final SubmissionState source;
+        private final SubmissionState target;
+        private final SubmissionEvent event;
+        private final SubmissionAction action;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Branch {
+        private final SubmissionState target;
+        private final SubmissionGuard guard;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Junction {
+        private final SubmissionState source;
+        private final List<Branch> branches;
+        private final SubmissionState last;
+    }
+
+    public static class Builder {
+        private final SubmissionState initial;
+        private final SubmissionState end;
+        private final List<Transition> transitions = new ArrayList<>();
+        private final List<Junction> junctions = new ArrayList<>();
+
+        private Builder(SubmissionState initial, SubmissionState end) {
+            this.initial = initial;
+            this.end = end;
+        }
+
+        public Builder external(SubmissionState source, SubmissionState target, SubmissionEvent event) {
+            return external(source, target, event, null);
+        }
+
+        public Builder external(SubmissionState source, SubmissionState target, SubmissionEvent event, SubmissionAction action) {
+            transitions.add(new Transition(source, target, event, action));
+            return this;
+        }
+
+        public JunctionBuilder junction(SubmissionState source) {
+            return new JunctionBuilder(this, source);
+        }
+
+        public SubmissionTransitionGraph build() {
+            return new SubmissionTransitionGraph(initial, end, new ArrayList<>(transitions), new ArrayList<>(junctions));
+        }
+    }
+
+    public static class JunctionBuilder {
+        private final Builder parent;
+        private final SubmissionState source;
+        private final List<Branch> branches = new ArrayList<>();
+
+        private JunctionBuilder(Builder parent, SubmissionState source) {
+            this.parent = parent;
+            this.source = source;
+        }
+
+        public JunctionBuilder first(SubmissionState target, SubmissionGuard guard) {
+            if (!branches.isEmpty()) {
+                throw new IllegalStateException(String.format("Junction %s already has a first branch", source));
+            }
+            branches.add(new Branch(target, guard));
+            return this;
+        }
+
+        public JunctionBuilder then(SubmissionState target, SubmissionGuard guard) {
+            if (branches.isEmpty()) {
+                throw new IllegalStateException(String.format("Junction %s must declare a first branch before then()", source));
+            }
+            branches.add(new Branch(target, guard));
+            return this;
+        }
+
+        public Builder last(SubmissionState target) {
+            parent.junctions.add(new Junction(source, Collections.unmodifiableList(new ArrayList<>(branches)), target));
+            return parent;
+        }
+    }
+}
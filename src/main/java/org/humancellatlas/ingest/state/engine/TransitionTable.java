@@ -0,0 +1,125 @@
+package org.humancellatlas.ingest.state.engine;
+
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.humancellatlas.ingest.state.engine.SubmissionTransitionGraph.Branch;
+import org.humancellatlas.ingest.state.engine.SubmissionTransitionGraph.Junction;
+import org.humancellatlas.ingest.state.engine.SubmissionTransitionGraph.Transition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.state.EnumState;
+import org.springframework.statemachine.state.State;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link SubmissionTransitionGraph} compiled into a {@link SubmissionState} x {@link SubmissionEvent} lookup table.
+ * <p>
+ * Built once and shared by every {@link CompiledStateMachine}, so resolving a transition is two array lookups rather
+ * than a walk over per-machine transition objects.
+ */
+public class TransitionTable {
+    private static final int EVENT_COUNT = SubmissionEvent.values().length;
+
+    private final SubmissionState initial;
+    private final SubmissionState end;
+    private final Transition[] transitions;
+    private final Junction[] junctions;
+    private final List<State<SubmissionState, SubmissionEvent>> states;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private TransitionTable(SubmissionTransitionGraph graph) {
+        this.initial = graph.getInitial();
+        this.end = graph.getEnd();
+        this.transitions = new Transition[SubmissionState.values().length * EVENT_COUNT];
+        this.junctions = new Junction[SubmissionState.values().length];
+
+        for (Transition transition : graph.getTransitions()) {
+            int index = indexOf(transition.getSource(), transition.getEvent());
+            if (transitions[index] != null) {
+                throw new IllegalStateException(String.format("Duplicate transition from %s on event %s",
+                        transition.getSource(), transition.getEvent()));
+            }
+            transitions[index] = transition;
+        }
+
+        for (Junction junction : graph.getJunctions()) {
+            junctions[junction.getSource().ordinal()] = junction;
+        }
+
+        List<State<SubmissionState, SubmissionEvent>> states = new ArrayList<>();
+        for (SubmissionState state : SubmissionState.values()) {
+            states.add(new EnumState<SubmissionState, SubmissionEvent>(state));
+        }
+        this.states = Collections.unmodifiableList(states);
+    }
+
+    public static TransitionTable compile(SubmissionTransitionGraph graph) {
+        return new TransitionTable(graph);
+    }
+
+    public SubmissionState getInitial() {
+        return initial;
+    }
+
+    public boolean isEnd(SubmissionState state) {
+        return end != null && end.equals(state);
+    }
+
+    /**
+     * @return the transition triggered by the event in the given source state, or null if the event is not accepted
+     */
+    public Transition transitionFor(SubmissionState source, SubmissionEvent event) {
+        return transitions[indexOf(source, event)];
+    }
+
+    /**
+     * Follows junctions from the target of a transition until a concrete state is reached. Branches are evaluated in
+     * declaration order and the first guard that passes wins; a guard that throws denies its branch.
+     */
+    public SubmissionState resolve(SubmissionState target, ExtendedState extendedState, MessageHeaders headers) {
+        SubmissionState resolved = target;
+        Junction junction = junctions[resolved.ordinal()];
+        while (junction != null) {
+            resolved = junction.getLast();
+            for (Branch branch : junction.getBranches()) {
+                if (evaluate(branch.getGuard(), extendedState, headers)) {
+                    resolved = branch.getTarget();
+                    break;
+                }
+            }
+            junction = junctions[resolved.ordinal()];
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the state object for the given state id; instances are shared between all machines using this table
+     */
+    public State<SubmissionState, SubmissionEvent> stateFor(SubmissionState state) {
+        return state == null ? null : states.get(state.ordinal());
+    }
+
+    public Collection<State<SubmissionState, SubmissionEvent>> getStates() {
+        return states;
+    }
+
+    private boolean evaluate(SubmissionGuard guard, ExtendedState extendedState, MessageHeaders headers) {
+        try {
+            return guard.evaluate(extendedState, headers);
+        } catch (RuntimeException e) {
+            log.warn("Denying junction branch as its guard threw an exception", e);
+            return false;
+        }
+    }
+
+    private static int indexOf(SubmissionState state, SubmissionEvent event) {
+        return state.ordinal() * EVENT_COUNT + event.ordinal();
+    }
+}
@@ -0,0 +1,17 @@
+package org.humancellatlas.ingest.state.monitor;
+
+import java.util.UUID;
+
+/**
+ * Loads a persisted state machine that the {@link SubmissionStateMonitor} knows about but has not loaded yet
+ */
+@FunctionalInterface
+public interface StateMachineLoader {
+
+    /**
+     * Restores the persisted state machine of an envelope and, if the envelope still exists, starts monitoring it
+     *
+     * @param submissionEnvelopeUuid the envelope to load the state machine for
+     */
+    void load(UUID submissionEnvelopeUuid);
+}
@@ -84,8 +84,14 @@ public class SubmissionStateListener extends StateMachineListenerAdapter<Submiss
         }
     }
 
+    @Override
+    public void extendedStateChanged(Object key, Object value) {
+        submissionStateMonitor.markDirty(UUID.fromString(submissionEnvelopeReference.getUuid()));
+    }
+
     @Override
     public void stateChanged(State<SubmissionState, SubmissionEvent> fromState, State<SubmissionState, SubmissionEvent> toState) {
+        submissionStateMonitor.markDirty(UUID.fromString(submissionEnvelopeReference.getUuid()));
         Optional.ofNullable(fromState).ifPresent( from -> {
             if(! from.getId().equals(toState.getId())) {
                 log.info(String.format("\tEnvelope '%s' -> State %s",
@@ -1,11 +1,18 @@
 package org.humancellatlas.ingest.state.monitor;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import org.humancellatlas.ingest.model.DocumentStateUpdate;
 import org.humancellatlas.ingest.model.MetadataDocumentReference;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 import org.humancellatlas.ingest.state.MetadataDocumentInfo;
 import org.humancellatlas.ingest.state.MetadataDocumentState;
 import org.humancellatlas.ingest.state.SubmissionEvent;
 import org.humancellatlas.ingest.state.SubmissionState;
+import org.humancellatlas.ingest.state.persistence.Persister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,11 +20,14 @@ import org.springframework.messaging.Message;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.config.StateMachineFactory;
-import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.statemachine.state.State;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
  * Javadocs go here!
@@ -29,18 +39,45 @@ import java.util.concurrent.ConcurrentHashMap;
 public class SubmissionStateMonitor {
     private final StateMachineFactory<SubmissionState, SubmissionEvent> stateMachineFactory;
     private final SubmissionStateListenerBuilder submissionStateListenerBuilder;
+    private final Persister persister;
 
     // in memory map of currently running state machines
-    private final Map<UUID, StateMachine<SubmissionState, SubmissionEvent>> stateMachineMap;
+    private final Map<UUID, MonitoredStateMachine> stateMachineMap;
+
+    // state machines that were idle for too long and now only live in the persister, restored on their next use
+    private final Map<UUID, PassivatedStateMachine> passivatedStateMachines;
+    private final Map<UUID, CompletableFuture<Optional<MonitoredStateMachine>>> restorations;
+
+    // persisted state machines that have not been loaded yet, loaded on their first use when auto-loading lazily
+    private final Set<UUID> unloadedStateMachines;
+    private volatile StateMachineLoader stateMachineLoader;
+
+    // envelopes whose state machine changed since it was last persisted
+    private final Set<UUID> dirtyStateMachines;
+
+    private final Counter hits = Metrics.counter("statemachine.monitor.lookups", "result", "hit");
+    private final Counter misses = Metrics.counter("statemachine.monitor.lookups", "result", "miss");
+    private final Counter evictions = Metrics.counter("statemachine.monitor.evictions");
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     @Autowired
     public SubmissionStateMonitor(StateMachineFactory<SubmissionState, SubmissionEvent> stateMachineFactory,
-                                  SubmissionStateListenerBuilder submissionStateListenerBuilder) {
+                                  SubmissionStateListenerBuilder submissionStateListenerBuilder,
+                                  Persister persister) {
         this.stateMachineFactory = stateMachineFactory;
         this.submissionStateListenerBuilder = submissionStateListenerBuilder;
+        this.persister = persister;
         this.stateMachineMap = new ConcurrentHashMap<>();
+        this.passivatedStateMachines = new ConcurrentHashMap<>();
+        this.restorations = new ConcurrentHashMap<>();
+        this.dirtyStateMachines = ConcurrentHashMap.newKeySet();
+        this.unloadedStateMachines = ConcurrentHashMap.newKeySet();
+
+        Metrics.gauge("statemachine.monitor.active", stateMachineMap, Map::size);
+        Metrics.gauge("statemachine.monitor.passivated", passivatedStateMachines, Map::size);
+        Metrics.gauge("statemachine.monitor.dirty", dirtyStateMachines, Set::size);
+        Metrics.gauge("statemachine.monitor.unloaded", unloadedStateMachines, Set::size);
     }
 
     public void monitorSubmissionEnvelope(SubmissionEnvelopeReference submissionEnvelopeReference) {
@@ -50,22 +87,32 @@ public class SubmissionStateMonitor {
     public void monitorSubmissionEnvelope(SubmissionEnvelopeReference submissionEnvelopeReference, boolean autoremove) {
         StateMachine<SubmissionState, SubmissionEvent> stateMachine =
                 stateMachineFactory.getStateMachine(submissionEnvelopeReference.getUuid());
-        stateMachine.addStateListener(submissionStateListenerBuilder.listenerFor(submissionEnvelopeReference, this, autoremove));
-
-        stateMachine.start();
-        stateMachineMap.put(UUID.fromString(submissionEnvelopeReference.getUuid()), stateMachine);
+        register(submissionEnvelopeReference, stateMachine, autoremove, true);
     }
 
     public void monitorSubmissionEnvelope(SubmissionEnvelopeReference submissionEnvelopeReference,
                                           StateMachine<SubmissionState, SubmissionEvent> stateMachine) {
-        stateMachine.addStateListener(submissionStateListenerBuilder.listenerFor(submissionEnvelopeReference, this, true));
-        stateMachine.start();
-        stateMachineMap.put(UUID.fromString(submissionEnvelopeReference.getUuid()), stateMachine);
+        register(submissionEnvelopeReference, stateMachine, true, true);
+    }
+
+    /**
+     * Registers persisted state machines to be loaded the first time their envelope is used, rather than at startup
+     *
+     * @param submissionEnvelopeUuids the envelopes with a persisted state machine
+     * @param stateMachineLoader      loads the persisted state machine of an envelope and monitors it
+     */
+    public void monitorUnloadedStateMachines(Collection<UUID> submissionEnvelopeUuids, StateMachineLoader stateMachineLoader) {
+        this.stateMachineLoader = stateMachineLoader;
+        submissionEnvelopeUuids.stream()
+                .filter(submissionEnvelopeUuid -> !stateMachineMap.containsKey(submissionEnvelopeUuid))
+                .forEach(unloadedStateMachines::add);
     }
 
     public void stopMonitoring(SubmissionEnvelopeReference submissionEnvelopeReference) {
         UUID submissionEnvelopeUuid = UUID.fromString(submissionEnvelopeReference.getUuid());
-        if (stateMachineMap.containsKey(submissionEnvelopeUuid)) {
+        if (stateMachineMap.containsKey(submissionEnvelopeUuid)
+                || passivatedStateMachines.containsKey(submissionEnvelopeUuid)
+                || unloadedStateMachines.contains(submissionEnvelopeUuid)) {
             removeStateMachine(submissionEnvelopeUuid);
         } else {
             throw new IllegalArgumentException(String.format(
@@ -74,11 +121,15 @@ public class SubmissionStateMonitor {
     }
 
     public void stopMonitoring(StateMachine<SubmissionState, SubmissionEvent> stateMachine) {
-        stateMachineMap.entrySet().removeIf(entry -> entry.getValue().equals(stateMachine));
+        stateMachineMap.entrySet().removeIf(entry -> entry.getValue().getStateMachine().equals(stateMachine));
     }
 
     public boolean isMonitoring(SubmissionEnvelopeReference submissionEnvelopeReference) {
-        return stateMachineMap.containsKey(UUID.fromString(submissionEnvelopeReference.getUuid()));
+        UUID submissionEnvelopeUuid = UUID.fromString(submissionEnvelopeReference.getUuid());
+        // an unloaded machine is only monitored if it still reconciles with core, so it has to be loaded to find out
+        return stateMachineMap.containsKey(submissionEnvelopeUuid)
+                || passivatedStateMachines.containsKey(submissionEnvelopeUuid)
+                || (unloadedStateMachines.contains(submissionEnvelopeUuid) && findMonitoredStateMachine(submissionEnvelopeUuid).isPresent());
     }
 
     public SubmissionState findCurrentState(SubmissionEnvelopeReference submissionEnvelopeReference) {
@@ -93,6 +144,29 @@ public class SubmissionStateMonitor {
         }
     }
 
+    /**
+     * Finds the current state of an envelope's state machine if it is loaded, without restoring a passivated or
+     * unloaded machine
+     */
+    public Optional<SubmissionState> findLoadedState(SubmissionEnvelopeReference submissionEnvelopeReference) {
+        return Optional.ofNullable(stateMachineMap.get(UUID.fromString(submissionEnvelopeReference.getUuid())))
+                       .map(monitored -> monitored.getStateMachine().getState())
+                       .map(State::getId);
+    }
+
+    /**
+     * Finds the reference an envelope's state machine was registered with, if the machine is loaded or passivated,
+     * without restoring or loading anything
+     */
+    public Optional<SubmissionEnvelopeReference> findTrackedReference(UUID submissionEnvelopeUuid) {
+        MonitoredStateMachine monitored = stateMachineMap.get(submissionEnvelopeUuid);
+        if (monitored != null) {
+            return Optional.of(monitored.getSubmissionEnvelopeReference());
+        }
+        return Optional.ofNullable(passivatedStateMachines.get(submissionEnvelopeUuid))
+                       .map(PassivatedStateMachine::getSubmissionEnvelopeReference);
+    }
+
     public boolean sendEventForSubmissionEnvelope(SubmissionEnvelopeReference submissionEnvelopeReference,
                                                   SubmissionEvent event) {
         if (event.equals(SubmissionEvent.CONTENT_ADDED)) {
@@ -106,91 +180,309 @@ public class SubmissionStateMonitor {
                             "Use 'notifyOfValidatedMetadataDocument()' instead.");
         }
 
-        Optional<StateMachine<SubmissionState, SubmissionEvent>> stateMachine =
-                findStateMachine(UUID.fromString(submissionEnvelopeReference.getUuid()));
-        if (stateMachine.isPresent()) {
-            StateMachine<SubmissionState, SubmissionEvent> machine = stateMachine.get();
-            return machine.sendEvent(event);
-        } else {
-            throw new IllegalArgumentException(String.format(
-                    "Submission envelope reference '%s' is not currently being monitored",
-                    submissionEnvelopeReference.getUuid()));
-        }
+        return sendEvent(submissionEnvelopeReference.getUuid(), MessageBuilder.withPayload(event).build());
     }
 
     public boolean notifyOfMetadataDocumentState(MetadataDocumentReference metadataDocumentReference, SubmissionEnvelopeReference submissionEnvelopeReference, MetadataDocumentState state) {
-        Optional<StateMachine<SubmissionState, SubmissionEvent>> stateMachine =
-                findStateMachine(UUID.fromString(submissionEnvelopeReference.getUuid()));
+        Message<SubmissionEvent> message = MessageBuilder.withPayload(SubmissionEvent.DOCUMENT_PROCESSED)
+                .setHeader(MetadataDocumentInfo.DOCUMENT_ID, metadataDocumentReference.getId())
+                .setHeader(MetadataDocumentInfo.DOCUMENT_STATE, state)
+                .build();
 
-        if (stateMachine.isPresent()) {
-            StateMachine<SubmissionState, SubmissionEvent> machine = stateMachine.get();
+        return sendEvent(submissionEnvelopeReference.getUuid(), message);
+    }
 
+    /**
+     * Applies the new states of several metadata documents of an envelope in a single DOCUMENT_PROCESSED event, so the
+     * validation junction is evaluated once and the envelope changes state at most once. Where a document has more
+     * than one update with a state, the last of them is applied.
+     *
+     * @return whether each update was accepted, in the order given. Updates without a document id or state are
+     * rejected and not applied; the rest are accepted if the state machine accepted the event.
+     */
+    public List<Boolean> notifyOfMetadataDocumentStates(SubmissionEnvelopeReference submissionEnvelopeReference,
+                                                        List<DocumentStateUpdate> documentStateUpdates) {
+        List<Boolean> results = new ArrayList<>(documentStateUpdates.size());
+        Map<String, DocumentStateUpdate> latestUpdates = new LinkedHashMap<>();
+        for (DocumentStateUpdate documentStateUpdate : documentStateUpdates) {
+            String documentId = documentStateUpdate.getDocumentId();
+            boolean applicable = documentId != null && documentStateUpdate.getDocumentState() != null;
+            if (applicable) {
+                latestUpdates.remove(documentId);
+                latestUpdates.put(documentId, documentStateUpdate);
+            }
+            results.add(applicable);
+        }
+
+        if (!latestUpdates.isEmpty()) {
             Message<SubmissionEvent> message = MessageBuilder.withPayload(SubmissionEvent.DOCUMENT_PROCESSED)
-                    .setHeader(MetadataDocumentInfo.DOCUMENT_ID, metadataDocumentReference.getId())
-                    .setHeader(MetadataDocumentInfo.DOCUMENT_STATE, state)
+                    .setHeader(MetadataDocumentInfo.DOCUMENT_STATE_UPDATES, new ArrayList<>(latestUpdates.values()))
                     .build();
 
-            return machine.sendEvent(message);
-        } else {
-            throw new IllegalArgumentException(String.format(
-                    "Submission envelope reference '%s' is not currently being monitored",
-                    submissionEnvelopeReference.getUuid()));
+            if (!sendEvent(submissionEnvelopeReference.getUuid(), message)) {
+                Collections.fill(results, false);
+            }
         }
+        return results;
     }
 
     public boolean notifyOfMetadataDocumentDelete(String metadataDocumentId, SubmissionEnvelopeReference submissionEnvelopeReference) {
-        Optional<StateMachine<SubmissionState, SubmissionEvent>> stateMachine =
-                findStateMachine(UUID.fromString(submissionEnvelopeReference.getUuid()));
+        Message<SubmissionEvent> message = MessageBuilder.withPayload(SubmissionEvent.DOCUMENT_DELETED)
+                .setHeader(MetadataDocumentInfo.DOCUMENT_ID, metadataDocumentId)
+                .build();
 
-        if (stateMachine.isPresent()) {
-            StateMachine<SubmissionState, SubmissionEvent> machine = stateMachine.get();
+        return sendEvent(submissionEnvelopeReference.getUuid(), message);
+    }
 
-            Message<SubmissionEvent> message = MessageBuilder.withPayload(SubmissionEvent.DOCUMENT_DELETED)
-                    .setHeader(MetadataDocumentInfo.DOCUMENT_ID, metadataDocumentId)
-                    .build();
+    public boolean notifyOfDocumentState(String documentId, String envelopeUuid,
+                                         int totalExpectedDocuments, MetadataDocumentState state, SubmissionEvent submissionEvent) {
+        Message<SubmissionEvent> message = MessageBuilder.withPayload(submissionEvent)
+                .setHeader(MetadataDocumentInfo.DOCUMENT_ID, documentId)
+                .setHeader(MetadataDocumentInfo.DOCUMENT_STATE, state)
+                .setHeader(MetadataDocumentInfo.EXPECTED_DOCUMENT_COUNT, totalExpectedDocuments)
+                .build();
 
-            return machine.sendEvent(message);
-        } else {
-            throw new IllegalArgumentException(String.format(
-                    "Submission envelope reference '%s' is not currently being monitored",
-                    submissionEnvelopeReference.getUuid()));
+        return sendEvent(envelopeUuid, message);
+    }
+
+    /**
+     * Persists and drops from memory every state machine that has not been used for longer than maxIdle. Passivated
+     * machines are restored from the persister the next time they are looked up or sent an event.
+     *
+     * @param maxIdle how long a state machine can go unused before being passivated
+     * @return the number of state machines passivated
+     */
+    public int passivateIdleStateMachines(Duration maxIdle) {
+        long idleSince = System.currentTimeMillis() - maxIdle.toMillis();
+        int passivated = 0;
+        for (Map.Entry<UUID, MonitoredStateMachine> entry : stateMachineMap.entrySet()) {
+            if (entry.getValue().getLastAccessed() < idleSince && passivate(entry.getKey(), entry.getValue(), idleSince)) {
+                passivated++;
+            }
         }
+        return passivated;
     }
 
-    public boolean notifyOfDocumentState(String documentId, String envelopeUuid,
-                                         int totalExpectedDocuments, MetadataDocumentState state, SubmissionEvent submissionEvent) {
-        Optional<StateMachine<SubmissionState, SubmissionEvent>> stateMachine = findStateMachine(UUID.fromString(envelopeUuid));
+    private boolean passivate(UUID submissionEnvelopeUuid, MonitoredStateMachine monitored, long idleSince) {
+        synchronized (monitored) {
+            if (monitored.isPassivated()
+                    || monitored.getLastAccessed() >= idleSince
+                    || stateMachineMap.get(submissionEnvelopeUuid) != monitored) {
+                return false;
+            }
 
-        if (stateMachine.isPresent()) {
-            StateMachine<SubmissionState, SubmissionEvent> machine = stateMachine.get();
+            StateMachine<SubmissionState, SubmissionEvent> stateMachine = monitored.getStateMachine();
+            try {
+                persister.persistStateMachine(stateMachine);
+            } catch (Exception e) {
+                log.error(String.format("Failed to passivate state machine for envelope %s", submissionEnvelopeUuid), e);
+                return false;
+            }
 
-            Message<SubmissionEvent> message = MessageBuilder.withPayload(submissionEvent)
-                    .setHeader(MetadataDocumentInfo.DOCUMENT_ID, documentId)
-                    .setHeader(MetadataDocumentInfo.DOCUMENT_STATE, state)
-                    .setHeader(MetadataDocumentInfo.EXPECTED_DOCUMENT_COUNT, totalExpectedDocuments)
-                    .build();
+            // the persisted machine must not keep notifying the listener of the envelope, a new one is added on restore
+            stateMachine.removeStateListener(monitored.getListener());
+            monitored.setPassivated(true);
+            passivatedStateMachines.put(submissionEnvelopeUuid,
+                    new PassivatedStateMachine(monitored.getSubmissionEnvelopeReference(), monitored.isAutoremove()));
+            stateMachineMap.remove(submissionEnvelopeUuid, monitored);
+            dirtyStateMachines.remove(submissionEnvelopeUuid);
+            evictions.increment();
+            log.debug("Passivated state machine for envelope {} in state {}", submissionEnvelopeUuid, stateMachine.getState().getId());
+            return true;
+        }
+    }
 
-            return machine.sendEvent(message);
-        } else {
-            throw new IllegalArgumentException(String.format(
-                    "Submission envelope reference '%s' is not currently being monitored",
-                    envelopeUuid));
+    private boolean sendEvent(String envelopeUuid, Message<SubmissionEvent> message) {
+        UUID submissionEnvelopeUuid = UUID.fromString(envelopeUuid);
+        while (true) {
+            MonitoredStateMachine monitored = findMonitoredStateMachine(submissionEnvelopeUuid)
+                    .orElseThrow(() -> new IllegalArgumentException(String.format(
+                            "Submission envelope reference '%s' is not currently being monitored",
+                            envelopeUuid)));
+
+            synchronized (monitored) {
+                // passivated between the lookup and acquiring the lock, look it up again so it gets restored
+                if (!monitored.isPassivated()) {
+                    monitored.touch();
+                    boolean accepted = monitored.getStateMachine().sendEvent(message);
+                    if (accepted) {
+                        // actions can update the extended state without changing state
+                        dirtyStateMachines.add(submissionEnvelopeUuid);
+                    }
+                    return accepted;
+                }
+            }
+        }
+    }
+
+    private MonitoredStateMachine register(SubmissionEnvelopeReference submissionEnvelopeReference,
+                                           StateMachine<SubmissionState, SubmissionEvent> stateMachine,
+                                           boolean autoremove,
+                                           boolean dirty) {
+        SubmissionStateListener listener = submissionStateListenerBuilder.listenerFor(submissionEnvelopeReference, this, autoremove);
+        stateMachine.addStateListener(listener);
+        stateMachine.start();
+
+        MonitoredStateMachine monitored = new MonitoredStateMachine(submissionEnvelopeReference, stateMachine, listener, autoremove);
+        UUID submissionEnvelopeUuid = UUID.fromString(submissionEnvelopeReference.getUuid());
+        stateMachineMap.put(submissionEnvelopeUuid, monitored);
+        passivatedStateMachines.remove(submissionEnvelopeUuid);
+        unloadedStateMachines.remove(submissionEnvelopeUuid);
+        if (dirty) {
+            dirtyStateMachines.add(submissionEnvelopeUuid);
         }
+        return monitored;
     }
 
     private void removeStateMachine(UUID submissionEnvelopeUuid) {
         stateMachineMap.remove(submissionEnvelopeUuid);
+        passivatedStateMachines.remove(submissionEnvelopeUuid);
+        unloadedStateMachines.remove(submissionEnvelopeUuid);
+        dirtyStateMachines.remove(submissionEnvelopeUuid);
+    }
+
+    /**
+     * Records that the state machine of an envelope has changed and needs persisting
+     */
+    public void markDirty(UUID submissionEnvelopeUuid) {
+        dirtyStateMachines.add(submissionEnvelopeUuid);
+    }
+
+    /**
+     * Returns the in-memory state machines that changed since they were last drained and clears their dirty flag.
+     * Changes made while the returned machines are being persisted mark them dirty again.
+     *
+     * @return the state machines to persist
+     */
+    public Collection<StateMachine<SubmissionState, SubmissionEvent>> drainDirtyStateMachines() {
+        Collection<StateMachine<SubmissionState, SubmissionEvent>> dirty = new ArrayList<>();
+        Iterator<UUID> iterator = dirtyStateMachines.iterator();
+        while (iterator.hasNext()) {
+            UUID submissionEnvelopeUuid = iterator.next();
+            iterator.remove();
+            MonitoredStateMachine monitored = stateMachineMap.get(submissionEnvelopeUuid);
+            if (monitored != null) {
+                dirty.add(monitored.getStateMachine());
+            }
+        }
+        return dirty;
+    }
+
+    public int getMonitoredCount() {
+        return stateMachineMap.size();
     }
 
     public Optional<StateMachine<SubmissionState, SubmissionEvent>> findStateMachine(UUID submissionEnvelopeUuid) {
-        if (stateMachineMap.containsKey(submissionEnvelopeUuid)) {
-            return Optional.of(stateMachineMap.get(submissionEnvelopeUuid));
+        return findMonitoredStateMachine(submissionEnvelopeUuid).map(MonitoredStateMachine::getStateMachine);
+    }
+
+    private Optional<MonitoredStateMachine> findMonitoredStateMachine(UUID submissionEnvelopeUuid) {
+        MonitoredStateMachine monitored = stateMachineMap.get(submissionEnvelopeUuid);
+        if (monitored != null) {
+            hits.increment();
+            monitored.touch();
+            return Optional.of(monitored);
+        } else if (passivatedStateMachines.containsKey(submissionEnvelopeUuid)
+                || unloadedStateMachines.contains(submissionEnvelopeUuid)) {
+            misses.increment();
+            return restore(submissionEnvelopeUuid);
         } else {
             return Optional.empty();
         }
     }
 
+    /**
+     * Restores a passivated or unloaded state machine. Concurrent lookups of the same envelope wait for a single restore.
+     */
+    private Optional<MonitoredStateMachine> restore(UUID submissionEnvelopeUuid) {
+        CompletableFuture<Optional<MonitoredStateMachine>> restoration = new CompletableFuture<>();
+        CompletableFuture<Optional<MonitoredStateMachine>> inProgress = restorations.putIfAbsent(submissionEnvelopeUuid, restoration);
+        if (inProgress != null) {
+            return inProgress.join();
+        }
+
+        try {
+            Optional<MonitoredStateMachine> restored = doRestore(submissionEnvelopeUuid);
+            restoration.complete(restored);
+            return restored;
+        } catch (RuntimeException e) {
+            restoration.completeExceptionally(e);
+            throw e;
+        } finally {
+            restorations.remove(submissionEnvelopeUuid, restoration);
+        }
+    }
+
+    private Optional<MonitoredStateMachine> doRestore(UUID submissionEnvelopeUuid) {
+        MonitoredStateMachine monitored = stateMachineMap.get(submissionEnvelopeUuid);
+        if (monitored != null) {
+            return Optional.of(monitored);
+        }
+
+        PassivatedStateMachine passivated = passivatedStateMachines.get(submissionEnvelopeUuid);
+        if (passivated == null) {
+            return loadUnloaded(submissionEnvelopeUuid);
+        }
+
+        Optional<StateMachine<SubmissionState, SubmissionEvent>> stateMachine =
+                persister.retrieveStateMachine(submissionEnvelopeUuid.toString());
+        if (!stateMachine.isPresent()) {
+            log.warn("Passivated state machine for envelope {} could not be found in the persister", submissionEnvelopeUuid);
+            passivatedStateMachines.remove(submissionEnvelopeUuid);
+            return Optional.empty();
+        }
+
+        log.debug("Restored passivated state machine for envelope {}", submissionEnvelopeUuid);
+        return Optional.of(register(passivated.getSubmissionEnvelopeReference(), stateMachine.get(), passivated.isAutoremove(), false));
+    }
+
+    private Optional<MonitoredStateMachine> loadUnloaded(UUID submissionEnvelopeUuid) {
+        StateMachineLoader loader = stateMachineLoader;
+        if (loader == null || !unloadedStateMachines.contains(submissionEnvelopeUuid)) {
+            return Optional.empty();
+        }
+
+        // the loader monitors the machine if it still reconciles with core; if it throws, the next lookup tries again
+        loader.load(submissionEnvelopeUuid);
+        unloadedStateMachines.remove(submissionEnvelopeUuid);
+        return Optional.ofNullable(stateMachineMap.get(submissionEnvelopeUuid));
+    }
+
     public Collection<StateMachine<SubmissionState, SubmissionEvent>> getStateMachines() {
-        return stateMachineMap.values();
+        return stateMachineMap.values().stream()
+                .map(MonitoredStateMachine::getStateMachine)
+                .collect(Collectors.toList());
+    }
+
+    @Getter
+    private static class MonitoredStateMachine {
+        private final SubmissionEnvelopeReference submissionEnvelopeReference;
+        private final StateMachine<SubmissionState, SubmissionEvent> stateMachine;
+        private final SubmissionStateListener listener;
+        private final boolean autoremove;
+        private volatile long lastAccessed;
+        @Setter private volatile boolean passivated;
+
+        MonitoredStateMachine(SubmissionEnvelopeReference submissionEnvelopeReference,
+                              StateMachine<SubmissionState, SubmissionEvent> stateMachine,
+                              SubmissionStateListener listener,
+                              boolean autoremove) {
+            this.submissionEnvelopeReference = submissionEnvelopeReference;
+            this.stateMachine = stateMachine;
+            this.listener = listener;
+            this.autoremove = autoremove;
+            touch();
+        }
+
+        void touch() {
+            this.lastAccessed = System.currentTimeMillis();
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class PassivatedStateMachine {
+        private final SubmissionEnvelopeReference submissionEnvelopeReference;
+        private final boolean autoremove;
     }
 }
@@ -1,14 +1,22 @@
 package org.humancellatlas.ingest.state.monitor;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.AccessLevel;
 import lombok.Getter;
+import org.humancellatlas.ingest.client.AsyncIngestApiClient;
 import org.humancellatlas.ingest.client.IngestApiClient;
-import org.humancellatlas.ingest.client.model.SubmissionEnvelope;
+import org.humancellatlas.ingest.client.util.TokenBucket;
 import org.humancellatlas.ingest.config.ConfigurationService;
 import org.humancellatlas.ingest.exception.CoreStateUpdatedFailedException;
+import org.humancellatlas.ingest.exception.CoreUnavailableException;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 import org.humancellatlas.ingest.state.SubmissionState;
 import org.humancellatlas.ingest.state.monitor.model.PendingSubmissionUpdate;
+import org.humancellatlas.ingest.state.monitor.model.SubmissionUpdateRetry;
+import org.humancellatlas.ingest.state.persistence.RetryStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,96 +24,460 @@ import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * Created by rolando on 14/02/2018.
+ * <p>
+ * Pushes requested state changes to core. Pending updates are drained on UPDATER_PARALLELISM threads, and the requests
+ * to core are held to UPDATER_RATE_LIMIT_PER_SECOND. The pushes go out on the {@link AsyncIngestApiClient}, so a
+ * thread only waits for the rate limit, not for core to answer. By default a drain runs every UPDATER_PERIOD_SECONDS; with
+ * UPDATER_FLUSH_MODE=event a drain runs UPDATER_COALESCE_MILLIS after a state update is requested, so the states an
+ * envelope passes through within that window collapse into one push.
+ * <p>
+ * Only the latest requested state is kept for each envelope, and an envelope is only pushed by one thread at a time:
+ * a state requested while an envelope is being pushed waits for a later drain. A later state for an envelope is
+ * therefore never pushed before, or at the same time as, an earlier one.
+ * <p>
+ * An update that fails is retried after an exponential backoff with jitter, until it has been retried
+ * UPDATER_MAX_RETRIES times. Retries are drained on their own scheduler and threads, so a core that keeps failing them
+ * doesn't hold up freshly requested updates. The retries are kept in a {@link RetryStore} so they survive a restart,
+ * and an envelope whose retries run out stays listed as exhausted. A newer state requested for an envelope replaces its
+ * retry.
+ * <p>
+ * An update turned away by the state update circuit breaker or bulkhead never reached core, so it goes back on the
+ * pending updates, or stays as the same retry, without counting as an attempt.
  */
 @Service
 public class SubmissionStateUpdater {
     @Getter(AccessLevel.PRIVATE) private final IngestApiClient ingestApiClient;
+    @Getter(AccessLevel.PRIVATE) private final AsyncIngestApiClient asyncIngestApiClient;
     @Getter(AccessLevel.PRIVATE) private final ConfigurationService config;
     private final Map<String, PendingSubmissionUpdate> pendingUpdates;
+    private final Map<String, SubmissionUpdateRetry> retries;
+    private final RetryStore retryStore;
     private final ScheduledExecutorService executorService;
+    private final ScheduledExecutorService retryScheduler;
+    private final ExecutorService pushExecutor;
+    private final ExecutorService retryExecutor;
+    // envelopes with a push in flight, fresh or retried
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final TokenBucket rateLimiter;
+    private final boolean eventFlush;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final Timer drains;
+    private final Timer retryDrains;
+    private final Counter successfulUpdates;
+    private final Counter failedUpdates;
+    private final Counter deferredUpdates;
+    private final Counter scheduledRetries;
+    private final Counter exhaustedRetries;
+    private final Timer propagationLatency;
+
+    private static final String EVENT_FLUSH_MODE = "event";
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
 
-    public SubmissionStateUpdater(@Autowired IngestApiClient ingestApiClient, @Autowired ConfigurationService config) {
+    public SubmissionStateUpdater(@Autowired IngestApiClient ingestApiClient, @Autowired AsyncIngestApiClient asyncIngestApiClient,
+                                  @Autowired ConfigurationService config, @Autowired RetryStore retryStore) {
         this.ingestApiClient = ingestApiClient;
+        this.asyncIngestApiClient = asyncIngestApiClient;
         this.config = config;
         this.pendingUpdates = new ConcurrentHashMap<>();
+        this.retryStore = retryStore;
+        this.retries = new ConcurrentHashMap<>();
+        retryStore.findAll().forEach(retry -> retries.put(retry.getEnvelopeId(), retry));
         this.executorService = new ScheduledThreadPoolExecutor(1);
+        this.retryScheduler = new ScheduledThreadPoolExecutor(1);
+
+        int parallelism = Math.max(1, config.getUpdaterParallelism());
+        AtomicInteger pushThreads = new AtomicInteger();
+        this.pushExecutor = Executors.newFixedThreadPool(parallelism,
+                runnable -> new Thread(runnable, String.format("state-updater-%d", pushThreads.incrementAndGet())));
+        AtomicInteger retryThreads = new AtomicInteger();
+        this.retryExecutor = Executors.newFixedThreadPool(parallelism,
+                runnable -> new Thread(runnable, String.format("state-updater-retry-%d", retryThreads.incrementAndGet())));
+        this.rateLimiter = new TokenBucket(config.getUpdaterRateLimitPerSecond(), parallelism);
+        this.eventFlush = EVENT_FLUSH_MODE.equalsIgnoreCase(config.getUpdaterFlushMode());
+
+        this.drains = Metrics.timer("submissionstateupdater.drain");
+        this.retryDrains = Metrics.timer("submissionstateupdater.retry.drain");
+        this.successfulUpdates = Metrics.counter("submissionstateupdater.updates", "result", "success");
+        this.failedUpdates = Metrics.counter("submissionstateupdater.updates", "result", "failure");
+        this.deferredUpdates = Metrics.counter("submissionstateupdater.updates", "result", "deferred");
+        Metrics.gauge("submissionstateupdater.pending", pendingUpdates, Map::size);
+        this.scheduledRetries = Metrics.counter("submissionstateupdater.retries.scheduled");
+        this.exhaustedRetries = Metrics.counter("submissionstateupdater.retries.exhausted");
+        Gauge.builder("submissionstateupdater.retries", retries,
+                r -> r.values().stream().filter(retry -> !retry.isExhausted()).count())
+             .tag("status", "waiting")
+             .register(Metrics.globalRegistry);
+        Gauge.builder("submissionstateupdater.retries", retries,
+                r -> r.values().stream().filter(SubmissionUpdateRetry::isExhausted).count())
+             .tag("status", "exhausted")
+             .register(Metrics.globalRegistry);
+        // from the request for a state update to core accepting it, including any retries
+        this.propagationLatency = Timer.builder("submissionstateupdater.propagation.latency")
+                                       .publishPercentileHistogram()
+                                       .register(Metrics.globalRegistry);
 
         this.init();
     }
 
     public void requestStateUpdateForEnvelope(SubmissionEnvelopeReference submissionEnvelopeReference, SubmissionState submissionState) {
-        this.pendingUpdates.put(submissionEnvelopeReference.getId(), new PendingSubmissionUpdate(submissionEnvelopeReference, submissionState));
+        // keep the time of the oldest change still waiting, since core has been behind since then
+        this.pendingUpdates.merge(submissionEnvelopeReference.getId(),
+                new PendingSubmissionUpdate(submissionEnvelopeReference, submissionState),
+                (waiting, requested) -> new PendingSubmissionUpdate(requested.getEnvelopeReference(), requested.getToState(),
+                        waiting.getRequestedAtMillis()));
+        // the newer state supersedes any retry of an older one
+        if (this.retries.remove(submissionEnvelopeReference.getId()) != null) {
+            syncStore(submissionEnvelopeReference.getId());
+        }
+
+        if (eventFlush && flushScheduled.compareAndSet(false, true)) {
+            scheduleFlush(config.getUpdaterCoalesceMillis());
+        }
     }
 
-    private void update(SubmissionEnvelopeReference envelopeReference, SubmissionState submissionState) throws CoreStateUpdatedFailedException {
+    /**
+     * @return a future that completes once core has taken the state, or once the envelope turns out not to exist, and
+     * fails with a {@link CoreUnavailableException} or a {@link CoreStateUpdatedFailedException} otherwise
+     */
+    private CompletableFuture<Void> update(SubmissionEnvelopeReference envelopeReference, SubmissionState submissionState) {
         log.info(String.format("Updating state of envelope with ID %s to state %s", envelopeReference.getId(), submissionState.toString()));
-        try {
-            SubmissionEnvelope updatedEnvelope = getIngestApiClient().updateEnvelopeState(envelopeReference, submissionState);
-
-            if(! SubmissionState.fromString(updatedEnvelope.getSubmissionState()).equals(submissionState)) {
-                throw new CoreStateUpdatedFailedException(String.format("Failed to updated state of envelope with ID %s to state %s", envelopeReference.getId(), submissionState.toString()));
+        String failureMessage = String.format("Failed to updated state of envelope with ID %s to state %s", envelopeReference.getId(), submissionState.toString());
+        // whatever the outcome, the cached state of the envelope is no longer known to be current
+        getIngestApiClient().invalidateEnvelopeState(envelopeReference);
+        return getAsyncIngestApiClient().updateEnvelopeState(envelopeReference, submissionState).handle((updatedEnvelope, failure) -> {
+            if (failure == null) {
+                if (!SubmissionState.fromString(updatedEnvelope.getSubmissionState()).equals(submissionState)) {
+                    throw new CompletionException(new CoreStateUpdatedFailedException(failureMessage));
+                }
+                getIngestApiClient().cacheEnvelopeState(envelopeReference, submissionState);
+                return null;
             }
-        } catch (HttpClientErrorException e) {
-            if(e.getRawStatusCode() == HttpStatus.NOT_FOUND.value()) {
+
+            Throwable cause = unwrap(failure);
+            if (cause instanceof HttpClientErrorException
+                    && ((HttpClientErrorException) cause).getRawStatusCode() == HttpStatus.NOT_FOUND.value()) {
                 log.info(String.format("Tried to update the state of a non-existent envelope with ID %s", envelopeReference.getId()));
-                // remove it from envelopes to be updated
+                // remove it from envelopes to be updated, and drop late messages for it without asking core
                 this.pendingUpdates.remove(envelopeReference.getId());
-            } else {
-                throw new CoreStateUpdatedFailedException(String.format("Failed to updated state of envelope with ID %s to state %s", envelopeReference.getId(), submissionState.toString()), e);
+                getIngestApiClient().markEnvelopeMissing(envelopeReference);
+                return null;
             }
-        } catch (RuntimeException e) {
-            throw new CoreStateUpdatedFailedException(String.format("Failed to updated state of envelope with ID %s to state %s", envelopeReference.getId(), submissionState.toString()), e);
-        }
+            if (cause instanceof CoreUnavailableException) {
+                throw new CompletionException(cause);
+            }
+            throw new CompletionException(new CoreStateUpdatedFailedException(failureMessage, cause));
+        });
     }
 
-    private void update(PendingSubmissionUpdate pendingSubmissionUpdate) throws CoreStateUpdatedFailedException {
-        update(pendingSubmissionUpdate.getEnvelopeReference(), pendingSubmissionUpdate.getToState());
+    private CompletableFuture<Void> update(PendingSubmissionUpdate pendingSubmissionUpdate) {
+        return update(pendingSubmissionUpdate.getEnvelopeReference(), pendingSubmissionUpdate.getToState());
     }
 
+    /**
+     * Pushes every pending update to core and returns once they have all been tried. An envelope that is still being
+     * retried keeps its pending update until the retry is done.
+     */
     public void persistStates() {
         if(pendingUpdates.entrySet().size() > 0) {
-            Set<String> envelopesToUpdate = pendingUpdates.keySet();
-
             log.info(String.format("Persisting state updates. Pending updates: %s", pendingUpdates.entrySet().size()));
 
-            for (String envelopeToUpdate : envelopesToUpdate) {
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> pushes = new ArrayList<>();
+            for (String envelopeToUpdate : new ArrayList<>(pendingUpdates.keySet())) {
+                if (!inFlight.add(envelopeToUpdate)) {
+                    continue;
+                }
                 PendingSubmissionUpdate pendingSubmissionUpdate = pendingUpdates.remove(envelopeToUpdate);
-                try {
-                    update(pendingSubmissionUpdate);
-                } catch (CoreStateUpdatedFailedException e) {
-                    log.error("Failed to update state in the core", e);
+                if (pendingSubmissionUpdate == null) {
+                    release(envelopeToUpdate);
+                    continue;
                 }
+                pushes.add(push(pendingSubmissionUpdate, null, pushExecutor)
+                        .whenComplete((pushed, e) -> release(envelopeToUpdate)));
             }
+            CompletableFuture.allOf(pushes.toArray(new CompletableFuture[0])).join();
+            drains.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
     }
 
-    private void init() {
-        this.executorService.scheduleWithFixedDelay(() -> {
-            try {
-                persistStates();
-            } catch (Throwable e) {
-                log.error("Error/Exception occurred trying to persist states", e);
+    /**
+     * Pushes every retry that is due to core and returns once they have all been tried. Runs on the retry scheduler, so
+     * it never holds up {@link #persistStates()}.
+     */
+    public void retryDueUpdates() {
+        long now = System.currentTimeMillis();
+        List<SubmissionUpdateRetry> dueRetries = retries.values().stream()
+                .filter(retry -> !retry.isExhausted() && retry.getNextAttemptAtMillis() <= now)
+                .collect(Collectors.toList());
+
+        if (!dueRetries.isEmpty()) {
+            log.info(String.format("Retrying state updates. Due retries: %s", dueRetries.size()));
+
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> pushes = new ArrayList<>();
+            for (SubmissionUpdateRetry retry : dueRetries) {
+                String envelopeId = retry.getEnvelopeId();
+                if (!inFlight.add(envelopeId)) {
+                    continue;
+                }
+                if (retries.get(envelopeId) != retry) {
+                    // a newer state has been requested since
+                    release(envelopeId);
+                    continue;
+                }
+                pushes.add(push(retry.toPendingUpdate(), retry, retryExecutor)
+                        .whenComplete((pushed, e) -> release(envelopeId)));
+            }
+            CompletableFuture.allOf(pushes.toArray(new CompletableFuture[0])).join();
+            retryDrains.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void release(String envelopeId) {
+        inFlight.remove(envelopeId);
+        // a state requested while the envelope was being pushed was left for a later drain
+        if (eventFlush && pendingUpdates.containsKey(envelopeId) && flushScheduled.compareAndSet(false, true)) {
+            scheduleFlush(config.getUpdaterCoalesceMillis());
+        }
+    }
+
+    /**
+     * Waits for the rate limit on one of the executor's threads, then pushes the update and settles its outcome back on
+     * the executor
+     *
+     * @param retried the retry being pushed, or null for a freshly requested update
+     */
+    private CompletableFuture<Void> push(PendingSubmissionUpdate pendingSubmissionUpdate, SubmissionUpdateRetry retried,
+                                         Executor executor) {
+        return CompletableFuture.supplyAsync(this::acquirePermit, executor)
+                                .thenCompose(permitted -> permitted
+                                        ? pushAndSettle(pendingSubmissionUpdate, retried, executor)
+                                        : leaveForNextDrain(pendingSubmissionUpdate, retried));
+    }
+
+    private boolean acquirePermit() {
+        try {
+            rateLimiter.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private CompletableFuture<Void> leaveForNextDrain(PendingSubmissionUpdate pendingSubmissionUpdate, SubmissionUpdateRetry retried) {
+        // unless a newer state has been requested since
+        if (retried == null) {
+            pendingUpdates.putIfAbsent(pendingSubmissionUpdate.getEnvelopeReference().getId(), pendingSubmissionUpdate);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private CompletableFuture<Void> pushAndSettle(PendingSubmissionUpdate pendingSubmissionUpdate, SubmissionUpdateRetry retried,
+                                                  Executor executor) {
+        return update(pendingSubmissionUpdate).handleAsync((updated, failure) -> {
+            settle(pendingSubmissionUpdate, retried, failure == null ? null : unwrap(failure));
+            return null;
+        }, executor);
+    }
+
+    private void settle(PendingSubmissionUpdate pendingSubmissionUpdate, SubmissionUpdateRetry retried, Throwable failure) {
+        String envelopeId = pendingSubmissionUpdate.getEnvelopeReference().getId();
+        if (failure == null) {
+            successfulUpdates.increment();
+            propagationLatency.record(System.currentTimeMillis() - pendingSubmissionUpdate.getRequestedAtMillis(),
+                    TimeUnit.MILLISECONDS);
+            if (retried != null) {
+                retries.computeIfPresent(envelopeId, (id, retry) -> retry == retried ? null : retry);
+                syncStore(envelopeId);
             }
-        }, 5, (long) this.getConfig().getUpdaterPeriodSeconds(), TimeUnit.SECONDS);
+        } else if (failure instanceof CoreUnavailableException) {
+            deferredUpdates.increment();
+            log.warn(String.format("Deferred updating envelope with ID %s: %s", envelopeId, failure.getMessage()));
+            defer(pendingSubmissionUpdate, retried);
+        } else {
+            CoreStateUpdatedFailedException e = failure instanceof CoreStateUpdatedFailedException
+                    ? (CoreStateUpdatedFailedException) failure
+                    : new CoreStateUpdatedFailedException(String.format("Failed to update state of envelope with ID %s", envelopeId), failure);
+            failedUpdates.increment();
+            log.error("Failed to update state in the core", e);
+            scheduleRetry(pendingSubmissionUpdate, retried, e);
+        }
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * Leaves an update that never reached core for a later drain. A retry is still in the retries, unchanged.
+     */
+    private void defer(PendingSubmissionUpdate deferredUpdate, SubmissionUpdateRetry retried) {
+        // try again once the breaker lets trial calls through
+        if (retried != null) {
+            if (eventFlush) {
+                scheduleRetryDrain(config.getCoreBreakerOpenMillis());
+            }
+            return;
+        }
+        // unless a newer state has been requested since
+        pendingUpdates.putIfAbsent(deferredUpdate.getEnvelopeReference().getId(), deferredUpdate);
+        if (eventFlush && flushScheduled.compareAndSet(false, true)) {
+            scheduleFlush(config.getCoreBreakerOpenMillis());
+        }
+    }
+
+    private void scheduleRetry(PendingSubmissionUpdate failedUpdate, SubmissionUpdateRetry retried,
+                               CoreStateUpdatedFailedException failure) {
+        SubmissionEnvelopeReference envelopeReference = failedUpdate.getEnvelopeReference();
+        int attempts = retried == null ? 1 : retried.getAttempts() + 1;
+        boolean exhausted = attempts > config.getUpdaterMaxRetries();
+        String lastError = failure.getCause() != null ? failure.getCause().getMessage() : failure.getMessage();
+        SubmissionUpdateRetry retry = new SubmissionUpdateRetry(envelopeReference.getId(), envelopeReference.getUuid(),
+                envelopeReference.getCallbackLocation().toString(), failedUpdate.getToState(), attempts,
+                System.currentTimeMillis() + backoffMillis(attempts), exhausted, lastError,
+                failedUpdate.getRequestedAtMillis());
+
+        // a newer state requested since this update was taken is not worth retrying
+        retries.compute(envelopeReference.getId(),
+                (envelopeId, current) -> pendingUpdates.containsKey(envelopeId) ? null : retry);
+        syncStore(envelopeReference.getId());
+
+        if (!exhausted && eventFlush) {
+            scheduleRetryDrain(retry.getNextAttemptAtMillis() - System.currentTimeMillis());
+        }
+
+        if (exhausted) {
+            exhaustedRetries.increment();
+            log.error(String.format("Gave up updating envelope with ID %s to state %s after %s attempts",
+                    envelopeReference.getId(), failedUpdate.getToState(), attempts));
+        } else {
+            scheduledRetries.increment();
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter: between half and all of the base delay doubled for each attempt so far
+     */
+    private long backoffMillis(int attempts) {
+        long backoff = Math.min(config.getUpdaterRetryMaxDelayMillis(),
+                config.getUpdaterRetryBaseDelayMillis() << Math.min(attempts - 1, 30));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Writes the retry held for an envelope, or its absence, to the store. The store is written outside the map's
+     * locks, so it is written again if the retry changed in the meantime, until the store holds what the map holds.
+     */
+    private void syncStore(String envelopeId) {
+        SubmissionUpdateRetry written;
+        do {
+            written = retries.get(envelopeId);
+            if (written == null) {
+                removeFromStore(envelopeId);
+            } else {
+                saveToStore(written);
+            }
+        } while (retries.get(envelopeId) != written);
+    }
+
+    private void saveToStore(SubmissionUpdateRetry retry) {
+        try {
+            retryStore.save(retry);
+        } catch (RuntimeException e) {
+            log.error(String.format("Failed to save the retry for envelope %s", retry.getEnvelopeId()), e);
+        }
+    }
+
+    private void removeFromStore(String envelopeId) {
+        try {
+            retryStore.remove(envelopeId);
+        } catch (RuntimeException e) {
+            log.error(String.format("Failed to remove the retry for envelope %s", envelopeId), e);
+        }
+    }
+
+    private void init() {
+        if (eventFlush) {
+            // pick up the retries left from before a restart
+            long now = System.currentTimeMillis();
+            retries.values().stream()
+                   .filter(retry -> !retry.isExhausted())
+                   .forEach(retry -> scheduleRetryDrain(Math.max(5000, retry.getNextAttemptAtMillis() - now)));
+        } else {
+            this.executorService.scheduleWithFixedDelay(this::flush, 5, (long) this.getConfig().getUpdaterPeriodSeconds(), TimeUnit.SECONDS);
+            this.retryScheduler.scheduleWithFixedDelay(this::flushRetries, 5, (long) this.getConfig().getUpdaterPeriodSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Drains after a delay. Drains run one at a time on the scheduler thread, so a state update requested during a
+     * drain is pushed by a later one.
+     */
+    private void scheduleFlush(long delayMillis) {
+        if (executorService.isShutdown()) {
+            return;
+        }
+        executorService.schedule(() -> {
+            flushScheduled.set(false);
+            flush();
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drains due retries after a delay, one drain at a time on the retry scheduler thread
+     */
+    private void scheduleRetryDrain(long delayMillis) {
+        if (retryScheduler.isShutdown()) {
+            return;
+        }
+        retryScheduler.schedule(this::flushRetries, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        try {
+            persistStates();
+        } catch (Throwable e) {
+            log.error("Error/Exception occurred trying to persist states", e);
+        }
+    }
+
+    private void flushRetries() {
+        try {
+            retryDueUpdates();
+        } catch (Throwable e) {
+            log.error("Error/Exception occurred trying to retry state updates", e);
+        }
     }
 
     public void stop() {
         this.executorService.shutdown();
+        this.retryScheduler.shutdown();
+        this.pushExecutor.shutdown();
+        this.retryExecutor.shutdown();
     }
 
     public Collection<PendingSubmissionUpdate> getPendingUpdates() {
         return this.pendingUpdates.values();
     }
 
+    public Collection<SubmissionUpdateRetry> getRetries() {
+        return this.retries.values();
+    }
+
 }
@@ -13,6 +13,12 @@ import org.humancellatlas.ingest.state.SubmissionState;
 public class PendingSubmissionUpdate {
     private final SubmissionEnvelopeReference envelopeReference;
     private final SubmissionState toState;
+    // when the oldest state change this update carries was requested, in epoch millis
+    private final long requestedAtMillis;
+
+    public PendingSubmissionUpdate(SubmissionEnvelopeReference envelopeReference, SubmissionState toState) {
+        this(envelopeReference, toState, System.currentTimeMillis());
+    }
 
     @Override
     public boolean equals(Object obj){
@@ -0,0 +1,33 @@
+package org.humancellatlas.ingest.state.monitor.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
+import org.humancellatlas.ingest.state.SubmissionState;
+
+import java.net.URI;
+
+/**
+ * A state update that failed to reach core, and when it is next due to be tried
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SubmissionUpdateRetry {
+    private String envelopeId;
+    private String envelopeUuid;
+    private String callbackLocation;
+    private SubmissionState toState;
+    private int attempts;
+    private long nextAttemptAtMillis;
+    private boolean exhausted;
+    private String lastError;
+    private long requestedAtMillis;
+
+    public PendingSubmissionUpdate toPendingUpdate() {
+        SubmissionEnvelopeReference envelopeReference = new SubmissionEnvelopeReference(envelopeId, envelopeUuid,
+                URI.create(callbackLocation));
+        return new PendingSubmissionUpdate(envelopeReference, toState, requestedAtMillis);
+    }
+}
@@ -0,0 +1,107 @@
+package org.humancellatlas.ingest.state.monitor.util;
+
+import org.humancellatlas.ingest.state.MetadataDocumentState;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the state of the metadata documents in a submission, keeping a count of documents per
+ * {@link MetadataDocumentState} so the validation junction can be evaluated without scanning every document.
+ * <p>
+ * This is still a {@code Map<String, MetadataDocumentState>} of document id to state so it serializes through the
+ * state machine persister like any other map: deserialization goes through {@link #put(Object, Object)}, which rebuilds
+ * the counts.
+ */
+public class MetadataDocumentTracker extends AbstractMap<String, MetadataDocumentState> {
+    private final Map<String, MetadataDocumentState> documentStates;
+    private final int[] stateCounts;
+
+    public MetadataDocumentTracker() {
+        this.documentStates = new ConcurrentHashMap<>();
+        this.stateCounts = new int[MetadataDocumentState.values().length];
+    }
+
+    public MetadataDocumentTracker(Map<String, MetadataDocumentState> documentStates) {
+        this();
+        putAll(documentStates);
+    }
+
+    @Override
+    public synchronized MetadataDocumentState put(String documentId, MetadataDocumentState documentState) {
+        Objects.requireNonNull(documentState, "documentState");
+        MetadataDocumentState previous = documentStates.put(documentId, documentState);
+        if (previous != null) {
+            stateCounts[previous.ordinal()]--;
+        }
+        stateCounts[documentState.ordinal()]++;
+        return previous;
+    }
+
+    @Override
+    public synchronized MetadataDocumentState remove(Object documentId) {
+        MetadataDocumentState previous = documentStates.remove(documentId);
+        if (previous != null) {
+            stateCounts[previous.ordinal()]--;
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized void clear() {
+        documentStates.clear();
+        for (int i = 0; i < stateCounts.length; i++) {
+            stateCounts[i] = 0;
+        }
+    }
+
+    @Override
+    public MetadataDocumentState get(Object documentId) {
+        return documentStates.get(documentId);
+    }
+
+    @Override
+    public boolean containsKey(Object documentId) {
+        return documentStates.containsKey(documentId);
+    }
+
+    @Override
+    public int size() {
+        return documentStates.size();
+    }
+
+    @Override
+    public Set<Entry<String, MetadataDocumentState>> entrySet() {
+        return Collections.unmodifiableMap(documentStates).entrySet();
+    }
+
+    /**
+     * @return the number of tracked documents currently in the given state
+     */
+    public synchronized int count(MetadataDocumentState documentState) {
+        return stateCounts[documentState.ordinal()];
+    }
+
+    public boolean hasDocumentsIn(MetadataDocumentState documentState) {
+        return count(documentState) > 0;
+    }
+
+    /**
+     * Converts a tracker read from the extended state of a state machine into a {@link MetadataDocumentTracker}.
+     * Machines persisted before the tracker existed hold a plain map of document states.
+     *
+     * @param tracker the value of the metadata document tracker variable, may be null
+     * @return the tracker, or null if there was no tracker
+     */
+    @SuppressWarnings("unchecked")
+    public static MetadataDocumentTracker from(Object tracker) {
+        if (tracker == null || tracker instanceof MetadataDocumentTracker) {
+            return (MetadataDocumentTracker) tracker;
+        }
+        return new MetadataDocumentTracker((Map<String, MetadataDocumentState>) tracker);
+    }
+}
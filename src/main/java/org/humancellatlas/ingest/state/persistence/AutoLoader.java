@@ -1,8 +1,11 @@
 package org.humancellatlas.ingest.state.persistence;
 
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NonNull;
 import org.humancellatlas.ingest.client.IngestApiClient;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.exception.CoreUnavailableException;
 import org.humancellatlas.ingest.exception.UnrecognisedSubmissionStateException;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 import org.humancellatlas.ingest.state.SubmissionEvent;
@@ -20,8 +23,16 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static org.humancellatlas.ingest.state.SubmissionState.*;
 
@@ -29,7 +40,14 @@ import static org.humancellatlas.ingest.state.SubmissionState.*;
 /**
  * Created by rolando on 15/05/2018.
  * <p>
- * Finds all persisted state machines and loads them into the submission state monitor
+ * Finds all persisted state machines and loads them into the submission state monitor.
+ * <p>
+ * With AUTO_LOAD_MODE=lazy only the ids of the persisted state machines are read at startup; each machine is restored
+ * and reconciled with core the first time the monitor is asked for its envelope.
+ * <p>
+ * Core being unavailable (its circuit breaker open or too many calls in flight) is not a failure of the load: an eager
+ * load leaves the affected machines to be loaded on first use, and a lazy load rethrows the
+ * {@link CoreUnavailableException} as it is so the delivery that needed the machine is requeued with a delay.
  */
 @Service
 @AllArgsConstructor
@@ -41,13 +59,77 @@ public class AutoLoader implements InitializingBean {
     private final @NonNull Persister persister;
     private final @NonNull IngestApiClient ingestApiClient;
     private final @NonNull StateMachineRepository<RedisRepositoryStateMachine> stateMachineRepository;
+    private final @NonNull ConfigurationService config;
+
+    private static final String LAZY_MODE = "lazy";
 
+    @Getter
+    private final AutoLoaderProgress progress = new AutoLoaderProgress();
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Streams persisted state machines from the persister and reconciles them with core on AUTO_LOAD_PARALLELISM
+     * threads. Reading from the persister is held back while all threads are busy, so only a bounded number of
+     * restored machines wait in memory. The first failure stops the load and is rethrown. Machines that can't be
+     * reconciled because core is unavailable are left to be loaded on their first use instead.
+     */
     public void loadStateMachines() {
-        persister.retrieveStateMachines().forEach(stateMachine -> {
-            loadStateMachine(stateMachine);
-        });
+        int parallelism = Math.max(1, config.getAutoLoadParallelism());
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        progress.start();
+
+        try {
+            persister.forEachStateMachine(stateMachine -> {
+                inFlight.acquireUninterruptibly();
+                if (failure.get() != null) {
+                    inFlight.release();
+                    throw failure.get();
+                }
+                executor.execute(() -> {
+                    try {
+                        loadStateMachine(stateMachine);
+                    } catch (CoreUnavailableException e) {
+                        deferStateMachine(stateMachine, e);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            });
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            executor.shutdown();
+            awaitTermination(executor, failure);
+        }
+
+        progress.finish();
+        log.info(progress.toString());
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Hands the ids of the persisted state machines to the monitor, which loads each one on its first use
+     */
+    public void indexStateMachines() {
+        Collection<UUID> envelopeUuids = persister.retrieveStateMachineIds().stream()
+                .map(UUID::fromString)
+                .collect(Collectors.toList());
+        submissionStateMonitor.monitorUnloadedStateMachines(envelopeUuids, this::loadStateMachine);
+        log.info(String.format("Indexed %d persisted state machines to load on demand", envelopeUuids.size()));
+    }
+
+    /**
+     * Restores the persisted state machine of an envelope and reconciles it with core
+     */
+    public void loadStateMachine(UUID envelopeUuid) {
+        persister.retrieveStateMachine(envelopeUuid.toString())
+                 .ifPresent(this::loadStateMachine);
     }
 
     public void loadStateMachine(StateMachine<SubmissionState, SubmissionEvent> stateMachine) {
@@ -58,14 +140,20 @@ public class AutoLoader implements InitializingBean {
 
             if (envelope.isEmpty()) {
                 deleteStateMachine(stateMachine);
+                progress.deleted();
             } else {
                 updateStateMachineToEnvelopeState(stateMachine, envelope.get());
                 submissionStateMonitor.monitorSubmissionEnvelope(envelope.get(), stateMachine);
                 String state = stateMachine.getState().getId().toString();
                 log.info(String.format("Restored %s with current state: %s", envelopeUuid.toString(), state));
+                progress.restored();
             }
 
+        } catch (CoreUnavailableException e) {
+            throw e;
         } catch (RuntimeException e) {
+            progress.failed();
+
             String desc = String.format("An unexpected error has occurred in loading the state machine for submission %s: %s",
                     stateMachine.getId(), e.getMessage());
 
@@ -75,6 +163,17 @@ public class AutoLoader implements InitializingBean {
         }
     }
 
+    /**
+     * Leaves a state machine that couldn't be reconciled with core to the monitor, which loads it on its first use
+     */
+    private void deferStateMachine(StateMachine<SubmissionState, SubmissionEvent> stateMachine, CoreUnavailableException e) {
+        log.warn(String.format("Deferred loading the state machine for submission %s until it is used: %s",
+                stateMachine.getId(), e.getMessage()));
+        submissionStateMonitor.monitorUnloadedStateMachines(
+                Collections.singletonList(UUID.fromString(stateMachine.getId())), this::loadStateMachine);
+        progress.deferred();
+    }
+
     private Optional<SubmissionEnvelopeReference> getEnvelope(UUID envelopeUuid) {
         try {
             SubmissionEnvelopeReference envelope = ingestApiClient.referenceForSubmissionEnvelope(envelopeUuid);
@@ -125,6 +224,27 @@ public class AutoLoader implements InitializingBean {
         log.info(String.format("Deleted statemachine, id: %s, state:%s", stateMachine.getId(), stateMachine.getState().toString()));
     }
 
+    /**
+     * Waits for the in-flight loads to finish. If interrupted, the outstanding loads are cancelled and the load fails
+     * rather than starting with only some of the state machines restored.
+     */
+    private void awaitTermination(ExecutorService executor, AtomicReference<RuntimeException> failure) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info(progress.toString());
+            }
+        } catch (InterruptedException e) {
+            int outstanding = executor.shutdownNow().size();
+            Thread.currentThread().interrupt();
+
+            String desc = String.format("Interrupted while loading state machines: %d restored, %d not yet started",
+                    progress.getRestored(), outstanding);
+            String action = "Please restart the state tracker to load the remaining state machines.";
+            log.error("A failure in loading state machines has occurred.", e);
+            failure.compareAndSet(null, new AutoLoaderFailureException(desc, action, e));
+        }
+    }
+
     private void handleException(String description, String action, Throwable e) {
         log.error("A failure in loading state machines has occurred.", e);
         throw new AutoLoaderFailureException(description, action, e);
@@ -132,6 +252,10 @@ public class AutoLoader implements InitializingBean {
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        loadStateMachines();
+        if (LAZY_MODE.equalsIgnoreCase(config.getAutoLoadMode())) {
+            indexStateMachines();
+        } else {
+            loadStateMachines();
+        }
     }
 }
@@ -0,0 +1,101 @@
+package org.humancellatlas.ingest.state.persistence;
+
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the state machines handled by the {@link AutoLoader} so the progress of a startup restore can be followed in
+ * the logs and in the autoloader metrics
+ */
+public class AutoLoaderProgress {
+    private static final int LOG_EVERY = 1000;
+
+    private final AtomicLong restored = Metrics.gauge("autoloader.restored", new AtomicLong());
+    private final AtomicLong deleted = Metrics.gauge("autoloader.deleted", new AtomicLong());
+    private final AtomicLong failed = Metrics.gauge("autoloader.failed", new AtomicLong());
+    private final AtomicLong deferred = Metrics.gauge("autoloader.deferred", new AtomicLong());
+    private volatile long startedAt = System.currentTimeMillis();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    AutoLoaderProgress() {
+        Metrics.gauge("autoloader.rate", this, AutoLoaderProgress::getRate);
+    }
+
+    void start() {
+        restored.set(0);
+        deleted.set(0);
+        failed.set(0);
+        deferred.set(0);
+        startedAt = System.currentTimeMillis();
+    }
+
+    void restored() {
+        restored.incrementAndGet();
+        logPeriodically();
+    }
+
+    void deleted() {
+        deleted.incrementAndGet();
+        logPeriodically();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    void deferred() {
+        deferred.incrementAndGet();
+    }
+
+    /**
+     * Records how long the restore took, so restore times can be compared across releases
+     */
+    void finish() {
+        Metrics.timer("autoloader.duration").record(getElapsedMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startedAt;
+    }
+
+    public long getRestored() {
+        return restored.get();
+    }
+
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    /**
+     * @return state machines handled per second since the restore started
+     */
+    public double getRate() {
+        long elapsedMillis = Math.max(1, getElapsedMillis());
+        return (getRestored() + getDeleted() + getFailed() + getDeferred()) * 1000.0 / elapsedMillis;
+    }
+
+    private void logPeriodically() {
+        if ((getRestored() + getDeleted()) % LOG_EVERY == 0) {
+            log.info(toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Auto-load progress: %d restored, %d deleted, %d deferred, %d failed in %.1fs (%.1f/s)",
+                getRestored(), getDeleted(), getDeferred(), getFailed(), getElapsedMillis() / 1000.0, getRate());
+    }
+}
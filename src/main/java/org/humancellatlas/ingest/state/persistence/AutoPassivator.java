@@ -0,0 +1,48 @@
+package org.humancellatlas.ingest.state.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.state.monitor.SubmissionStateMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+
+/**
+ * Periodically passivates state machines that have been idle for longer than PASSIVATION_IDLE_MINUTES, so memory is
+ * bounded by the number of active envelopes rather than open ones. A non-positive idle time disables passivation.
+ * <p>
+ * Passivation is off unless {@code app.passivation.enable=true}, and only runs with the Redis persister: the in-memory
+ * persister keeps every machine in memory anyway, so passivating there would only add restore work.
+ */
+@Service
+@AllArgsConstructor
+@Profile({"persistence", "redis-persistence"})
+@ConditionalOnProperty(
+        value = "app.passivation.enable", havingValue = "true", matchIfMissing = false
+)
+public class AutoPassivator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AutoPassivator.class);
+    private static final int PASSIVATION_INTERVAL_EVERY_MINUTE = 1000 * 60;
+
+    private final @NonNull SubmissionStateMonitor submissionStateMonitor;
+    private final @NonNull ConfigurationService config;
+
+    @Scheduled(fixedDelay = PASSIVATION_INTERVAL_EVERY_MINUTE)
+    public void autoPassivate() {
+        int idleMinutes = config.getPassivationIdleMinutes();
+        if (idleMinutes <= 0) {
+            return;
+        }
+        int passivated = submissionStateMonitor.passivateIdleStateMachines(Duration.ofMinutes(idleMinutes));
+        if (passivated > 0) {
+            LOGGER.info("Passivated {} idle state machines", passivated);
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package org.humancellatlas.ingest.state.persistence;
 
+import io.micrometer.core.instrument.Metrics;
 import lombok.AllArgsConstructor;
 import lombok.NonNull;
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
 import org.humancellatlas.ingest.state.monitor.SubmissionStateMonitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.statemachine.StateMachine;
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by rolando on 15/05/2018.
+ * <p>
+ * Only state machines that changed since the previous run are persisted; failed ones are retried on the next run.
  */
 @Service
 @AllArgsConstructor
@@ -25,10 +35,22 @@ public class AutoPersister {
     private final @NonNull Persister persister;
     private final @NonNull SubmissionStateMonitor submissionStateMonitor;
 
+    private final AtomicInteger lastDirtyCount = Metrics.gauge("statemachine.autopersist.dirty", new AtomicInteger());
+    private final AtomicInteger lastTotalCount = Metrics.gauge("statemachine.autopersist.total", new AtomicInteger());
+    private final AtomicInteger lastFailedCount = Metrics.gauge("statemachine.autopersist.failed", new AtomicInteger());
+
     @Scheduled(fixedDelay = AUTO_PERSIST_INTERVAL_EVERY_MINUTE)
     public void autoPersist() {
-        LOGGER.debug("Begin persisting state machines...");
-        persister.persistStateMachines(submissionStateMonitor.getStateMachines());
+        int total = submissionStateMonitor.getMonitoredCount();
+        Collection<StateMachine<SubmissionState, SubmissionEvent>> dirtyStateMachines = submissionStateMonitor.drainDirtyStateMachines();
+        LOGGER.debug("Begin persisting {} of {} state machines...", dirtyStateMachines.size(), total);
+
+        Collection<String> failedStateMachines = persister.persistStateMachines(dirtyStateMachines);
+        failedStateMachines.forEach(machineId -> submissionStateMonitor.markDirty(UUID.fromString(machineId)));
+
+        lastDirtyCount.set(dirtyStateMachines.size());
+        lastTotalCount.set(total);
+        lastFailedCount.set(failedStateMachines.size());
     }
 
 }
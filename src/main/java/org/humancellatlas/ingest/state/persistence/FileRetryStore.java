@@ -0,0 +1,91 @@
+package org.humancellatlas.ingest.state.persistence;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.state.monitor.model.SubmissionUpdateRetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps state update retries in a local JSON file, UPDATER_RETRY_FILE, when Redis persistence is not enabled. The whole
+ * file is rewritten on each change, which is fine for the handful of envelopes that are ever waiting on a retry. The
+ * file is kept in the temp directory unless UPDATER_RETRY_FILE says otherwise, so point it at a volume for the retries
+ * to outlive the container.
+ */
+@Service
+@Profile("!persistence & !redis-persistence")
+public class FileRetryStore implements RetryStore {
+    private final Path retryFile;
+    private final Map<String, SubmissionUpdateRetry> retries = new LinkedHashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    public FileRetryStore(ConfigurationService config) {
+        this(Paths.get(config.getUpdaterRetryFile()));
+    }
+
+    public FileRetryStore(Path retryFile) {
+        this.retryFile = retryFile;
+        load();
+    }
+
+    @Override
+    public synchronized void save(SubmissionUpdateRetry retry) {
+        retries.put(retry.getEnvelopeId(), retry);
+        write();
+    }
+
+    @Override
+    public synchronized void remove(String envelopeId) {
+        if (retries.remove(envelopeId) != null) {
+            write();
+        }
+    }
+
+    @Override
+    public synchronized Collection<SubmissionUpdateRetry> findAll() {
+        return new ArrayList<>(retries.values());
+    }
+
+    private void load() {
+        if (!Files.exists(retryFile)) {
+            return;
+        }
+
+        try {
+            List<SubmissionUpdateRetry> saved = objectMapper.readValue(retryFile.toFile(),
+                    new TypeReference<List<SubmissionUpdateRetry>>() {});
+            saved.forEach(retry -> retries.put(retry.getEnvelopeId(), retry));
+        } catch (IOException e) {
+            log.error(String.format("Failed to read state update retries from %s", retryFile), e);
+        }
+    }
+
+    private void write() {
+        try {
+            // write a copy and move it over the file, so a crash never leaves it half written
+            Path tempFile = retryFile.resolveSibling(retryFile.getFileName() + ".tmp");
+            objectMapper.writeValue(tempFile.toFile(), retries.values());
+            Files.move(tempFile, retryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to write state update retries to %s", retryFile), e);
+        }
+    }
+}
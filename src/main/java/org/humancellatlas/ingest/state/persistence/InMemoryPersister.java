@@ -6,9 +6,13 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Created by rolando on 15/05/2018.
@@ -16,13 +20,24 @@ import java.util.concurrent.ConcurrentHashMap;
  * Use in unit tests or if disabled Redis persistence is desired
  */
 @Service
-@Profile("!persistence")
+@Profile("!persistence & !redis-persistence")
 public class InMemoryPersister implements Persister {
     private final Map<String, StateMachine<SubmissionState, SubmissionEvent>> inMemoryMachines = new ConcurrentHashMap<>();
 
     @Override
-    public void persistStateMachines(Collection<StateMachine<SubmissionState, SubmissionEvent>> machines) {
+    public void persistStateMachine(StateMachine<SubmissionState, SubmissionEvent> machine) {
+        inMemoryMachines.put(machine.getId(), machine);
+    }
+
+    @Override
+    public Collection<String> persistStateMachines(Collection<StateMachine<SubmissionState, SubmissionEvent>> machines) {
         machines.forEach(machine -> inMemoryMachines.put(machine.getId(), machine));
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Optional<StateMachine<SubmissionState, SubmissionEvent>> retrieveStateMachine(String stateMachineId) {
+        return Optional.ofNullable(inMemoryMachines.get(stateMachineId));
     }
 
     @Override
@@ -30,6 +45,16 @@ public class InMemoryPersister implements Persister {
         return inMemoryMachines.values();
     }
 
+    @Override
+    public Collection<String> retrieveStateMachineIds() {
+        return new ArrayList<>(inMemoryMachines.keySet());
+    }
+
+    @Override
+    public void forEachStateMachine(Consumer<StateMachine<SubmissionState, SubmissionEvent>> action) {
+        inMemoryMachines.values().forEach(action);
+    }
+
     @Override
     public Collection<String> deleteStateMachines(Collection<String> stateMachineIds) {
         stateMachineIds.forEach(inMemoryMachines::remove);
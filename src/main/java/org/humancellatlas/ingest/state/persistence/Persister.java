@@ -5,13 +5,19 @@ import org.humancellatlas.ingest.state.SubmissionState;
 import org.springframework.statemachine.StateMachine;
 
 import java.util.Collection;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * Created by rolando on 15/05/2018.
  */
 public interface Persister {
-    void persistStateMachines(Collection<StateMachine<SubmissionState, SubmissionEvent>> machines);
+    void persistStateMachine(StateMachine<SubmissionState, SubmissionEvent> machine) throws Exception;
+    Collection<String> persistStateMachines(Collection<StateMachine<SubmissionState, SubmissionEvent>> machines);
+    Optional<StateMachine<SubmissionState, SubmissionEvent>> retrieveStateMachine(String stateMachineId);
     Collection<StateMachine<SubmissionState, SubmissionEvent>> retrieveStateMachines();
+    Collection<String> retrieveStateMachineIds();
+    void forEachStateMachine(Consumer<StateMachine<SubmissionState, SubmissionEvent>> action);
     Collection<String> deleteStateMachines(Collection<String> stateMachineIds);
     Collection<String> deleteAllStateMachines();
 }
@@ -0,0 +1,94 @@
+package org.humancellatlas.ingest.state.persistence;
+
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.kryo.KryoStateMachineSerialisationService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes serialised state machine contexts to Redis in a single pipeline, instead of one round trip per context.
+ * <p>
+ * Keys and values are written exactly as {@code RedisStateMachineContextRepository} writes them, so contexts written
+ * here are read back by the regular state machine persister.
+ */
+public class RedisContextBatchWriter {
+    private final RedisTemplate<String, byte[]> redisTemplate;
+    private final KryoStateMachineSerialisationService<SubmissionState, SubmissionEvent> serialisationService;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    public RedisContextBatchWriter(RedisConnectionFactory connectionFactory) {
+        // same template configuration as RedisStateMachineContextRepository
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setKeySerializer(new StringRedisSerializer());
+        template.setHashKeySerializer(new StringRedisSerializer());
+        template.setConnectionFactory(connectionFactory);
+        template.afterPropertiesSet();
+
+        this.redisTemplate = template;
+        this.serialisationService = new KryoStateMachineSerialisationService<>();
+    }
+
+    public byte[] serialise(StateMachineContext<SubmissionState, SubmissionEvent> context) throws Exception {
+        return serialisationService.serialiseStateMachineContext(context);
+    }
+
+    /**
+     * Writes a batch of serialised contexts in one pipeline
+     *
+     * @param contexts serialised contexts keyed by state machine id
+     * @return the ids of the state machines whose context could not be written
+     */
+    public Collection<String> write(Map<String, byte[]> contexts) {
+        List<String> machineIds = new ArrayList<>(contexts.keySet());
+        try {
+            redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                    RedisOperations<String, byte[]> redisOperations = (RedisOperations<String, byte[]>) operations;
+                    machineIds.forEach(machineId -> redisOperations.opsForValue().set(machineId, contexts.get(machineId)));
+                    return null;
+                }
+            });
+            return Collections.emptyList();
+        } catch (RedisPipelineException e) {
+            return failedWrites(machineIds, e);
+        } catch (RuntimeException e) {
+            log.error(String.format("Failed to write a batch of %s state machine contexts", machineIds.size()), e);
+            return machineIds;
+        }
+    }
+
+    private Collection<String> failedWrites(List<String> machineIds, RedisPipelineException e) {
+        List<Object> results = e.getPipelineResult();
+        if (results == null || results.size() != machineIds.size()) {
+            log.error(String.format("Failed to write a batch of %s state machine contexts", machineIds.size()), e);
+            return machineIds;
+        }
+
+        Collection<String> failed = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) instanceof Throwable) {
+                log.error("Failed to persist state machine with id: " + machineIds.get(i), (Throwable) results.get(i));
+                failed.add(machineIds.get(i));
+            }
+        }
+        return failed;
+    }
+}
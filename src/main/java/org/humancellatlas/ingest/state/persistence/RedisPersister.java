@@ -2,23 +2,35 @@ package org.humancellatlas.ingest.state.persistence;
 
 import lombok.AllArgsConstructor;
 import lombok.NonNull;
+import org.humancellatlas.ingest.config.ConfigurationService;
 import org.humancellatlas.ingest.state.SubmissionEvent;
 import org.humancellatlas.ingest.state.SubmissionState;
+import org.humancellatlas.ingest.state.engine.CompiledStateMachine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
 import org.springframework.statemachine.config.StateMachineFactory;
 import org.springframework.statemachine.data.StateMachineRepository;
 import org.springframework.statemachine.data.redis.RedisRepositoryStateMachine;
 import org.springframework.statemachine.data.redis.RedisRepositoryStateMachinePersist;
 import org.springframework.statemachine.data.redis.RedisStateMachinePersister;
+import org.springframework.statemachine.persist.DefaultStateMachinePersister;
 import org.springframework.statemachine.persist.RepositoryStateMachinePersist;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
@@ -33,25 +45,112 @@ public class RedisPersister implements Persister {
     private final @NonNull StateMachineRepository<RedisRepositoryStateMachine> stateMachineRepository;
 
     private final @NonNull RedisStateMachinePersister<SubmissionState, SubmissionEvent> persister;
+    private final @NonNull RedisContextBatchWriter batchWriter;
+    private final @NonNull ConfigurationService config;
+
+    // ids of the machines known to be saved in the state machine repository, their entries never change
+    private final Set<String> registeredStateMachineIds = ConcurrentHashMap.newKeySet();
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    public void persistStateMachines(Collection<StateMachine<SubmissionState, SubmissionEvent>> machines) {
+    public void persistStateMachine(StateMachine<SubmissionState, SubmissionEvent> machine) throws Exception {
+        RedisRepositoryStateMachine r = new RedisRepositoryStateMachine();
+        r.setMachineId(machine.getId());
+        r.setId(machine.getId());
+        this.stateMachineRepository.save(r);
+        this.registeredStateMachineIds.add(machine.getId());
+        this.persister.persist(machine, machine.getId());
+    }
+
+    /**
+     * Persists state machines in pipelined batches of REDIS_PERSIST_BATCH_SIZE contexts. A batch size of 1 or less
+     * persists them one at a time.
+     *
+     * @return the ids of the state machines that could not be persisted
+     */
+    public Collection<String> persistStateMachines(Collection<StateMachine<SubmissionState, SubmissionEvent>> machines) {
+        int batchSize = config.getRedisPersistBatchSize();
+        if (batchSize <= 1) {
+            return persistStateMachinesIndividually(machines);
+        }
+
+        Collection<String> failedStateMachines = new HashSet<>();
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+
+        for (StateMachine<SubmissionState, SubmissionEvent> machine : machines) {
+            try {
+                register(machine.getId());
+                batch.put(machine.getId(), batchWriter.serialise(contextOf(machine)));
+            } catch (Exception e) {
+                log.error("Failed to persist state machine with id: " + machine.getId(), e);
+                failedStateMachines.add(machine.getId());
+            }
+
+            if (batch.size() >= batchSize) {
+                failedStateMachines.addAll(batchWriter.write(batch));
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            failedStateMachines.addAll(batchWriter.write(batch));
+        }
+
+        return failedStateMachines;
+    }
+
+    public Collection<String> persistStateMachinesIndividually(Collection<StateMachine<SubmissionState, SubmissionEvent>> machines) {
+        Collection<String> failedStateMachines = new HashSet<>();
+
         machines.forEach(machine -> {
             try {
-                RedisRepositoryStateMachine r = new RedisRepositoryStateMachine();
-                r.setMachineId(machine.getId());
-                r.setId(machine.getId());
-                this.stateMachineRepository.save(r);
-                this.persister.persist(machine, machine.getId());
+                persistStateMachine(machine);
             } catch (Exception e) {
                 log.error("Failed to persist state machine with id: " + machine.getId(), e);
+                failedStateMachines.add(machine.getId());
             }
         });
+
+        return failedStateMachines;
+    }
+
+    public Optional<StateMachine<SubmissionState, SubmissionEvent>> retrieveStateMachine(String stateMachineId) {
+        if (!stateMachineRepository.findById(stateMachineId).isPresent()) {
+            return Optional.empty();
+        }
+
+        try {
+            registeredStateMachineIds.add(stateMachineId);
+            return Optional.of(restore(stateMachineId));
+        } catch (Exception e) {
+            log.error("Failed to retrieve state machine with id: " + stateMachineId, e);
+            return Optional.empty();
+        }
     }
 
     public Collection<StateMachine<SubmissionState, SubmissionEvent>> retrieveStateMachines() {
         Collection<StateMachine<SubmissionState, SubmissionEvent>> machines = new HashSet<>();
+        forEachStateMachine(machines::add);
+        return machines;
+    }
+
+    /**
+     * Reads the ids of the persisted state machines without restoring their contexts
+     */
+    public Collection<String> retrieveStateMachineIds() {
+        Collection<String> machineIds = new ArrayList<>();
+        stateMachineRepository.findAll().forEach(savedStateMachine -> {
+            if (savedStateMachine != null && savedStateMachine.getMachineId() != null) {
+                machineIds.add(savedStateMachine.getMachineId());
+            }
+        });
+        return machineIds;
+    }
 
+    /**
+     * Restores persisted state machines one at a time and hands each to the action as soon as it is restored.
+     * Machines that fail to restore are logged and skipped; exceptions thrown by the action stop the iteration.
+     */
+    public void forEachStateMachine(Consumer<StateMachine<SubmissionState, SubmissionEvent>> action) {
         stateMachineRepository.findAll().forEach(savedStateMachine -> {
             if (savedStateMachine != null) {
                 String savedMachineId = savedStateMachine.getMachineId();
@@ -61,21 +160,50 @@ public class RedisPersister implements Persister {
                     log.info(String.format("Deleted statemachine, id: %s, state:%s", savedStateMachine.getState(), savedMachineId));
 
                 } else {
-
-                    StateMachine<SubmissionState, SubmissionEvent> stateMachine = stateMachineFactory.getStateMachine(savedMachineId);
-
+                    StateMachine<SubmissionState, SubmissionEvent> stateMachine;
                     try {
-                        machines.add(persister.restore(stateMachine, savedMachineId));
+                        stateMachine = restore(savedMachineId);
+                        registeredStateMachineIds.add(savedMachineId);
 
                     } catch (Exception e) {
                         log.error("Failed to retrieve state machine with id: " + savedMachineId, e);
+                        return;
                     }
+
+                    action.accept(stateMachine);
                 }
 
             }
         });
+    }
 
-        return machines;
+    private void register(String machineId) {
+        if (registeredStateMachineIds.add(machineId)) {
+            try {
+                RedisRepositoryStateMachine r = new RedisRepositoryStateMachine();
+                r.setMachineId(machineId);
+                r.setId(machineId);
+                stateMachineRepository.save(r);
+            } catch (RuntimeException e) {
+                registeredStateMachineIds.remove(machineId);
+                throw e;
+            }
+        }
+    }
+
+    private StateMachineContext<SubmissionState, SubmissionEvent> contextOf(StateMachine<SubmissionState, SubmissionEvent> machine) throws Exception {
+        if (machine instanceof CompiledStateMachine) {
+            return ((CompiledStateMachine) machine).toContext();
+        }
+
+        // let the persister build the context as it would for a regular persist, without writing it anywhere
+        CapturingStateMachinePersist capture = new CapturingStateMachinePersist();
+        new DefaultStateMachinePersister<>(capture).persist(machine, machine.getId());
+        return capture.context;
+    }
+
+    private StateMachine<SubmissionState, SubmissionEvent> restore(String machineId) throws Exception {
+        return persister.restore(stateMachineFactory.getStateMachine(machineId), machineId);
     }
 
     public Collection<String> deleteStateMachines(Collection<String> stateMachineIds) {
@@ -83,6 +211,7 @@ public class RedisPersister implements Persister {
 
         stateMachineIds.forEach(machineId -> {
             stateMachineRepository.delete(stateMachineRepository.findById(machineId).get());
+            registeredStateMachineIds.remove(machineId);
             deletedStateMachines.add(machineId);
         });
 
@@ -98,4 +227,18 @@ public class RedisPersister implements Persister {
 
         return deleteStateMachines(allStateMachinesIds);
     }
+
+    private static class CapturingStateMachinePersist implements StateMachinePersist<SubmissionState, SubmissionEvent, String> {
+        private StateMachineContext<SubmissionState, SubmissionEvent> context;
+
+        @Override
+        public void write(StateMachineContext<SubmissionState, SubmissionEvent> context, String contextObj) {
+            this.context = context;
+        }
+
+        @Override
+        public StateMachineContext<SubmissionState, SubmissionEvent> read(String contextObj) {
+            return context;
+        }
+    }
 }
@@ -37,6 +37,11 @@ public class RedisPersisterConfig {
         return new RepositoryStateMachinePersist<SubmissionState, SubmissionEvent>(repository);
     }
 
+    @Bean
+    public RedisContextBatchWriter redisContextBatchWriter(RedisConnectionFactory connectionFactory) {
+        return new RedisContextBatchWriter(connectionFactory);
+    }
+
     @Bean
     public RedisStateMachinePersister<SubmissionState, SubmissionEvent> redisStateMachinePersister(
             StateMachinePersist<SubmissionState, SubmissionEvent, String> stateMachinePersist) {
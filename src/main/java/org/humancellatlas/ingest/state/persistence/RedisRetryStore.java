@@ -0,0 +1,66 @@
+package org.humancellatlas.ingest.state.persistence;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.humancellatlas.ingest.state.monitor.model.SubmissionUpdateRetry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps state update retries as JSON in a Redis hash keyed by envelope ID, next to the persisted state machines
+ */
+@Service
+@Profile({"persistence", "redis-persistence"})
+public class RedisRetryStore implements RetryStore {
+    private static final String RETRIES_KEY = "SubmissionStateUpdater:retries";
+
+    private final HashOperations<String, String, String> retries;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    public RedisRetryStore(@Autowired RedisConnectionFactory connectionFactory) {
+        this.retries = new StringRedisTemplate(connectionFactory).opsForHash();
+    }
+
+    @Override
+    public void save(SubmissionUpdateRetry retry) {
+        try {
+            retries.put(RETRIES_KEY, retry.getEnvelopeId(), objectMapper.writeValueAsString(retry));
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to save the retry for envelope %s", retry.getEnvelopeId()), e);
+        }
+    }
+
+    @Override
+    public void remove(String envelopeId) {
+        retries.delete(RETRIES_KEY, envelopeId);
+    }
+
+    @Override
+    public Collection<SubmissionUpdateRetry> findAll() {
+        return retries.values(RETRIES_KEY).stream()
+                      .map(this::readRetry)
+                      .filter(Objects::nonNull)
+                      .collect(Collectors.toList());
+    }
+
+    private SubmissionUpdateRetry readRetry(String retryJson) {
+        try {
+            return objectMapper.readValue(retryJson, SubmissionUpdateRetry.class);
+        } catch (IOException e) {
+            log.error(String.format("Skipping unreadable state update retry: %s", retryJson), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.humancellatlas.ingest.state.persistence;
+
+import org.humancellatlas.ingest.state.monitor.model.SubmissionUpdateRetry;
+
+import java.util.Collection;
+
+/**
+ * Keeps the state updates waiting to be retried against core, so they survive a restart. There is at most one retry
+ * per envelope.
+ */
+public interface RetryStore {
+    void save(SubmissionUpdateRetry retry);
+
+    void remove(String envelopeId);
+
+    Collection<SubmissionUpdateRetry> findAll();
+}
@@ -1,8 +1,12 @@
 package org.humancellatlas.ingest;
 
 import org.humancellatlas.ingest.client.IngestApiClient;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.exception.CoreUnavailableException;
+import org.humancellatlas.ingest.exception.UnrecognisedSubmissionStateException;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 import org.humancellatlas.ingest.state.*;
+import org.humancellatlas.ingest.state.monitor.StateMachineLoader;
 import org.humancellatlas.ingest.state.monitor.SubmissionStateMonitor;
 import org.humancellatlas.ingest.state.persistence.AutoLoader;
 import org.humancellatlas.ingest.state.persistence.AutoLoaderFailureException;
@@ -10,6 +14,7 @@ import org.humancellatlas.ingest.state.persistence.Persister;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
@@ -26,6 +31,9 @@ import org.springframework.web.client.RestClientException;
 
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -53,12 +61,16 @@ public class AutoLoaderTest {
     @MockBean
     private StateMachineRepository<RedisRepositoryStateMachine> stateMachineRepository;
 
+    @MockBean
+    private ConfigurationService configurationService;
+
     private UUID submissionUuid = UUID.randomUUID();
 
     StateMachine<SubmissionState, SubmissionEvent> stateMachine;
 
     @BeforeEach
     public void setup() {
+        when(configurationService.getAutoLoadParallelism()).thenReturn(4);
         stateMachine = stateMachineFactory.getStateMachine(submissionUuid.toString());
         Message<SubmissionEvent> message = MessageBuilder.withPayload(SubmissionEvent.DOCUMENT_PROCESSED)
                 .setHeader(MetadataDocumentInfo.DOCUMENT_ID, "id")
@@ -152,4 +164,138 @@ public class AutoLoaderTest {
         verify(submissionStateMonitor, never()).monitorSubmissionEnvelope(any());
     }
 
+    @Test
+    public void testLoadStateMachineShouldRethrowCoreUnavailableAsItIs(){
+        // given
+        CoreUnavailableException unavailable = new CoreUnavailableException("Core is unavailable", null);
+        when(ingestApiClient.referenceForSubmissionEnvelope(submissionUuid)).thenThrow(unavailable);
+
+        // when/then
+        assertThatThrownBy(() -> {
+            autoLoader.loadStateMachine(stateMachine);
+        }).isSameAs(unavailable);
+
+        verify(submissionStateMonitor, never()).monitorSubmissionEnvelope(any(SubmissionEnvelopeReference.class), any());
+    }
+
+    @Test
+    public void testLoadStateMachinesShouldLeaveMachinesToLoadOnFirstUseWhenCoreIsUnavailable() {
+        // given
+        when(ingestApiClient.referenceForSubmissionEnvelope(submissionUuid))
+                .thenThrow(new CoreUnavailableException("Core is unavailable", null));
+        doAnswer(invocation -> {
+            Consumer<StateMachine<SubmissionState, SubmissionEvent>> action = invocation.getArgument(0);
+            action.accept(stateMachine);
+            return null;
+        }).when(persister).forEachStateMachine(any());
+
+        // when
+        autoLoader.loadStateMachines();
+
+        // then
+        verify(submissionStateMonitor).monitorUnloadedStateMachines(eq(Collections.singletonList(submissionUuid)), any());
+        verify(submissionStateMonitor, never()).monitorSubmissionEnvelope(any(SubmissionEnvelopeReference.class), any());
+        assertThat(autoLoader.getProgress().getDeferred()).isEqualTo(1);
+        assertThat(autoLoader.getProgress().getFailed()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLoadStateMachinesShouldRestoreEveryPersistedStateMachine() {
+        // given
+        List<StateMachine<SubmissionState, SubmissionEvent>> persisted = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            UUID uuid = UUID.randomUUID();
+            StateMachine<SubmissionState, SubmissionEvent> machine = stateMachineFactory.getStateMachine(uuid.toString());
+            machine.start();
+            persisted.add(machine);
+            when(ingestApiClient.referenceForSubmissionEnvelope(uuid)).thenReturn(
+                    new SubmissionEnvelopeReference("id", uuid.toString(), SubmissionState.PENDING, URI.create("/callback")));
+        }
+        doAnswer(invocation -> {
+            Consumer<StateMachine<SubmissionState, SubmissionEvent>> action = invocation.getArgument(0);
+            persisted.forEach(action);
+            return null;
+        }).when(persister).forEachStateMachine(any());
+
+        // when
+        autoLoader.loadStateMachines();
+
+        // then
+        persisted.forEach(machine -> verify(submissionStateMonitor).monitorSubmissionEnvelope(any(SubmissionEnvelopeReference.class), eq(machine)));
+        assertThat(autoLoader.getProgress().getRestored()).isEqualTo(20);
+    }
+
+    @Test
+    public void testLazyLoadShouldOnlyIndexStateMachinesUntilFirstUse() {
+        // given
+        SubmissionEnvelopeReference submission = new SubmissionEnvelopeReference("id", submissionUuid.toString(), SubmissionState.DRAFT, URI.create("/callback"));
+        when(ingestApiClient.referenceForSubmissionEnvelope(submissionUuid)).thenReturn(submission);
+        when(persister.retrieveStateMachineIds()).thenReturn(Collections.singletonList(submissionUuid.toString()));
+        when(persister.retrieveStateMachine(submissionUuid.toString())).thenReturn(Optional.of(stateMachine));
+        ArgumentCaptor<StateMachineLoader> loader = ArgumentCaptor.forClass(StateMachineLoader.class);
+
+        // when
+        autoLoader.indexStateMachines();
+
+        // then
+        verify(submissionStateMonitor).monitorUnloadedStateMachines(eq(Collections.singletonList(submissionUuid)), loader.capture());
+        verify(persister, never()).retrieveStateMachine(anyString());
+        verify(submissionStateMonitor, never()).monitorSubmissionEnvelope(any(SubmissionEnvelopeReference.class), any());
+
+        // when
+        loader.getValue().load(submissionUuid);
+
+        // then
+        verify(submissionStateMonitor).monitorSubmissionEnvelope(submission, stateMachine);
+    }
+
+    @Test
+    public void testLoadStateMachinesShouldFailFastOnUnrecognisedState() {
+        // given
+        when(ingestApiClient.referenceForSubmissionEnvelope(submissionUuid))
+                .thenThrow(new UnrecognisedSubmissionStateException("Unrecognised state"));
+        doAnswer(invocation -> {
+            Consumer<StateMachine<SubmissionState, SubmissionEvent>> action = invocation.getArgument(0);
+            action.accept(stateMachine);
+            return null;
+        }).when(persister).forEachStateMachine(any());
+
+        // when/then
+        assertThatThrownBy(() -> {
+            autoLoader.loadStateMachines();
+        }).isExactlyInstanceOf(AutoLoaderFailureException.class).hasMessageContaining("Unrecognised state");
+
+        verify(submissionStateMonitor, never()).monitorSubmissionEnvelope(any());
+    }
+
+    @Test
+    public void testLoadStateMachinesShouldFailWhenInterrupted() {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        when(ingestApiClient.referenceForSubmissionEnvelope(submissionUuid)).thenAnswer(invocation -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new SubmissionEnvelopeReference("id", submissionUuid.toString(), SubmissionState.DRAFT, URI.create("/callback"));
+        });
+        doAnswer(invocation -> {
+            Consumer<StateMachine<SubmissionState, SubmissionEvent>> action = invocation.getArgument(0);
+            action.accept(stateMachine);
+            Thread.currentThread().interrupt();
+            return null;
+        }).when(persister).forEachStateMachine(any());
+
+        // when/then
+        try {
+            assertThatThrownBy(() -> {
+                autoLoader.loadStateMachines();
+            }).isExactlyInstanceOf(AutoLoaderFailureException.class).hasCauseInstanceOf(InterruptedException.class);
+        } finally {
+            Thread.interrupted();
+            release.countDown();
+        }
+    }
+
 }
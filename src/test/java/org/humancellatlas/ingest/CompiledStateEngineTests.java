@@ -0,0 +1,123 @@
+package org.humancellatlas.ingest;
+
+import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.humancellatlas.ingest.state.engine.CompiledStateMachine;
+import org.humancellatlas.ingest.state.monitor.SubmissionStateMonitor;
+import org.humancellatlas.ingest.state.persistence.Persister;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.monitor.AbstractStateMachineMonitor;
+import org.springframework.statemachine.persist.DefaultStateMachinePersister;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
+import org.springframework.test.context.TestPropertySource;
+
+import java.net.URI;
+import java.util.UUID;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Runs every scenario of {@link IngestStateTrackingApplicationTests} against the compiled state engine
+ */
+@TestPropertySource(properties = "app.state-engine=compiled")
+public class CompiledStateEngineTests extends IngestStateTrackingApplicationTests {
+    @Autowired
+    private SubmissionStateMonitor submissionStateMonitor;
+
+    @Autowired
+    private StateMachineFactory<SubmissionState, SubmissionEvent> stateMachineFactory;
+
+    @Autowired
+    private Persister persister;
+
+    @Test
+    public void testMonitorUsesCompiledStateMachines() {
+        SubmissionEnvelopeReference envelope = new SubmissionEnvelopeReference("5678", UUID.randomUUID().toString(),
+                SubmissionState.PENDING, URI.create("http://localhost:8080/api/submissionEnvelopes/5678"));
+        submissionStateMonitor.monitorSubmissionEnvelope(envelope, false);
+
+        StateMachine<SubmissionState, SubmissionEvent> stateMachine =
+                submissionStateMonitor.findStateMachine(UUID.fromString(envelope.getUuid())).get();
+        assertTrue(stateMachine instanceof CompiledStateMachine);
+        assertTrue(stateMachine.getId().equals(envelope.getUuid()));
+
+        submissionStateMonitor.stopMonitoring(envelope);
+    }
+
+    @Test
+    public void testCompiledStateMachinesCanBeRestoredBySpringPersisters() throws Exception {
+        String machineId = UUID.randomUUID().toString();
+        StateMachineContext<SubmissionState, SubmissionEvent> saved =
+                new DefaultStateMachineContext<>(SubmissionState.VALID, null, null, null, null, machineId);
+        StateMachinePersist<SubmissionState, SubmissionEvent, String> persist = new StateMachinePersist<SubmissionState, SubmissionEvent, String>() {
+            @Override
+            public void write(StateMachineContext<SubmissionState, SubmissionEvent> context, String contextObj) {
+            }
+
+            @Override
+            public StateMachineContext<SubmissionState, SubmissionEvent> read(String contextObj) {
+                return saved;
+            }
+        };
+
+        StateMachine<SubmissionState, SubmissionEvent> stateMachine = stateMachineFactory.getStateMachine(machineId);
+        stateMachine.start();
+        assertEquals(SubmissionState.PENDING, stateMachine.getState().getId());
+
+        new DefaultStateMachinePersister<>(persist).restore(stateMachine, machineId);
+
+        assertTrue(stateMachine instanceof CompiledStateMachine);
+        assertEquals(SubmissionState.VALID, stateMachine.getState().getId());
+    }
+
+    @Test
+    public void testCompiledStateMachinesResetToTheInitialStateOnANullContext() {
+        StateMachine<SubmissionState, SubmissionEvent> stateMachine = stateMachineFactory.getStateMachine(UUID.randomUUID().toString());
+        stateMachine.start();
+        stateMachine.getStateMachineAccessor().doWithAllRegions(access -> access.resetStateMachine(
+                new DefaultStateMachineContext<>(SubmissionState.VALID, null, null, null, null, stateMachine.getId())));
+        stateMachine.getExtendedState().getVariables().put("key", "value");
+
+        stateMachine.getStateMachineAccessor().doWithAllRegions(access -> access.resetStateMachine(null));
+
+        assertEquals(SubmissionState.PENDING, stateMachine.getState().getId());
+        assertTrue(stateMachine.getExtendedState().getVariables().isEmpty());
+    }
+
+    @Test
+    public void testCompiledStateMachinesRefuseInterceptorsAndMonitors() {
+        StateMachine<SubmissionState, SubmissionEvent> stateMachine = stateMachineFactory.getStateMachine(UUID.randomUUID().toString());
+
+        assertThrows(UnsupportedOperationException.class, () -> stateMachine.getStateMachineAccessor().doWithAllRegions(
+                access -> access.addStateMachineInterceptor(new StateMachineInterceptorAdapter<>())));
+        assertThrows(UnsupportedOperationException.class, () -> stateMachine.getStateMachineAccessor().doWithAllRegions(
+                access -> access.addStateMachineMonitor(new AbstractStateMachineMonitor<SubmissionState, SubmissionEvent>() {})));
+    }
+
+    @Test
+    public void testNothingRegistersAnInterceptorOrMonitorOnMonitoredMachines() throws Exception {
+        // registering either would throw, so monitoring, persisting and restoring a machine must not try to
+        SubmissionEnvelopeReference envelope = new SubmissionEnvelopeReference("9012", UUID.randomUUID().toString(),
+                SubmissionState.PENDING, URI.create("http://localhost:8080/api/submissionEnvelopes/9012"));
+        submissionStateMonitor.monitorSubmissionEnvelope(envelope, false);
+        StateMachine<SubmissionState, SubmissionEvent> stateMachine =
+                submissionStateMonitor.findStateMachine(UUID.fromString(envelope.getUuid())).get();
+
+        persister.persistStateMachine(stateMachine);
+        StateMachine<SubmissionState, SubmissionEvent> restored = persister.retrieveStateMachine(envelope.getUuid()).get();
+
+        assertTrue(restored instanceof CompiledStateMachine);
+        assertEquals(SubmissionState.PENDING, restored.getState().getId());
+
+        submissionStateMonitor.stopMonitoring(envelope);
+    }
+}
@@ -0,0 +1,149 @@
+package org.humancellatlas.ingest;
+
+import org.humancellatlas.ingest.exception.WorkerLaneFullException;
+import org.humancellatlas.ingest.http.DocumentUpdateController;
+import org.humancellatlas.ingest.messaging.model.MetadataDocumentMessage;
+import org.humancellatlas.ingest.messaging.service.MessageHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class DocumentUpdateControllerTest {
+    private static final String BULK_PATH = "/state-updates/metadata-documents/bulk";
+
+    private MessageHandler messageHandler;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    public void before() {
+        messageHandler = mock(MessageHandler.class);
+        // every update is accepted
+        when(messageHandler.handleMetadataDocumentUpdates(anyString(), anyList())).thenAnswer(invocation -> {
+            List<?> messages = invocation.getArgument(1);
+            return CompletableFuture.completedFuture(Collections.nCopies(messages.size(), true));
+        });
+        mockMvc = MockMvcBuilders.standaloneSetup(new DocumentUpdateController(messageHandler)).build();
+    }
+
+    @Test
+    public void testJsonArrayIsAppliedInGroupsPerEnvelope() throws Exception {
+        String body = "[" + String.join(",",
+                update("doc1", "envelope1"), update("doc2", "envelope2"), update("doc3", "envelope1")) + "]";
+
+        mockMvc.perform(post(BULK_PATH).contentType(MediaType.APPLICATION_JSON).content(body))
+               .andExpect(status().isOk())
+               .andExpect(jsonPath("$.length()").value(3))
+               .andExpect(jsonPath("$[*].documentId").value(Arrays.asList("doc1", "doc2", "doc3")))
+               .andExpect(jsonPath("$[*].index").value(Arrays.asList(0, 1, 2)))
+               .andExpect(jsonPath("$[*].accepted").value(Arrays.asList(true, true, true)));
+
+        verify(messageHandler).handleMetadataDocumentUpdates(eq("envelope1"), argThat(messages -> messages.size() == 2));
+        verify(messageHandler).handleMetadataDocumentUpdates(eq("envelope2"), argThat(messages -> messages.size() == 1));
+    }
+
+    @Test
+    public void testNewlineDelimitedJsonIsApplied() throws Exception {
+        String body = String.join("\n", update("doc1", "envelope1"), update("doc2", "envelope1")) + "\n";
+
+        mockMvc.perform(post(BULK_PATH).contentType("application/x-ndjson").content(body))
+               .andExpect(status().isOk())
+               .andExpect(jsonPath("$.length()").value(2))
+               .andExpect(jsonPath("$[*].accepted").value(Arrays.asList(true, true)));
+
+        verify(messageHandler).handleMetadataDocumentUpdates(eq("envelope1"), argThat(messages -> messages.size() == 2));
+    }
+
+    @Test
+    public void testUpdateWithoutADocumentIdIsRejected() throws Exception {
+        String body = "[" + String.join(",",
+                update("doc1", "envelope1"), "{\"envelopeId\": \"envelope1\", \"validationState\": \"Valid\"}") + "]";
+
+        mockMvc.perform(post(BULK_PATH).contentType(MediaType.APPLICATION_JSON).content(body))
+               .andExpect(status().isOk())
+               .andExpect(jsonPath("$.length()").value(2))
+               .andExpect(jsonPath("$[0].documentId").value("doc1"))
+               .andExpect(jsonPath("$[0].accepted").value(true))
+               .andExpect(jsonPath("$[1].index").value(1))
+               .andExpect(jsonPath("$[1].accepted").value(false))
+               .andExpect(jsonPath("$[1].error").value("documentId and envelopeId are required"));
+
+        verify(messageHandler).handleMetadataDocumentUpdates(eq("envelope1"), argThat(messages -> messages.size() == 1));
+    }
+
+    @Test
+    public void testLargeEnvelopeGroupIsSplit() throws Exception {
+        // more than two groups' worth of updates for the one envelope
+        String body = IntStream.range(0, 1200)
+                               .mapToObj(i -> update("doc" + i, "envelope1"))
+                               .collect(Collectors.joining(",", "[", "]"));
+
+        mockMvc.perform(post(BULK_PATH).contentType(MediaType.APPLICATION_JSON).content(body))
+               .andExpect(status().isOk())
+               .andExpect(jsonPath("$.length()").value(1200))
+               .andExpect(jsonPath("$[1199].documentId").value("doc1199"));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<MetadataDocumentMessage>> groups = ArgumentCaptor.forClass(List.class);
+        verify(messageHandler, times(3)).handleMetadataDocumentUpdates(eq("envelope1"), groups.capture());
+        assertEquals(Arrays.asList(500, 500, 200),
+                groups.getAllValues().stream().map(List::size).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testUpdatesForAFullLaneAreReportedAsNotApplied() throws Exception {
+        when(messageHandler.handleMetadataDocumentUpdates(eq("envelope2"), anyList()))
+                .thenThrow(new WorkerLaneFullException("full"));
+        String body = "[" + String.join(",",
+                update("doc1", "envelope1"), update("doc2", "envelope2"), update("doc3", "envelope1")) + "]";
+
+        mockMvc.perform(post(BULK_PATH).contentType(MediaType.APPLICATION_JSON).content(body))
+               .andExpect(status().isServiceUnavailable())
+               .andExpect(jsonPath("$.length()").value(3))
+               .andExpect(jsonPath("$[*].documentId").value(Arrays.asList("doc1", "doc2", "doc3")))
+               .andExpect(jsonPath("$[*].accepted").value(Arrays.asList(true, false, true)))
+               .andExpect(jsonPath("$[1].error").value("not applied, the worker lane for the envelope is full"));
+    }
+
+    @Test
+    public void testReadingStopsWhenALaneIsFull() throws Exception {
+        when(messageHandler.handleMetadataDocumentUpdates(eq("envelope1"), anyList()))
+                .thenThrow(new WorkerLaneFullException("full"));
+        // the first group of 500 is refused, so the rest of the body is not read
+        String body = IntStream.range(0, 600)
+                               .mapToObj(i -> update("doc" + i, "envelope1"))
+                               .collect(Collectors.joining(",", "[", "]"));
+
+        mockMvc.perform(post(BULK_PATH).contentType(MediaType.APPLICATION_JSON).content(body))
+               .andExpect(status().isServiceUnavailable())
+               .andExpect(jsonPath("$.length()").value(500))
+               .andExpect(jsonPath("$[499].index").value(499))
+               .andExpect(jsonPath("$[499].accepted").value(false));
+
+        verify(messageHandler, times(1)).handleMetadataDocumentUpdates(eq("envelope1"), anyList());
+    }
+
+    private static String update(String documentId, String envelopeId) {
+        return String.format("{\"documentType\": \"biomaterial\", \"documentId\": \"%s\", \"documentUuid\": \"%s-uuid\", " +
+                "\"callbackLink\": \"/biomaterials/%s\", \"validationState\": \"Valid\", \"envelopeId\": \"%s\"}",
+                documentId, documentId, documentId, envelopeId);
+    }
+}
@@ -0,0 +1,41 @@
+package org.humancellatlas.ingest;
+
+import org.humancellatlas.ingest.client.util.EnvelopeFields;
+import org.humancellatlas.ingest.testutil.EnvelopeDocuments;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.humancellatlas.ingest.testutil.MockConfigurationService.INGEST_API_ROOT_STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EnvelopeFieldsTest {
+
+    @Test
+    public void testFieldsAreReadFromALargeEnvelope() throws Exception {
+        EnvelopeFields envelopeFields = EnvelopeFields.read(
+                EnvelopeDocuments.envelopeJson("large-envelope-id", "large-envelope-uuid", "Invalid", 1000));
+
+        assertEquals("Invalid", envelopeFields.getSubmissionState());
+        assertEquals("large-envelope-uuid", envelopeFields.getUuid());
+        assertEquals(INGEST_API_ROOT_STRING + "/submissionEnvelopes/large-envelope-id", envelopeFields.getSelfHref());
+        assertEquals(INGEST_API_ROOT_STRING + "/submissionEnvelopes/large-envelope-id/commitSubmit",
+                envelopeFields.getLinks().get("commitSubmit"));
+    }
+
+    @Test
+    public void testParsingStopsOnceTheFieldsHaveBeenRead() throws Exception {
+        // the trailing content is malformed, so reading as far as it would fail
+        String envelopeJson = "{\"submissionState\": \"Valid\", \"uuid\": {\"uuid\": \"early-envelope-uuid\"}, " +
+                "\"_links\": {\"self\": {\"href\": \"http://core/submissionEnvelopes/early-envelope-id\"}, " +
+                "\"curies\": [{\"name\": \"ingest\"}]}, \"errors\": [ this is not json";
+
+        EnvelopeFields envelopeFields = EnvelopeFields.read(envelopeJson.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("Valid", envelopeFields.getSubmissionState());
+        assertEquals("early-envelope-uuid", envelopeFields.getUuid());
+        assertEquals("http://core/submissionEnvelopes/early-envelope-id", envelopeFields.getSelfHref());
+        assertNull(envelopeFields.getLinks().get("curies"));
+    }
+}
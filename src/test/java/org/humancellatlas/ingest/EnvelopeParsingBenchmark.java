@@ -0,0 +1,68 @@
+package org.humancellatlas.ingest;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.humancellatlas.ingest.client.util.EnvelopeFields;
+import org.humancellatlas.ingest.client.util.ObjectMappers;
+import org.humancellatlas.ingest.testutil.EnvelopeDocuments;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading the fields state tracking needs from an envelope document by binding the whole document to a
+ * {@link JsonNode} tree, as the client used to, with reading them with {@link EnvelopeFields}.
+ * <p>
+ * Envelopes are built with growing numbers of validation errors, which is what makes core's envelope documents large.
+ * Run it with {@code ./gradlew jmh}, which adds the GC profiler so allocation per operation is reported alongside
+ * latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeParsingBenchmark {
+    @Param({"0", "100", "1000"})
+    private int errorCount;
+
+    private byte[] envelopeJson;
+    private final ObjectMapper objectMapper = ObjectMappers.shared();
+
+    @Setup
+    public void setUp() {
+        envelopeJson = EnvelopeDocuments.envelopeJson("benchmark-envelope-id", UUID.randomUUID().toString(),
+                "Invalid", errorCount);
+    }
+
+    @Benchmark
+    public void treeModel(Blackhole blackhole) throws IOException {
+        JsonNode envelope = objectMapper.readTree(envelopeJson);
+        blackhole.consume(envelope.at(JsonPointer.valueOf("/submissionState")).asText());
+        blackhole.consume(envelope.at(JsonPointer.valueOf("/uuid/uuid")).asText());
+        blackhole.consume(envelope.at(JsonPointer.valueOf("/_links/self/href")).asText());
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) throws IOException {
+        EnvelopeFields envelopeFields = EnvelopeFields.read(envelopeJson);
+        blackhole.consume(envelopeFields.getSubmissionState());
+        blackhole.consume(envelopeFields.getUuid());
+        blackhole.consume(envelopeFields.getSelfHref());
+    }
+}
@@ -4,9 +4,14 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import org.humancellatlas.ingest.client.AsyncIngestApiClient;
 import org.humancellatlas.ingest.client.IngestApiClient;
 import org.humancellatlas.ingest.client.model.MetadataDocument;
 import org.humancellatlas.ingest.client.model.SubmissionEnvelope;
+import org.humancellatlas.ingest.client.util.CoreCallGuard;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.exception.CoreUnavailableException;
 import org.humancellatlas.ingest.model.MetadataDocumentReference;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 import org.humancellatlas.ingest.state.SubmissionState;
@@ -18,11 +23,22 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
 
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.humancellatlas.ingest.testutil.EnvelopeStubs.callbackLocation;
+import static org.humancellatlas.ingest.testutil.EnvelopeStubs.commitSubmitPath;
+import static org.humancellatlas.ingest.testutil.EnvelopeStubs.stubEnvelope;
 import static org.humancellatlas.ingest.testutil.MockConfigurationService.INGEST_API_ROOT_STRING;
 import static org.humancellatlas.ingest.testutil.MockConfigurationService.mockStateUpdateRels;
 import static org.junit.Assert.*;
@@ -34,12 +50,14 @@ import static org.junit.Assert.*;
 @SpringBootTest
 public class IngestApiClientTest {
     private IngestApiClient ingestApiClient;
+    private AsyncIngestApiClient asyncIngestApiClient;
     private WireMockServer wireMockServer;
 
     @BeforeEach
     public void before() {
         ingestApiClient = new IngestApiClient(MockConfigurationService.create());
         ingestApiClient.init();
+        asyncIngestApiClient = new AsyncIngestApiClient(MockConfigurationService.create(), ingestApiClient);
     }
     
     @BeforeEach
@@ -146,6 +164,38 @@ public class IngestApiClientTest {
         assertTrue(mockMetadataDocument.getReferencedEnvelope().getUuid().equals(mockEnvelopeUUID));
     }
 
+    @Test
+    public void testConcurrentEnvelopeReferenceMissesShareOneRetrieval() throws Exception {
+        String mockEnvelopeUUID = UUID.randomUUID().toString();
+        Map<String, Object> envelopeJson = new HashMap<String, Object>() {{
+            put("uuid", Collections.singletonMap("uuid", mockEnvelopeUUID));
+            put("submissionState", "Draft");
+            put("_links", Collections.singletonMap("self",
+                    Collections.singletonMap("href", INGEST_API_ROOT_STRING + "/submissionEnvelopes/coalesced-envelope-id")));
+        }};
+
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/coalesced-envelope-id"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withFixedDelay(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(new ObjectMapper().writeValueAsString(envelopeJson))));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<SubmissionEnvelopeReference>> lookups = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            lookups.add(executor.submit(() -> ingestApiClient.envelopeReferencesFromEnvelopeId("coalesced-envelope-id")));
+        }
+        for (Future<SubmissionEnvelopeReference> lookup : lookups) {
+            assertEquals(mockEnvelopeUUID, lookup.get().getUuid());
+        }
+        executor.shutdown();
+
+        wireMockServer.verify(1, getRequestedFor(urlEqualTo("/submissionEnvelopes/coalesced-envelope-id")));
+        assertEquals(1, ingestApiClient.getEnvelopeReferenceCache().size());
+    }
+
     @Test
     public void testGetSubmissionEnvelopeInfo() throws Exception {
         String mockEnvelopeId = "mock-envelope-id";
@@ -187,6 +237,32 @@ public class IngestApiClientTest {
         assertTrue(mockEnvelope.getSubmissionState().equals("Pending"));
     }
 
+    @Test
+    public void testEnvelopeStateIsCachedUntilInvalidated() throws Exception {
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "cached-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.PENDING,
+                new URI("/submissionEnvelopes/cached-envelope-id"));
+
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/cached-envelope-id"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(new ObjectMapper().writeValueAsString(Collections.singletonMap("submissionState", "Metadata Valid")))));
+
+        assertEquals(SubmissionState.METADATA_VALID, ingestApiClient.retrieveEnvelopeState(submissionEnvelopeReference));
+        assertEquals(SubmissionState.METADATA_VALID, ingestApiClient.retrieveEnvelopeState(submissionEnvelopeReference));
+        wireMockServer.verify(1, getRequestedFor(urlEqualTo("/submissionEnvelopes/cached-envelope-id")));
+
+        ingestApiClient.cacheEnvelopeState(submissionEnvelopeReference, SubmissionState.SUBMITTED);
+        assertEquals(SubmissionState.SUBMITTED, ingestApiClient.retrieveEnvelopeState(submissionEnvelopeReference));
+
+        ingestApiClient.invalidateEnvelopeState(submissionEnvelopeReference);
+        assertEquals(SubmissionState.METADATA_VALID, ingestApiClient.retrieveEnvelopeState(submissionEnvelopeReference));
+        wireMockServer.verify(2, getRequestedFor(urlEqualTo("/submissionEnvelopes/cached-envelope-id")));
+    }
+
     @Test
     public void testUpdateSubmissionEnvelopeState() throws Exception {
         String mockEnvelopeId = "mock-envelope-id";
@@ -255,4 +331,280 @@ public class IngestApiClientTest {
 
     }
 
+    @Test
+    public void testStateUpdateLinksAreTakenFromEnvelopesAlreadyRetrieved() throws Exception {
+        String mockEnvelopeCallbackLocation = "/submissionEnvelopes/linked-envelope-id";
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "linked-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.GRAPH_VALID,
+                new URI(mockEnvelopeCallbackLocation));
+
+        stubEnvelope(wireMockServer, "linked-envelope-id", SubmissionState.GRAPH_VALID);
+
+        ingestApiClient.retrieveSubmissionEnvelope(submissionEnvelopeReference);
+        ingestApiClient.updateEnvelopeState(submissionEnvelopeReference, SubmissionState.SUBMITTED);
+        ingestApiClient.updateEnvelopeState(submissionEnvelopeReference, SubmissionState.SUBMITTED);
+
+        wireMockServer.verify(1, getRequestedFor(urlEqualTo(mockEnvelopeCallbackLocation)));
+        wireMockServer.verify(2, putRequestedFor(urlEqualTo(mockEnvelopeCallbackLocation + "/mockCommitSubmit")));
+    }
+
+    @Test
+    public void testAsyncUpdateSubmissionEnvelopeState() throws Exception {
+        String mockEnvelopeCallbackLocation = "/submissionEnvelopes/async-envelope-id";
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "async-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.GRAPH_VALID,
+                new URI(mockEnvelopeCallbackLocation));
+
+        Map<String, Object> envelopeJson = new HashMap<String, Object>() {{
+            put("submissionState", SubmissionState.GRAPH_VALID.toString());
+            put("_links", Collections.singletonMap(mockStateUpdateRels().get(SubmissionState.SUBMITTED),
+                    Collections.singletonMap("href", INGEST_API_ROOT_STRING + mockEnvelopeCallbackLocation + "/mockCommitSubmit")));
+        }};
+
+        wireMockServer.stubFor(
+                get(urlEqualTo(mockEnvelopeCallbackLocation))
+                        .withHeader("Accept", equalTo("application/hal+json"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(new ObjectMapper().writeValueAsString(envelopeJson))));
+        wireMockServer.stubFor(
+                put(urlEqualTo(mockEnvelopeCallbackLocation + "/mockCommitSubmit"))
+                        .withHeader("Accept", equalTo("application/hal+json"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(new ObjectMapper().writeValueAsString(
+                                        Collections.singletonMap("submissionState", SubmissionState.SUBMITTED.toString())))));
+
+        List<CompletableFuture<SubmissionEnvelope>> updates = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            updates.add(asyncIngestApiClient.updateEnvelopeState(submissionEnvelopeReference, SubmissionState.SUBMITTED));
+        }
+        for (CompletableFuture<SubmissionEnvelope> update : updates) {
+            assertEquals(SubmissionState.SUBMITTED.toString(), update.get().getSubmissionState());
+        }
+
+        wireMockServer.verify(4, putRequestedFor(urlEqualTo(mockEnvelopeCallbackLocation + "/mockCommitSubmit")));
+    }
+
+    @Test
+    public void testAsyncRetrievalOfMissingEnvelopeFailsWithNotFound() throws Exception {
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "missing-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.PENDING,
+                new URI("/submissionEnvelopes/missing-envelope-id"));
+
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/missing-envelope-id"))
+                        .willReturn(aResponse().withStatus(404)));
+
+        try {
+            asyncIngestApiClient.retrieveSubmissionEnvelope(submissionEnvelopeReference).get();
+            fail("Expected the retrieval to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HttpClientErrorException.NotFound);
+        }
+    }
+
+    @Test
+    public void testAsyncCallsAreTurnedAwayByAnOpenBreaker() throws Exception {
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "async-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.GRAPH_VALID,
+                new URI(callbackLocation("async-envelope-id")));
+        stubEnvelope(wireMockServer, "async-envelope-id", SubmissionState.GRAPH_VALID);
+
+        // the async client shares the breakers of the blocking one
+        ingestApiClient.getCoreCallGuard().getCircuitBreaker(CoreCallGuard.Operation.STATE_UPDATE).transitionToOpenState();
+
+        try {
+            asyncIngestApiClient.updateEnvelopeState(submissionEnvelopeReference, SubmissionState.SUBMITTED).get();
+            fail("Expected the update to be turned away");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CoreUnavailableException);
+        }
+        wireMockServer.verify(0, getRequestedFor(urlEqualTo(callbackLocation("async-envelope-id"))));
+        wireMockServer.verify(0, putRequestedFor(urlEqualTo(commitSubmitPath("async-envelope-id"))));
+    }
+
+    @Test
+    public void testAsyncLookupsRememberMissingEnvelopes() throws Exception {
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "missing-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.PENDING,
+                new URI("/submissionEnvelopes/missing-envelope-id"));
+
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/missing-envelope-id"))
+                        .willReturn(aResponse().withStatus(404)));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                asyncIngestApiClient.envelopeReferencesFromEnvelopeId("missing-envelope-id").get();
+                fail("Expected the envelope to be missing");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof HttpClientErrorException.NotFound);
+            }
+        }
+        // the blocking client knows it is missing too
+        try {
+            ingestApiClient.updateEnvelopeState(submissionEnvelopeReference, SubmissionState.SUBMITTED);
+            fail("Expected the envelope to be missing");
+        } catch (HttpClientErrorException.NotFound e) {
+            // expected
+        }
+        wireMockServer.verify(1, getRequestedFor(urlEqualTo("/submissionEnvelopes/missing-envelope-id")));
+    }
+
+    @Test
+    public void testLookupIsAbandonedAtItsDeadline() throws Exception {
+        ConfigurationService config = MockConfigurationService.create();
+        config.setCoreLookupDeadlineMillis(300);
+        IngestApiClient deadlineBoundClient = new IngestApiClient(config);
+        deadlineBoundClient.init();
+
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "slow-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.PENDING,
+                new URI("/submissionEnvelopes/slow-envelope-id"));
+
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/slow-envelope-id"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withFixedDelay(3000)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(new ObjectMapper().writeValueAsString(Collections.singletonMap("submissionState", "Pending")))));
+
+        long start = System.currentTimeMillis();
+        try {
+            deadlineBoundClient.retrieveSubmissionEnvelope(submissionEnvelopeReference);
+            fail("Expected the lookup to time out");
+        } catch (ResourceAccessException e) {
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+    }
+
+    @Test
+    public void testMissingEnvelopeIsRememberedUntilItIsCreated() throws Exception {
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/deleted-envelope-id"))
+                        .willReturn(aResponse().withStatus(404)));
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                ingestApiClient.envelopeReferencesFromEnvelopeId("deleted-envelope-id");
+                fail("Expected the envelope to be missing");
+            } catch (HttpClientErrorException.NotFound e) {
+                // expected
+            }
+        }
+        wireMockServer.verify(1, getRequestedFor(urlEqualTo("/submissionEnvelopes/deleted-envelope-id")));
+
+        ingestApiClient.forgetMissingEnvelope(new SubmissionEnvelopeReference("deleted-envelope-id",
+                UUID.randomUUID().toString(), new URI("/submissionEnvelopes/deleted-envelope-id")));
+        try {
+            ingestApiClient.envelopeReferencesFromEnvelopeId("deleted-envelope-id");
+            fail("Expected the envelope to be missing");
+        } catch (HttpClientErrorException.NotFound e) {
+            wireMockServer.verify(2, getRequestedFor(urlEqualTo("/submissionEnvelopes/deleted-envelope-id")));
+        }
+    }
+
+    @Test
+    public void testLookupsFailFastOnceTheirBreakerOpens() throws Exception {
+        ConfigurationService config = MockConfigurationService.create();
+        config.setCoreBreakerWindowSize(2);
+        config.setCoreBreakerMinimumCalls(2);
+        IngestApiClient guardedClient = new IngestApiClient(config);
+        guardedClient.init();
+
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "failing-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.PENDING,
+                new URI("/submissionEnvelopes/failing-envelope-id"));
+
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/failing-envelope-id"))
+                        .willReturn(aResponse()
+                                .withStatus(503)));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                guardedClient.retrieveSubmissionEnvelope(submissionEnvelopeReference);
+                fail("Expected core to fail the lookup");
+            } catch (HttpServerErrorException e) {
+                assertEquals(503, e.getRawStatusCode());
+            }
+        }
+
+        try {
+            guardedClient.retrieveSubmissionEnvelope(submissionEnvelopeReference);
+            fail("Expected the lookup to be turned away");
+        } catch (CoreUnavailableException e) {
+            wireMockServer.verify(2, getRequestedFor(urlEqualTo("/submissionEnvelopes/failing-envelope-id")));
+        }
+        // state updates have their own breaker
+        assertEquals(CircuitBreaker.State.OPEN,
+                guardedClient.getCoreCallGuard().getCircuitBreaker(CoreCallGuard.Operation.LOOKUP).getState());
+        assertEquals(CircuitBreaker.State.CLOSED,
+                guardedClient.getCoreCallGuard().getCircuitBreaker(CoreCallGuard.Operation.STATE_UPDATE).getState());
+    }
+
+    @Test
+    public void testFindByUuidLinkIsDiscoveredOnce() throws Exception {
+        wireMockServer.stubFor(
+                get(urlEqualTo("/"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(new ObjectMapper().writeValueAsString(Collections.singletonMap("_links",
+                                        Collections.singletonMap("submissionEnvelopes",
+                                                Collections.singletonMap("href", INGEST_API_ROOT_STRING + "/submissionEnvelopes")))))));
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(new ObjectMapper().writeValueAsString(Collections.singletonMap("_links",
+                                        Collections.singletonMap("search",
+                                                Collections.singletonMap("href", INGEST_API_ROOT_STRING + "/submissionEnvelopes/search")))))));
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/search"))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(new ObjectMapper().writeValueAsString(Collections.singletonMap("_links",
+                                        Collections.singletonMap("findByUuid",
+                                                Collections.singletonMap("href", INGEST_API_ROOT_STRING + "/submissionEnvelopes/search/findByUuid")))))));
+
+        List<UUID> envelopeUuids = Arrays.asList(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        for (UUID envelopeUuid : envelopeUuids) {
+            Map<String, Object> envelopeJson = new HashMap<String, Object>() {{
+                put("submissionState", "Draft");
+                put("_links", Collections.singletonMap("self",
+                        Collections.singletonMap("href", INGEST_API_ROOT_STRING + "/submissionEnvelopes/id-" + envelopeUuid)));
+            }};
+            wireMockServer.stubFor(
+                    get(urlEqualTo("/submissionEnvelopes/search/findByUuid?uuid=" + envelopeUuid))
+                            .willReturn(aResponse()
+                                    .withStatus(200)
+                                    .withHeader("Content-Type", "application/hal+json")
+                                    .withBody(new ObjectMapper().writeValueAsString(envelopeJson))));
+        }
+
+        for (UUID envelopeUuid : envelopeUuids) {
+            SubmissionEnvelopeReference envelopeReference = ingestApiClient.referenceForSubmissionEnvelope(envelopeUuid);
+            assertEquals("id-" + envelopeUuid, envelopeReference.getId());
+            assertEquals(SubmissionState.DRAFT, envelopeReference.getState());
+        }
+
+        wireMockServer.verify(1, getRequestedFor(urlEqualTo("/")));
+        wireMockServer.verify(1, getRequestedFor(urlEqualTo("/submissionEnvelopes")));
+        wireMockServer.verify(1, getRequestedFor(urlEqualTo("/submissionEnvelopes/search")));
+        wireMockServer.verify(3, getRequestedFor(urlPathEqualTo("/submissionEnvelopes/search/findByUuid")));
+    }
 }
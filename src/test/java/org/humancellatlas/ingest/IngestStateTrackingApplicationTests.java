@@ -1,6 +1,7 @@
 package org.humancellatlas.ingest;
 
 import org.humancellatlas.ingest.messaging.Constants;
+import org.humancellatlas.ingest.model.DocumentStateUpdate;
 import org.humancellatlas.ingest.model.MetadataDocumentReference;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 import org.humancellatlas.ingest.state.MetadataDocumentState;
@@ -22,8 +23,13 @@ import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.math.BigInteger;
 import java.net.URI;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
@@ -1080,6 +1086,111 @@ public class IngestStateTrackingApplicationTests {
         Assertions.assertEquals(SubmissionState.METADATA_INVALID, submissionStateMonitor.findCurrentState(envelopeRef));
     }
 
+    @Test
+    public void testPassivatedStateMachineIsRestoredOnNextEvent() throws InterruptedException {
+        submissionStateMonitor.notifyOfMetadataDocumentState(documentRef, envelopeRef, MetadataDocumentState.INVALID);
+        Assertions.assertEquals(SubmissionState.METADATA_INVALID, submissionStateMonitor.findCurrentState(envelopeRef));
+
+        TimeUnit.MILLISECONDS.sleep(10);
+        assertTrue(submissionStateMonitor.passivateIdleStateMachines(Duration.ZERO) > 0);
+        assertFalse(submissionStateMonitor.getStateMachines().stream()
+                .anyMatch(machine -> machine.getId().equals(envelopeRef.getUuid())));
+        assertTrue(submissionStateMonitor.isMonitoring(envelopeRef));
+
+        submissionStateMonitor.notifyOfMetadataDocumentState(documentRef, envelopeRef, MetadataDocumentState.VALID);
+        Assertions.assertEquals(SubmissionState.METADATA_VALID, submissionStateMonitor.findCurrentState(envelopeRef));
+    }
+
+    @Test
+    public void testUnloadedStateMachineIsLoadedOnceOnFirstUse() throws InterruptedException {
+        SubmissionEnvelopeReference unloadedRef = new SubmissionEnvelopeReference("4321", UUID.randomUUID().toString(),
+                SubmissionState.PENDING, URI.create("http://localhost:8080/api/submissionEnvelopes/4321"));
+        AtomicInteger loads = new AtomicInteger();
+        submissionStateMonitor.monitorUnloadedStateMachines(
+                Collections.singletonList(UUID.fromString(unloadedRef.getUuid())), submissionEnvelopeUuid -> {
+                    loads.incrementAndGet();
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    submissionStateMonitor.monitorSubmissionEnvelope(unloadedRef, false);
+                });
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> lookups = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            lookups.add(executor.submit(() -> submissionStateMonitor.isMonitoring(unloadedRef)));
+        }
+        lookups.forEach(lookup -> {
+            try {
+                assertTrue(lookup.get());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        executor.shutdown();
+
+        assertEquals(1, loads.get());
+        Assertions.assertEquals(SubmissionState.PENDING, submissionStateMonitor.findCurrentState(unloadedRef));
+        submissionStateMonitor.stopMonitoring(unloadedRef);
+    }
+
+    @Test
+    public void testBatchOfDocumentStatesIsAppliedInOneEvent() {
+        assertFalse(submissionStateMonitor.notifyOfMetadataDocumentStates(envelopeRef, Arrays.asList(
+                new DocumentStateUpdate("doc1", MetadataDocumentState.DRAFT),
+                new DocumentStateUpdate("doc2", MetadataDocumentState.DRAFT))).contains(false));
+        Assertions.assertEquals(SubmissionState.DRAFT, submissionStateMonitor.findCurrentState(envelopeRef));
+
+        assertFalse(submissionStateMonitor.notifyOfMetadataDocumentStates(envelopeRef, Arrays.asList(
+                new DocumentStateUpdate("doc1", MetadataDocumentState.VALIDATING),
+                new DocumentStateUpdate("doc2", MetadataDocumentState.INVALID))).contains(false));
+        Assertions.assertEquals(SubmissionState.METADATA_INVALID, submissionStateMonitor.findCurrentState(envelopeRef));
+
+        assertFalse(submissionStateMonitor.notifyOfMetadataDocumentStates(envelopeRef, Arrays.asList(
+                new DocumentStateUpdate("doc1", MetadataDocumentState.VALID),
+                new DocumentStateUpdate("doc2", MetadataDocumentState.VALID))).contains(false));
+        Assertions.assertEquals(SubmissionState.METADATA_VALID, submissionStateMonitor.findCurrentState(envelopeRef));
+    }
+
+    @Test
+    public void testBulkDocumentStatesReportPerDocumentResults() {
+        List<Boolean> results = submissionStateMonitor.notifyOfMetadataDocumentStates(envelopeRef, Arrays.asList(
+                new DocumentStateUpdate("doc1", MetadataDocumentState.INVALID),
+                new DocumentStateUpdate("doc2", null),
+                new DocumentStateUpdate(null, MetadataDocumentState.VALID),
+                new DocumentStateUpdate("doc1", MetadataDocumentState.VALIDATING),
+                new DocumentStateUpdate("doc1", null)));
+
+        // one result per update, and the updates without a state or id are the ones rejected and not applied
+        assertEquals(Arrays.asList(true, false, false, true, false), results);
+        Assertions.assertEquals(SubmissionState.DRAFT, submissionStateMonitor.findCurrentState(envelopeRef));
+
+        // the last update of doc1 won, so the envelope is validating rather than invalid
+        submissionStateMonitor.notifyOfMetadataDocumentStates(envelopeRef,
+                Collections.singletonList(new DocumentStateUpdate("doc3", MetadataDocumentState.VALID)));
+        Assertions.assertEquals(SubmissionState.METADATA_VALIDATING, submissionStateMonitor.findCurrentState(envelopeRef));
+    }
+
+    @Test
+    public void testOnlyChangedStateMachinesAreDrainedForPersistence() {
+        assertTrue(isDrainedAsDirty(envelopeRef));
+        assertFalse(isDrainedAsDirty(envelopeRef));
+
+        submissionStateMonitor.notifyOfMetadataDocumentState(documentRef, envelopeRef, MetadataDocumentState.DRAFT);
+        assertTrue(isDrainedAsDirty(envelopeRef));
+
+        // a rejected event changes nothing
+        submissionStateMonitor.sendEventForSubmissionEnvelope(envelopeRef, SubmissionEvent.ALL_TASKS_COMPLETE);
+        assertFalse(isDrainedAsDirty(envelopeRef));
+    }
+
+    private boolean isDrainedAsDirty(SubmissionEnvelopeReference envelope) {
+        return submissionStateMonitor.drainDirtyStateMachines().stream()
+                .anyMatch(machine -> machine.getId().equals(envelope.getUuid()));
+    }
+
     @Test
     public void testSubmissionStateOrdering() {
         assertTrue(SubmissionState.DRAFT.after(SubmissionState.fromString("pEnDing")));
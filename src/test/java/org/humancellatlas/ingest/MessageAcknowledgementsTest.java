@@ -0,0 +1,104 @@
+package org.humancellatlas.ingest;
+
+import com.rabbitmq.client.Channel;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.exception.CoreUnavailableException;
+import org.humancellatlas.ingest.exception.WorkerLaneFullException;
+import org.humancellatlas.ingest.messaging.ack.Acknowledgement;
+import org.humancellatlas.ingest.messaging.ack.MessageAcknowledgements;
+import org.humancellatlas.ingest.testutil.MockConfigurationService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class MessageAcknowledgementsTest {
+    private Channel channel;
+    private MessageAcknowledgements acknowledgements;
+
+    @BeforeEach
+    public void setup() {
+        ConfigurationService config = MockConfigurationService.create();
+        config.setAmqpManualAck(true);
+        config.setAmqpAckBatchSize(2);
+        config.setCoreUnavailableRequeueDelayMillis(200);
+        acknowledgements = new MessageAcknowledgements(config);
+
+        channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+    }
+
+    @Test
+    public void testAcksAreCoalescedBehindOutstandingDeliveries() throws Exception {
+        Acknowledgement first = acknowledgements.forDelivery(channel, 1, false);
+        Acknowledgement second = acknowledgements.forDelivery(channel, 2, false);
+        Acknowledgement third = acknowledgements.forDelivery(channel, 3, false);
+
+        second.ack();
+        third.ack();
+        // delivery 1 is still being handled, so nothing can be acknowledged yet
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        first.ack();
+        verify(channel).basicAck(3, true);
+    }
+
+    @Test
+    public void testTimedFlushAcksAPartialBatch() throws Exception {
+        acknowledgements.forDelivery(channel, 1, false).ack();
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        acknowledgements.flush();
+        verify(channel).basicAck(1, true);
+    }
+
+    @Test
+    public void testFailedDeliveriesAreRequeuedOnce() throws Exception {
+        acknowledgements.forDelivery(channel, 1, false).nack(new RuntimeException("first failure"));
+        acknowledgements.forDelivery(channel, 2, true).nack(new RuntimeException("second failure"));
+        acknowledgements.forDelivery(channel, 3, false).nack(new AmqpRejectAndDontRequeueException("poison"));
+
+        verify(channel).basicNack(1, false, true);
+        verify(channel).basicNack(2, false, false);
+        verify(channel).basicNack(3, false, false);
+    }
+
+    @Test
+    public void testDeliveriesTurnedAwayByCoreAreRequeuedAfterADelay() throws Exception {
+        Acknowledgement first = acknowledgements.forDelivery(channel, 1, true);
+        Acknowledgement second = acknowledgements.forDelivery(channel, 2, false);
+
+        first.nack(new CoreUnavailableException("circuit open", null));
+        second.ack();
+        acknowledgements.flush();
+        // delivery 1 still holds its place until it is requeued
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        verify(channel, timeout(5000)).basicNack(1, false, true);
+        acknowledgements.flush();
+        verify(channel).basicAck(2, true);
+    }
+
+    @Test
+    public void testDeliveriesTurnedAwayByAFullLaneAreAlwaysRequeued() throws Exception {
+        acknowledgements.forDelivery(channel, 1, true).nack(new WorkerLaneFullException("lane full"));
+        acknowledgements.forDelivery(channel, 2, true).nack(
+                new WorkerLaneFullException("interrupted", new InterruptedException()));
+
+        verify(channel).basicNack(1, false, true);
+        verify(channel).basicNack(2, false, true);
+    }
+
+    @Test
+    public void testNothingIsTrackedWithoutManualAck() {
+        ConfigurationService config = MockConfigurationService.create();
+        MessageAcknowledgements autoAcknowledgements = new MessageAcknowledgements(config);
+
+        assertThat(autoAcknowledgements.forDelivery(channel, 1, false)).isSameAs(Acknowledgement.NONE);
+    }
+}
@@ -0,0 +1,80 @@
+package org.humancellatlas.ingest;
+
+import org.humancellatlas.ingest.messaging.Constants;
+import org.humancellatlas.ingest.state.MetadataDocumentState;
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.humancellatlas.ingest.state.monitor.util.MetadataDocumentTracker;
+import org.junit.jupiter.api.Test;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.kryo.KryoStateMachineSerialisationService;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataDocumentTrackerTest {
+
+    @Test
+    public void testCountsFollowDocumentUpdates() {
+        MetadataDocumentTracker tracker = new MetadataDocumentTracker();
+        tracker.put("doc1", MetadataDocumentState.VALIDATING);
+        tracker.put("doc2", MetadataDocumentState.VALIDATING);
+        tracker.put("doc3", MetadataDocumentState.INVALID);
+
+        assertEquals(2, tracker.count(MetadataDocumentState.VALIDATING));
+        assertEquals(1, tracker.count(MetadataDocumentState.INVALID));
+
+        tracker.put("doc1", MetadataDocumentState.INVALID);
+        tracker.remove("doc3");
+        tracker.remove("unknown");
+
+        assertEquals(1, tracker.count(MetadataDocumentState.VALIDATING));
+        assertEquals(1, tracker.count(MetadataDocumentState.INVALID));
+        assertEquals(2, tracker.size());
+
+        tracker.clear();
+        assertFalse(tracker.hasDocumentsIn(MetadataDocumentState.VALIDATING));
+        assertTrue(tracker.isEmpty());
+    }
+
+    @Test
+    public void testMigratesPlainMap() {
+        Map<String, MetadataDocumentState> legacy = new HashMap<>();
+        legacy.put("doc1", MetadataDocumentState.DRAFT);
+        legacy.put("doc2", MetadataDocumentState.INVALID);
+
+        MetadataDocumentTracker tracker = MetadataDocumentTracker.from(legacy);
+        assertEquals(legacy, tracker);
+        assertEquals(1, tracker.count(MetadataDocumentState.INVALID));
+    }
+
+    @Test
+    public void testCountsSurviveSerialisation() throws Exception {
+        MetadataDocumentTracker tracker = new MetadataDocumentTracker();
+        tracker.put("doc1", MetadataDocumentState.VALIDATING);
+        tracker.put("doc2", MetadataDocumentState.INVALID);
+        tracker.put("doc3", MetadataDocumentState.INVALID);
+
+        DefaultExtendedState extendedState = new DefaultExtendedState();
+        extendedState.getVariables().put(Constants.METADATA_DOCUMENT_TRACKER, tracker);
+        StateMachineContext<SubmissionState, SubmissionEvent> context = new DefaultStateMachineContext<>(
+                SubmissionState.METADATA_INVALID, null, null, extendedState, null, "machine");
+
+        KryoStateMachineSerialisationService<SubmissionState, SubmissionEvent> serialisationService =
+                new KryoStateMachineSerialisationService<>();
+        StateMachineContext<SubmissionState, SubmissionEvent> restored = serialisationService.deserialiseStateMachineContext(
+                serialisationService.serialiseStateMachineContext(context));
+
+        MetadataDocumentTracker restoredTracker = (MetadataDocumentTracker) restored.getExtendedState()
+                .getVariables().get(Constants.METADATA_DOCUMENT_TRACKER);
+        assertEquals(tracker, restoredTracker);
+        assertEquals(1, restoredTracker.count(MetadataDocumentState.VALIDATING));
+        assertEquals(2, restoredTracker.count(MetadataDocumentState.INVALID));
+    }
+}
@@ -0,0 +1,93 @@
+package org.humancellatlas.ingest;
+
+import org.humancellatlas.ingest.state.MetadataDocumentInfo;
+import org.humancellatlas.ingest.state.MetadataDocumentState;
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.humancellatlas.ingest.state.persistence.RedisPersister;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares a persist cycle of the one-machine-at-a-time path with the pipelined batch path.
+ * <p>
+ * Needs a local Redis, e.g. {@code docker-compose -p st up -d redis}, so it is excluded from the test task like
+ * {@link RedisPersisterTest}. Run it with {@code ./gradlew redisBenchmark}.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest
+@TestPropertySource(properties = {
+        "app.auto-persist.enable=false",
+        "app.auto-load.enable=false",
+        "app.passivation.enable=false",
+        "app.state-engine=compiled"})
+@ActiveProfiles("redis-persistence")
+public class RedisPersisterBenchmark {
+    private static final int[] MACHINE_COUNTS = {1_000, 10_000, 100_000};
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StateMachineFactory<SubmissionState, SubmissionEvent> stateMachineFactory;
+    @Autowired
+    private RedisPersister redisPersister;
+
+    @Test
+    public void benchmarkPersistCycle() {
+        for (int machineCount : MACHINE_COUNTS) {
+            redisPersister.deleteAllStateMachines();
+            List<StateMachine<SubmissionState, SubmissionEvent>> machines = createStateMachines(machineCount);
+
+            long individually = time(machines, redisPersister::persistStateMachinesIndividually);
+            // the first batched cycle after a restart also registers every machine in the repository
+            long batchedFirstCycle = time(machines, redisPersister::persistStateMachines);
+            long batched = time(machines, redisPersister::persistStateMachines);
+
+            log.info(String.format("%d machines: individually %d ms, batched %d ms (first cycle %d ms)",
+                    machineCount, individually, batched, batchedFirstCycle));
+            assertTrue(redisPersister.retrieveStateMachine(machines.get(0).getId()).isPresent());
+        }
+        redisPersister.deleteAllStateMachines();
+    }
+
+    private long time(Collection<StateMachine<SubmissionState, SubmissionEvent>> machines,
+                      Function<Collection<StateMachine<SubmissionState, SubmissionEvent>>, Collection<String>> persist) {
+        long start = System.nanoTime();
+        Collection<String> failed = persist.apply(machines);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(failed.isEmpty());
+        return elapsedMillis;
+    }
+
+    private List<StateMachine<SubmissionState, SubmissionEvent>> createStateMachines(int count) {
+        List<StateMachine<SubmissionState, SubmissionEvent>> machines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StateMachine<SubmissionState, SubmissionEvent> machine = stateMachineFactory.getStateMachine(UUID.randomUUID().toString());
+            machine.start();
+            machine.sendEvent(MessageBuilder.withPayload(SubmissionEvent.DOCUMENT_PROCESSED)
+                    .setHeader(MetadataDocumentInfo.DOCUMENT_ID, Integer.toString(i))
+                    .setHeader(MetadataDocumentInfo.DOCUMENT_STATE, MetadataDocumentState.DRAFT)
+                    .build());
+            machines.add(machine);
+        }
+        return machines;
+    }
+}
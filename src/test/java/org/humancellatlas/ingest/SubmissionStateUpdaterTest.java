@@ -4,11 +4,15 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import org.humancellatlas.ingest.client.AsyncIngestApiClient;
 import org.humancellatlas.ingest.client.IngestApiClient;
+import org.humancellatlas.ingest.client.util.CoreCallGuard;
 import org.humancellatlas.ingest.config.ConfigurationService;
 import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
 import org.humancellatlas.ingest.state.SubmissionState;
 import org.humancellatlas.ingest.state.monitor.SubmissionStateUpdater;
+import org.humancellatlas.ingest.state.monitor.model.SubmissionUpdateRetry;
+import org.humancellatlas.ingest.state.persistence.FileRetryStore;
 import org.humancellatlas.ingest.testutil.MockConfigurationService;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
@@ -20,12 +24,16 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.web.client.HttpClientErrorException;
 
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
+import static org.humancellatlas.ingest.testutil.EnvelopeStubs.stubEnvelope;
 import static org.humancellatlas.ingest.testutil.MockConfigurationService.INGEST_API_ROOT_STRING;
 import static org.humancellatlas.ingest.testutil.MockConfigurationService.mockStateUpdateRels;
 import static org.junit.Assert.*;
@@ -41,6 +49,7 @@ public class SubmissionStateUpdaterTest {
     private IngestApiClient ingestApiClient;
     private ConfigurationService config;
     private SubmissionStateUpdater submissionStateUpdater;
+    private Path retryFile;
     
     private WireMockServer wireMockServer;
 
@@ -48,11 +57,14 @@ public class SubmissionStateUpdaterTest {
     }
 
     @BeforeEach
-    public void before() {
+    public void before() throws Exception {
         ingestApiClient = new IngestApiClient(MockConfigurationService.create());
         ingestApiClient.init();
         config = MockConfigurationService.create();
-        submissionStateUpdater = new SubmissionStateUpdater(ingestApiClient, config);
+        config.setUpdaterRetryBaseDelayMillis(0);
+        retryFile = Files.createTempFile("update-retries", ".json");
+        Files.delete(retryFile);
+        submissionStateUpdater = new SubmissionStateUpdater(ingestApiClient, new AsyncIngestApiClient(config, ingestApiClient), config, new FileRetryStore(retryFile));
     }
 
     @BeforeEach
@@ -68,8 +80,9 @@ public class SubmissionStateUpdaterTest {
     }
 
     @AfterEach
-    public void after() {
+    public void after() throws Exception {
         submissionStateUpdater.stop();
+        Files.deleteIfExists(retryFile);
     }
 
     @Test
@@ -91,6 +104,46 @@ public class SubmissionStateUpdaterTest {
 
     }
 
+    @Test
+    public void testUpdateOfADeletedEnvelopeMarksItMissing() throws Exception {
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "deleted-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.PENDING,
+                new URI("/submissionEnvelopes/deleted-envelope-id"));
+        wireMockServer.stubFor(
+                get(urlEqualTo("/submissionEnvelopes/deleted-envelope-id"))
+                        .willReturn(aResponse().withStatus(404)));
+
+        submissionStateUpdater.requestStateUpdateForEnvelope(submissionEnvelopeReference, SubmissionState.SUBMITTED);
+        submissionStateUpdater.persistStates();
+        assertTrue(submissionStateUpdater.getPendingUpdates().isEmpty());
+
+        // a late message for the envelope is dropped without asking core
+        try {
+            ingestApiClient.envelopeReferencesFromEnvelopeId("deleted-envelope-id");
+            fail("Expected the envelope to be missing");
+        } catch (HttpClientErrorException.NotFound e) {
+            wireMockServer.verify(1, getRequestedFor(urlEqualTo("/submissionEnvelopes/deleted-envelope-id")));
+        }
+    }
+
+    @Test
+    public void testUpdateTurnedAwayByAnOpenBreakerStaysPending() throws Exception {
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "deferred-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.PENDING,
+                new URI("/submissionEnvelopes/deferred-envelope-id"));
+        ingestApiClient.getCoreCallGuard().getCircuitBreaker(CoreCallGuard.Operation.STATE_UPDATE).transitionToOpenState();
+
+        submissionStateUpdater.requestStateUpdateForEnvelope(submissionEnvelopeReference, SubmissionState.SUBMITTED);
+        submissionStateUpdater.persistStates();
+
+        assertEquals(1, submissionStateUpdater.getPendingUpdates().size());
+        assertEquals(SubmissionState.SUBMITTED, submissionStateUpdater.getPendingUpdates().iterator().next().getToState());
+        assertTrue(submissionStateUpdater.getRetries().isEmpty());
+        assertTrue(wireMockServer.getAllServeEvents().isEmpty());
+    }
+
     @Test
     public void testUpdateSubmissionState() throws Exception {
         String mockEnvelopeId = "mock-envelope-id";
@@ -189,4 +242,108 @@ public class SubmissionStateUpdaterTest {
         assertTrue(submissionStateUpdater.getPendingUpdates().size() == 0);
 
     }
+
+    @Test
+    public void testFailedUpdateIsRetriedAfterARestart() throws Exception {
+        String mockEnvelopeCallbackLocation = "/submissionEnvelopes/retried-envelope-id";
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "retried-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.GRAPH_VALID,
+                new URI(mockEnvelopeCallbackLocation));
+
+        wireMockServer.stubFor(
+                get(urlEqualTo(mockEnvelopeCallbackLocation))
+                        .willReturn(aResponse().withStatus(503)));
+
+        submissionStateUpdater.requestStateUpdateForEnvelope(submissionEnvelopeReference, SubmissionState.SUBMITTED);
+        submissionStateUpdater.persistStates();
+
+        assertEquals(1, submissionStateUpdater.getRetries().size());
+        SubmissionUpdateRetry retry = submissionStateUpdater.getRetries().iterator().next();
+        assertEquals(1, retry.getAttempts());
+        assertEquals(SubmissionState.SUBMITTED, retry.getToState());
+        assertFalse(retry.isExhausted());
+
+        // a new updater picks the retry up from the store
+        submissionStateUpdater.stop();
+        submissionStateUpdater = new SubmissionStateUpdater(ingestApiClient, new AsyncIngestApiClient(config, ingestApiClient), config, new FileRetryStore(retryFile));
+        assertEquals(1, submissionStateUpdater.getRetries().size());
+
+        stubEnvelope(wireMockServer, "retried-envelope-id", SubmissionState.GRAPH_VALID);
+
+        submissionStateUpdater.retryDueUpdates();
+
+        wireMockServer.verify(1, putRequestedFor(urlEqualTo(mockEnvelopeCallbackLocation + "/mockCommitSubmit")));
+        assertTrue(submissionStateUpdater.getRetries().isEmpty());
+        assertTrue(new FileRetryStore(retryFile).findAll().isEmpty());
+    }
+
+    @Test
+    public void testRetryInFlightDoesNotHoldUpFreshUpdates() throws Exception {
+        String slowEnvelopeCallbackLocation = "/submissionEnvelopes/slow-envelope-id";
+        SubmissionEnvelopeReference slowEnvelopeReference = new SubmissionEnvelopeReference(
+                "slow-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.GRAPH_VALID,
+                new URI(slowEnvelopeCallbackLocation));
+        wireMockServer.stubFor(
+                get(urlEqualTo(slowEnvelopeCallbackLocation))
+                        .willReturn(aResponse().withStatus(503).withFixedDelay(1000)));
+
+        submissionStateUpdater.requestStateUpdateForEnvelope(slowEnvelopeReference, SubmissionState.SUBMITTED);
+        submissionStateUpdater.persistStates();
+        assertEquals(1, submissionStateUpdater.getRetries().size());
+
+        Thread retrying = new Thread(submissionStateUpdater::retryDueUpdates);
+        retrying.start();
+        while (wireMockServer.findAll(getRequestedFor(urlEqualTo(slowEnvelopeCallbackLocation))).size() < 2) {
+            Thread.sleep(10);
+        }
+
+        String freshEnvelopeCallbackLocation = "/submissionEnvelopes/fresh-envelope-id";
+        SubmissionEnvelopeReference freshEnvelopeReference = new SubmissionEnvelopeReference(
+                "fresh-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.GRAPH_VALID,
+                new URI(freshEnvelopeCallbackLocation));
+        stubEnvelope(wireMockServer, "fresh-envelope-id", SubmissionState.GRAPH_VALID);
+
+        submissionStateUpdater.requestStateUpdateForEnvelope(freshEnvelopeReference, SubmissionState.SUBMITTED);
+        submissionStateUpdater.requestStateUpdateForEnvelope(slowEnvelopeReference, SubmissionState.COMPLETE);
+        submissionStateUpdater.persistStates();
+
+        // the fresh envelope was pushed while the retry was still waiting on core
+        assertTrue(retrying.isAlive());
+        wireMockServer.verify(1, putRequestedFor(urlEqualTo(freshEnvelopeCallbackLocation + "/mockCommitSubmit")));
+        // the slow envelope's newer state waits for its retry to finish
+        assertEquals(1, submissionStateUpdater.getPendingUpdates().size());
+        assertEquals(SubmissionState.COMPLETE, submissionStateUpdater.getPendingUpdates().iterator().next().getToState());
+
+        retrying.join();
+        assertTrue(submissionStateUpdater.getRetries().isEmpty());
+        assertTrue(new FileRetryStore(retryFile).findAll().isEmpty());
+    }
+
+    @Test
+    public void testEventFlushCoalescesRapidStateChangesIntoOnePush() throws Exception {
+        config.setUpdaterFlushMode("event");
+        config.setUpdaterCoalesceMillis(200);
+        submissionStateUpdater.stop();
+        submissionStateUpdater = new SubmissionStateUpdater(ingestApiClient, new AsyncIngestApiClient(config, ingestApiClient), config, new FileRetryStore(retryFile));
+
+        String mockEnvelopeCallbackLocation = "/submissionEnvelopes/flushed-envelope-id";
+        SubmissionEnvelopeReference submissionEnvelopeReference = new SubmissionEnvelopeReference(
+                "flushed-envelope-id",
+                UUID.randomUUID().toString(), SubmissionState.GRAPH_VALID,
+                new URI(mockEnvelopeCallbackLocation));
+
+        stubEnvelope(wireMockServer, "flushed-envelope-id", SubmissionState.GRAPH_VALID);
+
+        // the updater would otherwise first poll after 5 seconds
+        submissionStateUpdater.requestStateUpdateForEnvelope(submissionEnvelopeReference, SubmissionState.GRAPH_VALIDATING);
+        submissionStateUpdater.requestStateUpdateForEnvelope(submissionEnvelopeReference, SubmissionState.SUBMITTED);
+        Thread.sleep(1500);
+
+        assertTrue(submissionStateUpdater.getPendingUpdates().isEmpty());
+        wireMockServer.verify(1, putRequestedFor(urlEqualTo(mockEnvelopeCallbackLocation + "/mockCommitSubmit")));
+        assertTrue(submissionStateUpdater.getRetries().isEmpty());
+    }
 }
@@ -0,0 +1,36 @@
+package org.humancellatlas.ingest;
+
+import org.humancellatlas.ingest.client.util.TokenBucket;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstUpToCapacityIsNotHeldBack() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(1, 5);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            tokenBucket.acquire();
+        }
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+    }
+
+    @Test
+    public void testSustainedRequestsAreHeldToTheRate() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(20, 1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            tokenBucket.acquire();
+        }
+
+        // the first token is already in the bucket, the other ten are added at 20 a second
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 450);
+    }
+}
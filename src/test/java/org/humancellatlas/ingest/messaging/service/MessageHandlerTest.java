@@ -0,0 +1,107 @@
+package org.humancellatlas.ingest.messaging.service;
+
+import org.humancellatlas.ingest.client.IngestApiClient;
+import org.humancellatlas.ingest.client.util.ObjectMappers;
+import org.humancellatlas.ingest.config.ConfigurationService;
+import org.humancellatlas.ingest.messaging.model.DocumentCompletedMessage;
+import org.humancellatlas.ingest.messaging.model.MetadataDocumentMessage;
+import org.humancellatlas.ingest.model.SubmissionEnvelopeReference;
+import org.humancellatlas.ingest.state.SubmissionEvent;
+import org.humancellatlas.ingest.state.SubmissionState;
+import org.humancellatlas.ingest.state.monitor.SubmissionStateMonitor;
+import org.humancellatlas.ingest.testutil.MockConfigurationService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class MessageHandlerTest {
+    private static final int NUM_LANES = 4;
+    private static final String ENVELOPE_ID = "envelope-id";
+
+    private IngestApiClient ingestApiClient;
+    private SubmissionStateMonitor submissionStateMonitor;
+    private MessageHandler messageHandler;
+    private SubmissionEnvelopeReference envelopeReference;
+    private CountDownLatch release;
+
+    @BeforeEach
+    public void before() {
+        ConfigurationService config = MockConfigurationService.create();
+        config.setNumHandlerThreads(NUM_LANES);
+        ingestApiClient = mock(IngestApiClient.class);
+        submissionStateMonitor = mock(SubmissionStateMonitor.class);
+        messageHandler = new MessageHandler(config, ingestApiClient, submissionStateMonitor);
+
+        envelopeReference = new SubmissionEnvelopeReference(ENVELOPE_ID, uuidOnAnotherLaneThan(ENVELOPE_ID),
+                URI.create("/submissionEnvelopes/" + ENVELOPE_ID));
+        release = new CountDownLatch(1);
+    }
+
+    @AfterEach
+    public void after() {
+        release.countDown();
+    }
+
+    @Test
+    public void testWorkFromEitherQueueIsHandledInOrderForOneEnvelope() throws Exception {
+        List<String> events = new CopyOnWriteArrayList<>();
+        CountDownLatch metadataStarted = new CountDownLatch(1);
+        when(ingestApiClient.envelopeReferencesFromEnvelopeId(ENVELOPE_ID)).thenAnswer(invocation -> {
+            metadataStarted.countDown();
+            release.await();
+            return envelopeReference;
+        });
+        when(submissionStateMonitor.findLoadedState(envelopeReference)).thenReturn(Optional.of(SubmissionState.DRAFT));
+        when(submissionStateMonitor.findTrackedReference(UUID.fromString(envelopeReference.getUuid())))
+                .thenReturn(Optional.of(envelopeReference));
+        doAnswer(invocation -> events.add("metadata document")).when(submissionStateMonitor)
+                .notifyOfMetadataDocumentState(any(), eq(envelopeReference), any());
+        doAnswer(invocation -> events.add("document completed")).when(submissionStateMonitor)
+                .notifyOfDocumentState(anyString(), eq(envelopeReference.getUuid()), anyInt(), any(), any());
+
+        messageHandler.handleMetadataDocumentUpdate(new MetadataDocumentMessage("biomaterial", "document-id",
+                UUID.randomUUID().toString(), "/biomaterials/document-id", "Valid", ENVELOPE_ID));
+        assertTrue(metadataStarted.await(5, TimeUnit.SECONDS));
+        // only names the envelope by UUID, which routes to another lane than the envelope ID
+        messageHandler.handleDocumentCompletedMessageForSubmissionEvent(completedMessage(envelopeReference.getUuid()),
+                SubmissionEvent.PROCESSING_STATE_UPDATE);
+
+        Thread.sleep(200);
+        assertTrue(events.isEmpty());
+
+        release.countDown();
+        verify(submissionStateMonitor, timeout(5000))
+                .notifyOfDocumentState(anyString(), eq(envelopeReference.getUuid()), anyInt(), any(), any());
+        assertEquals(List.of("metadata document", "document completed"), events);
+    }
+
+    private static String uuidOnAnotherLaneThan(String envelopeId) {
+        String envelopeUuid;
+        do {
+            envelopeUuid = UUID.randomUUID().toString();
+        } while (Workers.laneIndexFor(envelopeUuid, NUM_LANES) == Workers.laneIndexFor(envelopeId, NUM_LANES));
+        return envelopeUuid;
+    }
+
+    private static DocumentCompletedMessage completedMessage(String envelopeUuid) throws Exception {
+        return ObjectMappers.shared().readValue(String.format(
+                "{\"envelopeUuid\": \"%s\", \"documentId\": \"manifest-id\", \"index\": 0, \"total\": 1}", envelopeUuid),
+                DocumentCompletedMessage.class);
+    }
+}
@@ -0,0 +1,94 @@
+package org.humancellatlas.ingest.messaging.service;
+
+import org.humancellatlas.ingest.exception.WorkerLaneFullException;
+import org.humancellatlas.ingest.messaging.model.MetadataDocumentMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetadataDocumentBatcherTest {
+
+    @Test
+    public void testBatchRefusedByAFullLaneIsPutBackAndHandedOnLater() throws Exception {
+        AtomicBoolean laneFull = new AtomicBoolean(true);
+        CompletableFuture<List<MetadataDocumentMessage>> handed = new CompletableFuture<>();
+        MetadataDocumentBatcher batcher = new MetadataDocumentBatcher(2, 100, (envelopeId, batch) -> {
+            if (laneFull.getAndSet(false)) {
+                throw new WorkerLaneFullException("lane full");
+            }
+            handed.complete(batch);
+        });
+
+        batcher.add(documentMessage("first-document-id"));
+        try {
+            batcher.add(documentMessage("second-document-id"));
+            fail("Expected the full lane to push back");
+        } catch (WorkerLaneFullException e) {
+            // expected
+        }
+
+        List<MetadataDocumentMessage> batch = handed.get(5, TimeUnit.SECONDS);
+        assertEquals(2, batch.size());
+        assertEquals("first-document-id", batch.get(0).getDocumentId());
+    }
+
+    @Test
+    public void testNewerUpdatesWaitForABatchBeingHandedOn() throws Exception {
+        CountDownLatch handingOn = new CountDownLatch(1);
+        CountDownLatch refuse = new CountDownLatch(1);
+        AtomicBoolean first = new AtomicBoolean(true);
+        List<List<String>> handedOn = new CopyOnWriteArrayList<>();
+        MetadataDocumentBatcher batcher = new MetadataDocumentBatcher(2, 60_000, (envelopeId, batch) -> {
+            if (first.getAndSet(false)) {
+                handingOn.countDown();
+                awaitQuietly(refuse);
+                throw new WorkerLaneFullException("lane full");
+            }
+            handedOn.add(batch.stream().map(MetadataDocumentMessage::getDocumentId).collect(Collectors.toList()));
+        });
+
+        batcher.add(documentMessage("first-document-id"));
+        CompletableFuture<Void> fullBatch = CompletableFuture.runAsync(() -> batcher.add(documentMessage("second-document-id")));
+        assertTrue(handingOn.await(5, TimeUnit.SECONDS));
+
+        batcher.add(documentMessage("third-document-id"));
+        CompletableFuture<Void> flushed = CompletableFuture.runAsync(() -> batcher.flush("batched-envelope-id"));
+        Thread.sleep(200);
+        // the newer update waits for the older batch to be handed on or put back
+        assertTrue(handedOn.isEmpty());
+
+        refuse.countDown();
+        try {
+            fullBatch.get(5, TimeUnit.SECONDS);
+            fail("Expected the full lane to push back");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WorkerLaneFullException);
+        }
+        flushed.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(List.of("first-document-id", "second-document-id", "third-document-id")), handedOn);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static MetadataDocumentMessage documentMessage(String documentId) {
+        return new MetadataDocumentMessage("biomaterial", documentId, documentId + "-uuid",
+                "/biomaterials/" + documentId, "Valid", "batched-envelope-id");
+    }
+}
@@ -0,0 +1,130 @@
+package org.humancellatlas.ingest.messaging.service;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.humancellatlas.ingest.exception.WorkerLaneFullException;
+import org.humancellatlas.ingest.messaging.ack.Acknowledgement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WorkersTest {
+    private static final Duration OFFER_TIMEOUT = Duration.ofMillis(100);
+
+    private SimpleMeterRegistry registry;
+    private CountDownLatch release;
+
+    @BeforeEach
+    public void before() {
+        registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        release = new CountDownLatch(1);
+    }
+
+    @AfterEach
+    public void after() {
+        release.countDown();
+        Metrics.removeRegistry(registry);
+    }
+
+    @Test
+    public void testSubmitToAFullLaneNacksAfterTheOfferTimeout() throws Exception {
+        Workers workers = fullLane();
+        AtomicBoolean acked = new AtomicBoolean();
+        AtomicReference<Throwable> nackCause = new AtomicReference<>();
+
+        long start = System.nanoTime();
+        try {
+            workers.submit(() -> {}, "routing-key", new Acknowledgement() {
+                @Override
+                public void ack() {
+                    acked.set(true);
+                }
+
+                @Override
+                public void nack(Throwable cause) {
+                    nackCause.set(cause);
+                }
+            });
+            fail("Expected the full lane to refuse the work");
+        } catch (WorkerLaneFullException e) {
+            assertTrue(nackCause.get() == e);
+        }
+
+        assertTrue(System.nanoTime() - start >= OFFER_TIMEOUT.toNanos());
+        assertFalse(acked.get());
+        assertEquals(1, registry.counter("messagehandler.lane.rejections").count(), 0);
+    }
+
+    @Test
+    public void testSubmitToAFullLaneWithoutAnAcknowledgementThrows() throws Exception {
+        Workers workers = fullLane();
+
+        try {
+            workers.submit(() -> {}, "routing-key");
+            fail("Expected the full lane to refuse the work");
+        } catch (WorkerLaneFullException e) {
+            // expected
+        }
+
+        assertEquals(1, registry.counter("messagehandler.lane.rejections").count(), 0);
+    }
+
+    @Test
+    public void testWorkWithTheSameRoutingKeyRunsInOrderOnOneLane() throws Exception {
+        Workers workers = new Workers(4, 10, OFFER_TIMEOUT);
+        List<String> events = new CopyOnWriteArrayList<>();
+        List<String> threadNames = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+
+        for (String task : new String[]{"first", "second"}) {
+            workers.submit(() -> {
+                threadNames.add(Thread.currentThread().getName());
+                events.add(task + " started");
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add(task + " finished");
+                done.countDown();
+            }, "same-routing-key");
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first started", "first finished", "second started", "second finished"), events);
+        assertEquals(threadNames.get(0), threadNames.get(1));
+    }
+
+    /**
+     * @return a single lane of capacity one, busy with a task that waits for {@link #release} and one more queued
+     */
+    private Workers fullLane() throws InterruptedException {
+        Workers workers = new Workers(1, 1, OFFER_TIMEOUT);
+        CountDownLatch started = new CountDownLatch(1);
+        workers.submit(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "routing-key");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        workers.submit(() -> {}, "routing-key");
+        return workers;
+    }
+}
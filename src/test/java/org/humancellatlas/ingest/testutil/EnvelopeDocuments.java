@@ -0,0 +1,68 @@
+package org.humancellatlas.ingest.testutil;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds envelope documents shaped like the ones core serves: the envelope's own fields, a list of validation errors
+ * and staging details, and the HAL links last.
+ */
+public class EnvelopeDocuments {
+    private static final List<String> LINK_RELS = Arrays.asList("self", "submissionEnvelope", "processes", "files",
+            "biomaterials", "projects", "protocols", "bundleManifests", "submissionErrors", "submissionManifest",
+            "relatedProjects", "summary", "commitDraft", "commitValidating", "commitValid", "commitInvalid",
+            "commitSubmit", "commitProcessing", "commitArchiving", "commitArchived", "commitExporting",
+            "commitExported", "commitCleanup", "commitComplete");
+
+    public static byte[] envelopeJson(String envelopeId, String envelopeUuid, String submissionState, int errorCount) {
+        String envelopeUri = MockConfigurationService.INGEST_API_ROOT_STRING + "/submissionEnvelopes/" + envelopeId;
+
+        Map<String, Object> envelope = new LinkedHashMap<>();
+        envelope.put("content", Collections.emptyMap());
+        envelope.put("submissionDate", "2019-07-01T10:15:30.000Z");
+        envelope.put("updateDate", "2019-07-01T11:15:30.000Z");
+        envelope.put("user", "5c3c6a7fe2ac1a0008d3f7a9");
+        envelope.put("lastModifiedUser", "5c3c6a7fe2ac1a0008d3f7a9");
+        envelope.put("type", "SubmissionEnvelope");
+        envelope.put("uuid", Collections.singletonMap("uuid", envelopeUuid));
+        envelope.put("events", Collections.emptyList());
+        envelope.put("stagingDetails", Collections.singletonMap("stagingAreaLocation",
+                Collections.singletonMap("value", "s3://org-hca-data-upload/" + envelopeUuid + "/")));
+
+        List<Map<String, Object>> errors = new ArrayList<>(errorCount);
+        for (int i = 0; i < errorCount; i++) {
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("errorType", "http://schema.humancellatlas.org/error/validation");
+            error.put("errorCode", 400);
+            error.put("message", String.format("File %d of this envelope failed validation: the value of " +
+                    "content.file_core.file_name does not match the pattern ^[a-zA-Z0-9_.-]+$", i));
+            error.put("details", Collections.singletonMap("path", "content.file_core.file_name"));
+            errors.add(error);
+        }
+        envelope.put("errors", errors);
+        envelope.put("open", true);
+        envelope.put("isUpdate", false);
+        envelope.put("triggersAnalysis", true);
+        envelope.put("submissionState", submissionState);
+
+        Map<String, Object> links = new LinkedHashMap<>();
+        for (String rel : LINK_RELS) {
+            String href = rel.equals("self") || rel.equals("submissionEnvelope") ? envelopeUri : envelopeUri + "/" + rel;
+            links.put(rel, Collections.singletonMap("href", href));
+        }
+        envelope.put("_links", links);
+
+        try {
+            return new ObjectMapper().writeValueAsBytes(envelope);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.humancellatlas.ingest.testutil;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.humancellatlas.ingest.state.SubmissionState;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.humancellatlas.ingest.testutil.MockConfigurationService.INGEST_API_ROOT_STRING;
+import static org.humancellatlas.ingest.testutil.MockConfigurationService.mockStateUpdateRels;
+
+/**
+ * Stubs core's envelope endpoints on a WireMock server for tests that push envelope states
+ */
+public class EnvelopeStubs {
+
+    public static String callbackLocation(String envelopeId) {
+        return "/submissionEnvelopes/" + envelopeId;
+    }
+
+    public static String commitSubmitPath(String envelopeId) {
+        return callbackLocation(envelopeId) + "/mockCommitSubmit";
+    }
+
+    /**
+     * Serves the envelope in the given state with a link to submit it, and accepts the submit
+     */
+    public static void stubEnvelope(WireMockServer wireMockServer, String envelopeId, SubmissionState state) {
+        Map<String, Object> envelopeJson = new HashMap<>();
+        envelopeJson.put("submissionState", state.toString());
+        envelopeJson.put("_links", Collections.singletonMap(mockStateUpdateRels().get(SubmissionState.SUBMITTED),
+                Collections.singletonMap("href", INGEST_API_ROOT_STRING + commitSubmitPath(envelopeId))));
+
+        wireMockServer.stubFor(
+                get(urlEqualTo(callbackLocation(envelopeId)))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(json(envelopeJson))));
+        wireMockServer.stubFor(
+                put(urlEqualTo(commitSubmitPath(envelopeId)))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/hal+json")
+                                .withBody(json(Collections.singletonMap("submissionState", SubmissionState.SUBMITTED.toString())))));
+    }
+
+    private static String json(Object document) {
+        try {
+            return new ObjectMapper().writeValueAsString(document);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}